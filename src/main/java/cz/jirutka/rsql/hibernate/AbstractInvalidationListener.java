@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.transaction.Synchronization;
+import org.hibernate.EntityMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.event.AbstractCollectionEvent;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.PostCollectionRecreateEvent;
+import org.hibernate.event.PostCollectionRecreateEventListener;
+import org.hibernate.event.PostCollectionRemoveEvent;
+import org.hibernate.event.PostCollectionRemoveEventListener;
+import org.hibernate.event.PostCollectionUpdateEvent;
+import org.hibernate.event.PostCollectionUpdateEventListener;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.impl.SessionFactoryImpl;
+
+/**
+ * Hibernate event listener that invalidates cached data of an entity class
+ * when an entity of the class is inserted, updated or deleted, or
+ * a collection owned by it is changed. It invalidates right after the
+ * change is flushed and again after the transaction completes, so data
+ * loaded by another session in the meantime is not kept.
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public abstract class AbstractInvalidationListener implements PostInsertEventListener, PostUpdateEventListener,
+        PostDeleteEventListener, PostCollectionRecreateEventListener, PostCollectionUpdateEventListener,
+        PostCollectionRemoveEventListener {
+
+    private final SessionFactory sessionFactory;
+
+
+    /**
+     * @param sessionFactory factory to install listeners into
+     */
+    protected AbstractInvalidationListener(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+
+    /**
+     * Invalidate cached data of the given entity class, its superclass or
+     * subclass.
+     *
+     * @param entityClass entity class
+     */
+    public abstract void invalidate(Class<?> entityClass);
+
+    /**
+     * Register this listener into the session factory.
+     */
+    public void install() {
+        EventListeners listeners = ((SessionFactoryImpl) sessionFactory).getEventListeners();
+
+        listeners.setPostInsertEventListeners(
+                append(listeners.getPostInsertEventListeners(), this, PostInsertEventListener.class));
+        listeners.setPostUpdateEventListeners(
+                append(listeners.getPostUpdateEventListeners(), this, PostUpdateEventListener.class));
+        listeners.setPostDeleteEventListeners(
+                append(listeners.getPostDeleteEventListeners(), this, PostDeleteEventListener.class));
+        listeners.setPostCollectionRecreateEventListeners(
+                append(listeners.getPostCollectionRecreateEventListeners(), this, PostCollectionRecreateEventListener.class));
+        listeners.setPostCollectionUpdateEventListeners(
+                append(listeners.getPostCollectionUpdateEventListeners(), this, PostCollectionUpdateEventListener.class));
+        listeners.setPostCollectionRemoveEventListeners(
+                append(listeners.getPostCollectionRemoveEventListeners(), this, PostCollectionRemoveEventListener.class));
+    }
+
+    /**
+     * Unregister this listener from the session factory.
+     */
+    public void uninstall() {
+        EventListeners listeners = ((SessionFactoryImpl) sessionFactory).getEventListeners();
+
+        listeners.setPostInsertEventListeners(
+                remove(listeners.getPostInsertEventListeners(), this, PostInsertEventListener.class));
+        listeners.setPostUpdateEventListeners(
+                remove(listeners.getPostUpdateEventListeners(), this, PostUpdateEventListener.class));
+        listeners.setPostDeleteEventListeners(
+                remove(listeners.getPostDeleteEventListeners(), this, PostDeleteEventListener.class));
+        listeners.setPostCollectionRecreateEventListeners(
+                remove(listeners.getPostCollectionRecreateEventListeners(), this, PostCollectionRecreateEventListener.class));
+        listeners.setPostCollectionUpdateEventListeners(
+                remove(listeners.getPostCollectionUpdateEventListeners(), this, PostCollectionUpdateEventListener.class));
+        listeners.setPostCollectionRemoveEventListeners(
+                remove(listeners.getPostCollectionRemoveEventListeners(), this, PostCollectionRemoveEventListener.class));
+    }
+
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        invalidate(event.getPersister().getMappedClass(EntityMode.POJO), event.getSession());
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        invalidate(event.getPersister().getMappedClass(EntityMode.POJO), event.getSession());
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        invalidate(event.getPersister().getMappedClass(EntityMode.POJO), event.getSession());
+    }
+
+    @Override
+    public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+        invalidateOwner(event);
+    }
+
+    @Override
+    public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+        invalidateOwner(event);
+    }
+
+    @Override
+    public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+        invalidateOwner(event);
+    }
+
+
+    private void invalidateOwner(AbstractCollectionEvent event) {
+        String entityName = event.getAffectedOwnerEntityName();
+        Class<?> ownerClass = sessionFactory.getClassMetadata(entityName).getMappedClass(EntityMode.POJO);
+
+        invalidate(ownerClass, event.getSession());
+    }
+
+    /**
+     * Invalidate now and again after the transaction completes.
+     */
+    private void invalidate(final Class<?> entityClass, EventSource session) {
+        invalidate(entityClass);
+
+        Transaction tx = session.getTransaction();
+        if (tx != null && tx.isActive()) {
+            tx.registerSynchronization(new Synchronization() {
+                public void beforeCompletion() { }
+
+                public void afterCompletion(int status) {
+                    invalidate(entityClass);
+                }
+            });
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <L> L[] append(L[] listeners, L listener, Class<L> type) {
+        L[] result = (L[]) Array.newInstance(type, listeners.length + 1);
+        System.arraycopy(listeners, 0, result, 0, listeners.length);
+        result[listeners.length] = listener;
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <L> L[] remove(L[] listeners, L listener, Class<L> type) {
+        List<L> result = new ArrayList<L>(Arrays.asList(listeners));
+        result.remove(listener);
+
+        return result.toArray((L[]) Array.newInstance(type, result.size()));
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hibernate.EntityMode;
+import org.hibernate.FetchMode;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Initializes lazy associations of already loaded entities in batches, so
+ * rendering associations of N entities takes a few queries instead of N.
+ *
+ * <p>Associations are initialized level by level along the property path.
+ * Uninitialized proxies of single-valued associations are loaded by their
+ * identifiers with the <tt>IN</tt> restriction, uninitialized collections
+ * by loading their owners again with a JOIN fetch of the collection.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class BatchFetcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchFetcher.class);
+
+    private final Session session;
+    private final int batchSize;
+
+
+    /**
+     * Construct a new <tt>BatchFetcher</tt>.
+     *
+     * @param session Hibernate session that the entities are attached to
+     * @param batchSize maximum number of identifiers in one query, must be
+     *        greater than 0
+     */
+    public BatchFetcher(Session session, int batchSize) {
+        assert batchSize > 0 : "batchSize must be greater than 0";
+
+        this.session = session;
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * Initialize all associations on the given property path of the given
+     * entities.
+     *
+     * @param entities instances of the root entity of the path
+     * @param path path of associations
+     */
+    public void fetch(Collection<?> entities, PropertyPath path) {
+        Collection<Object> owners = new ArrayList<Object>(entities);
+
+        for (int i = 0; i < path.length() && !owners.isEmpty(); i++) {
+            owners = fetch(owners, path.getOwner(i), path.getProperties()[i], path.getPropertyType(i));
+        }
+    }
+
+    /**
+     * Initialize all associations on the given property paths of the given
+     * entities.
+     *
+     * @param entities instances of the root entity of the paths
+     * @param paths paths of associations
+     */
+    public void fetchAll(Collection<?> entities, Collection<PropertyPath> paths) {
+        for (PropertyPath path : paths) {
+            LOG.debug("Fetching {} in batches", path);
+            fetch(entities, path);
+        }
+    }
+
+    /**
+     * Initialize the given property of the given owners.
+     *
+     * @return Distinct associated entities (or collection elements).
+     */
+    private Collection<Object> fetch(Collection<Object> owners, Class<?> ownerClass, String property,
+            Type type) {
+
+        ClassMetadata metadata = session.getSessionFactory().getClassMetadata(ownerClass);
+        List<Object> values = new ArrayList<Object>(owners.size());
+        Set<Serializable> uninitialized = new LinkedHashSet<Serializable>();
+
+        for (Object owner : owners) {
+            owner = unproxy(owner);
+            Object value = metadata.getPropertyValue(owner, property, EntityMode.POJO);
+            if (value == null) continue;
+
+            if (!Hibernate.isInitialized(value)) {
+                uninitialized.add(type.isCollectionType()
+                        ? metadata.getIdentifier(owner, EntityMode.POJO)
+                        : ((HibernateProxy) value).getHibernateLazyInitializer().getIdentifier());
+            }
+            values.add(value);
+        }
+        LOG.debug("Fetching {} uninitialized {} of {} in batches", new Object[]{
+                uninitialized.size(), property, ownerClass.getSimpleName()});
+
+        List<Serializable> ids = new ArrayList<Serializable>(uninitialized);
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            List<Serializable> batch = ids.subList(i, Math.min(i + batchSize, ids.size()));
+
+            if (type.isCollectionType()) {
+                // owners are already in the session, so only their collections are initialized
+                session.createCriteria(ownerClass)
+                        .add(Restrictions.in(metadata.getIdentifierPropertyName(), batch))
+                        .setFetchMode(property, FetchMode.JOIN)
+                        .list();
+            } else {
+                String entityName = ((EntityType) type).getAssociatedEntityName();
+                String idName = session.getSessionFactory().getClassMetadata(entityName).getIdentifierPropertyName();
+
+                session.createCriteria(entityName)
+                        .add(Restrictions.in(idName, batch))
+                        .list();
+            }
+        }
+
+        Set<Object> next = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        for (Object value : values) {
+            if (value instanceof Map) {
+                next.addAll(((Map<?, ?>) value).values());
+            } else if (value instanceof Collection) {
+                next.addAll((Collection<?>) value);
+            } else {
+                next.add(unproxy(value));
+            }
+        }
+        return next;
+    }
+
+    private Object unproxy(Object entity) {
+        if (entity instanceof HibernateProxy) {
+            return ((HibernateProxy) entity).getHibernateLazyInitializer().getImplementation();
+        }
+        return entity;
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+/**
+ * Result of a bounded count, i.e. number of matching entities up to some limit.
+ *
+ * @see RSQL2CriteriaConverter#countAtMost(String, Class, int, org.hibernate.Session)
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class BoundedCount {
+
+    private final int count;
+    private final boolean limitReached;
+
+
+    /**
+     * Construct a new <tt>BoundedCount</tt>.
+     *
+     * @param count number of entities, at most the limit
+     * @param limitReached whether there are more entities than the limit
+     */
+    public BoundedCount(int count, boolean limitReached) {
+        this.count = count;
+        this.limitReached = limitReached;
+    }
+
+
+    /**
+     * @return Number of matching entities, or the limit if there are more.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return <tt>true</tt> if there are more matching entities than the
+     *         limit, i.e. the count is not exact.
+     */
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+
+    /**
+     * @return The count, followed by "+" if there are more entities.
+     */
+    @Override
+    public String toString() {
+        return limitReached ? count + "+" : String.valueOf(count);
+    }
+
+}
@@ -0,0 +1,992 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.parser.ParseException;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.TokenMgrError;
+import cz.jirutka.rsql.parser.model.Comparison;
+import cz.jirutka.rsql.parser.model.ComparisonExpression;
+import cz.jirutka.rsql.parser.model.Expression;
+import cz.jirutka.rsql.parser.model.LogicalExpression;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import org.hibernate.CacheMode;
+import org.hibernate.EntityMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.impl.SessionFactoryImpl;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Columnar in-memory snapshot of an entity table that evaluates RSQL queries
+ * without going to the database. It's intended for read-heavy reference
+ * tables with many rows.
+ *
+ * <p>The snapshot holds the identifier and all basic properties (i.e. not
+ * associations nor components) of supported types, each in a column of
+ * primitive array: numbers, dates and enums (by ordinal) as <tt>long</tt>s,
+ * floating point numbers as <tt>double</tt>s, booleans as a bit set and
+ * strings encoded to dictionary codes. A comparison is evaluated by a tight
+ * loop over a column producing a bit set of matching rows, these are
+ * intersected or united for logical operators.</p>
+ *
+ * <p>Selectors are resolved via {@linkplain Mapper} and arguments are parsed
+ * by {@linkplain ArgumentParser} of the converter, in the same way as when
+ * converting to Criteria. When a query contains a comparison that is not
+ * covered by the snapshot (a path through associations, an unsupported
+ * property type, a property handled by a custom {@linkplain
+ * AbstractCriterionBuilder Criterion Builder} of the converter, an ordering
+ * comparison of strings that depends on the database collation, or an
+ * ordering comparison of enums that depends on their mapping, e.g. names
+ * compared by <tt>EnumType.STRING</tt>), it's executed by SQL instead.
+ * Note that equality of strings is case-sensitive, like in Java.</p>
+ *
+ * <p>The snapshot is {@linkplain #load(Session) loaded} by a streaming
+ * projection query and then refreshed incrementally by Hibernate event
+ * listeners that must be {@linkplain #install() installed} into the session
+ * factory. Changes are applied after their transaction is committed. Rows
+ * of deleted entities are reused by compaction, when they outnumber rows of
+ * the existing entities.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class ColumnarSnapshot implements PostInsertEventListener, PostUpdateEventListener,
+        PostDeleteEventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ColumnarSnapshot.class);
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int ID_INDEX = -1;
+
+    private final SessionFactory sessionFactory;
+    private final RSQL2CriteriaConverter converter;
+    private final Class<?> entityClass;
+    private final String[] columnNames;
+    private final Class<?>[] columnTypes;
+    private final Map<String, int[]> stateIndexes = new ConcurrentHashMap<String, int[]>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object loadLock = new Object();
+    private Table table;  // guarded by lock
+    private List<Change> pending;  // guarded by lock
+    private int fetchSize = 1000;
+
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+
+    /**
+     * Construct a new empty <tt>ColumnarSnapshot</tt>.
+     *
+     * @param sessionFactory factory to obtain metadata from and to install
+     *        listeners into
+     * @param converter converter whose Mapper and Argument Parser are used,
+     *        and that converts queries not covered by the snapshot
+     * @param entityClass entity class of the snapshot
+     * @throws IllegalArgumentException If the class is not an entity.
+     */
+    public ColumnarSnapshot(SessionFactory sessionFactory, RSQL2CriteriaConverter converter, Class<?> entityClass) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(entityClass);
+        if (metadata == null) {
+            throw new IllegalArgumentException("Not an entity: " + entityClass);
+        }
+        this.sessionFactory = sessionFactory;
+        this.converter = converter;
+        this.entityClass = entityClass;
+
+        List<String> names = new ArrayList<String>();
+        List<Class<?>> types = new ArrayList<Class<?>>();
+
+        if (metadata.getIdentifierPropertyName() != null
+                && Column.isSupported(metadata.getIdentifierType().getReturnedClass())) {
+            names.add(metadata.getIdentifierPropertyName());
+            types.add(metadata.getIdentifierType().getReturnedClass());
+        }
+        for (String property : metadata.getPropertyNames()) {
+            Type type = metadata.getPropertyType(property);
+
+            if (!type.isAssociationType() && !type.isComponentType()
+                    && Column.isSupported(type.getReturnedClass())) {
+                names.add(property);
+                types.add(type.getReturnedClass());
+            }
+        }
+        this.columnNames = names.toArray(new String[names.size()]);
+        this.columnTypes = types.toArray(new Class<?>[types.size()]);
+        this.table = new Table(columnTypes, 0);
+    }
+
+
+    /**
+     * Register this snapshot as event listener into the session factory.
+     */
+    public void install() {
+        EventListeners listeners = ((SessionFactoryImpl) sessionFactory).getEventListeners();
+
+        listeners.setPostInsertEventListeners(AbstractInvalidationListener.append(
+                listeners.getPostInsertEventListeners(), this, PostInsertEventListener.class));
+        listeners.setPostUpdateEventListeners(AbstractInvalidationListener.append(
+                listeners.getPostUpdateEventListeners(), this, PostUpdateEventListener.class));
+        listeners.setPostDeleteEventListeners(AbstractInvalidationListener.append(
+                listeners.getPostDeleteEventListeners(), this, PostDeleteEventListener.class));
+    }
+
+    /**
+     * Unregister this snapshot from the session factory.
+     */
+    public void uninstall() {
+        EventListeners listeners = ((SessionFactoryImpl) sessionFactory).getEventListeners();
+
+        listeners.setPostInsertEventListeners(AbstractInvalidationListener.remove(
+                listeners.getPostInsertEventListeners(), this, PostInsertEventListener.class));
+        listeners.setPostUpdateEventListeners(AbstractInvalidationListener.remove(
+                listeners.getPostUpdateEventListeners(), this, PostUpdateEventListener.class));
+        listeners.setPostDeleteEventListeners(AbstractInvalidationListener.remove(
+                listeners.getPostDeleteEventListeners(), this, PostDeleteEventListener.class));
+    }
+
+    /**
+     * (Re)load the snapshot from the database. Rows are streamed by a
+     * projection query, so entities are not instantiated. The previous
+     * snapshot is used until loading is done, and changes committed in the
+     * meantime are replayed on the new one.
+     *
+     * @param session session to execute the query in
+     */
+    public void load(Session session) {
+        synchronized (loadLock) {
+            lock.writeLock().lock();
+            try {
+                pending = new ArrayList<Change>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            Table loaded = new Table(columnTypes, INITIAL_CAPACITY);
+            int[] indexes = new int[columnNames.length];
+            ProjectionList projection = Projections.projectionList().add(Projections.id());
+
+            for (int i = 0, position = 1; i < columnNames.length; i++) {
+                if (isIdentifier(columnNames[i])) {
+                    indexes[i] = ID_INDEX;
+                } else {
+                    projection.add(Projections.property(columnNames[i]));
+                    indexes[i] = position++;
+                }
+            }
+            ScrollableResults results = session.createCriteria(entityClass)
+                    .setProjection(projection)
+                    .setCacheMode(CacheMode.IGNORE)
+                    .setFetchSize(fetchSize)
+                    .scroll(ScrollMode.FORWARD_ONLY);
+            boolean done = false;
+            try {
+                while (results.next()) {
+                    Object[] row = results.get();
+                    loaded.put(new Change((Serializable) row[0], row, indexes));
+                }
+                done = true;
+            } finally {
+                results.close();
+                lock.writeLock().lock();
+                try {
+                    if (done) {
+                        for (Change change : pending) {
+                            loaded.apply(change);
+                        }
+                        table = loaded;
+                    }
+                    pending = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            LOG.debug("Loaded snapshot of {} with {} rows", entityClass.getName(), loaded.count());
+        }
+    }
+
+    /**
+     * Return identifiers of entities matching given RSQL query expression, in
+     * unspecified order. When the query is not covered by the snapshot, it's
+     * executed in the given session.
+     *
+     * @param query RSQL query expression
+     * @param session Hibernate session to execute the query in when not
+     *        covered by the snapshot
+     * @return identifiers of matching entities
+     * @throws RSQLException If some problem occured when parsing the query
+     *         or converting it to Criteria.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Serializable> listIds(String query, Session session) throws RSQLException {
+        BitSet rows;
+        List<Serializable> ids;
+
+        lock.readLock().lock();
+        try {
+            rows = filter(parse(query));
+            ids = (rows != null) ? table.getIds(rows) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (ids != null) {
+            return ids;
+        }
+
+        fallbacks.incrementAndGet();
+        LOG.debug("Query {} is not covered by snapshot of {}, executing SQL", query, entityClass.getName());
+
+        return converter.createCriteria(query, entityClass)
+                .setProjection(Projections.id())
+                .getExecutableCriteria(session)
+                .list();
+    }
+
+    /**
+     * Evaluate given parsed query on the snapshot.
+     *
+     * @param queryTree RSQL query expression tree
+     * @return Bit set of matching rows (see {@link #getId(int)}), or
+     *         <tt>null</tt> if the query is not covered by the snapshot.
+     *         The rows are valid only until the next change is applied,
+     *         or the snapshot is loaded again.
+     * @throws RSQLException If some argument cannot be parsed.
+     */
+    public BitSet filter(Expression queryTree) throws RSQLException {
+        lock.readLock().lock();
+        try {
+            BitSet rows = evaluate(queryTree, table);
+            if (rows != null) {
+                rows.and(table.live);
+                evaluations.incrementAndGet();
+            }
+            return rows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param row index of the row
+     * @return Identifier of the entity in the specified row, or <tt>null</tt>
+     *         if the entity has been deleted.
+     */
+    public Serializable getId(int row) {
+        lock.readLock().lock();
+        try {
+            return table.live.get(row) ? table.ids[row] : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of entities in the snapshot.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return table.count();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of rows including rows of deleted entities.
+     */
+    int capacity() {
+        lock.readLock().lock();
+        try {
+            return table.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Names of properties held in the snapshot.
+     */
+    public List<String> getColumnNames() {
+        return Arrays.asList(columnNames.clone());
+    }
+
+    /**
+     * @return Number of queries evaluated on the snapshot.
+     */
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    /**
+     * @return Number of queries executed by SQL, because they were not
+     *         covered by the snapshot.
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Set JDBC fetch size of the query that loads the snapshot.
+     * Default is 1000.
+     *
+     * @param fetchSize Must be greater than 0.
+     */
+    public void setFetchSize(int fetchSize) {
+        assert fetchSize > 0 : "must be greater than 0";
+        this.fetchSize = fetchSize;
+    }
+
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (isSnapshotted(event.getPersister())) {
+            apply(new Change(event.getId(), event.getState(), stateIndexes(event.getPersister())),
+                    event.getSession());
+        }
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        if (isSnapshotted(event.getPersister())) {
+            apply(new Change(event.getId(), event.getState(), stateIndexes(event.getPersister())),
+                    event.getSession());
+        }
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        if (isSnapshotted(event.getPersister())) {
+            apply(new Change(event.getId()), event.getSession());
+        }
+    }
+
+
+    private BitSet evaluate(Expression expression, Table table) throws RSQLException {
+        if (expression.isComparison()) {
+            return evaluate((ComparisonExpression) expression, table);
+        }
+        LogicalExpression logical = (LogicalExpression) expression;
+
+        BitSet left = evaluate(logical.getLeft(), table);
+        if (left == null) return null;
+        BitSet right = evaluate(logical.getRight(), table);
+        if (right == null) return null;
+
+        switch (logical.getOperator()) {
+            case AND : left.and(right); break;
+            case OR : left.or(right); break;
+        }
+        return left;
+    }
+
+    private BitSet evaluate(ComparisonExpression comparison, Table table) throws RSQLException {
+        int index = resolveColumn(comparison.getSelector());
+        if (index < 0) return null;
+
+        Column column = table.columns[index];
+        Comparison operator = comparison.getOperator();
+        String argument = comparison.getArgument();
+
+        // ordinals are not ordered like names in EnumType.STRING column
+        if (columnTypes[index].isEnum() && operator != Comparison.EQUAL && operator != Comparison.NOT_EQUAL) {
+            return null;
+        }
+
+        if (AbstractCriterionBuilder.NULL_ARGUMENT.equals(argument)
+                && (operator == Comparison.EQUAL || operator == Comparison.NOT_EQUAL)) {
+            BitSet rows = (BitSet) column.nulls.clone();
+            if (operator == Comparison.NOT_EQUAL) {
+                rows.flip(0, table.size);
+            }
+            return rows;
+        }
+
+        Object value;
+        try {
+            value = converter.getArgumentParser().parse(argument, columnTypes[index]);
+        } catch (ArgumentFormatException ex) {
+            throw new RSQLException(
+                    new ArgumentFormatException(comparison.getSelector(), ex.getArgument(), ex.getPropertyType()));
+        }
+
+        if (value instanceof String && argument.contains(AbstractCriterionBuilder.LIKE_WILDCARD.toString())
+                && (operator == Comparison.EQUAL || operator == Comparison.NOT_EQUAL)) {
+            return ((StringColumn) column).like(
+                    PredicateCompiler.toLikePattern((String) value), operator == Comparison.EQUAL, table.size);
+        }
+        return column.compare(operator, value, table.size);
+    }
+
+    /**
+     * @return Index of the column, or -1 if the selector is not covered,
+     *         i.e. it's not a column or it's handled by a custom builder.
+     */
+    private int resolveColumn(String selector) {
+        PropertyPath path;
+        try {
+            path = PropertyPath.resolve(selector, entityClass, converter.getMapper(),
+                    (SessionFactoryImplementor) sessionFactory);
+        } catch (UnknownSelectorException ex) {
+            return -1;  // let it fail on conversion
+        }
+        if (path.length() > 1 || !PredicateCompiler.isHandledByBuiltInBuilder(converter.getCriterionBuilders(),
+                path, converter.getMapper(), (SessionFactoryImplementor) sessionFactory)) {
+            return -1;
+        }
+        return Arrays.asList(columnNames).indexOf(path.getProperties()[0]);
+    }
+
+    private Expression parse(String query) throws RSQLException {
+        try {
+            return RSQLParser.parse(query);
+        } catch (ParseException ex) {
+            throw new RSQLException(ex);
+        } catch (TokenMgrError er) {
+            throw new RSQLException(er);
+        }
+    }
+
+    /**
+     * Apply the change after the transaction is committed, or now if there's
+     * no transaction.
+     */
+    private void apply(final Change change, EventSource session) {
+        Transaction tx = session.getTransaction();
+
+        if (tx != null && tx.isActive()) {
+            tx.registerSynchronization(new Synchronization() {
+                public void beforeCompletion() { }
+
+                public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) apply(change);
+                }
+            });
+        } else {
+            apply(change);
+        }
+    }
+
+    private void apply(Change change) {
+        lock.writeLock().lock();
+        try {
+            table.apply(change);
+            if (pending != null) {
+                pending.add(change);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean isSnapshotted(EntityPersister persister) {
+        return entityClass.isAssignableFrom(persister.getMappedClass(EntityMode.POJO));
+    }
+
+    private boolean isIdentifier(String property) {
+        return property.equals(sessionFactory.getClassMetadata(entityClass).getIdentifierPropertyName());
+    }
+
+    /**
+     * Return indexes of the columns in the entity state of the given
+     * persister (subclasses may have a different order of properties).
+     */
+    private int[] stateIndexes(EntityPersister persister) {
+        int[] indexes = stateIndexes.get(persister.getEntityName());
+
+        if (indexes == null) {
+            List<String> properties = Arrays.asList(persister.getPropertyNames());
+            indexes = new int[columnNames.length];
+
+            for (int i = 0; i < columnNames.length; i++) {
+                indexes[i] = isIdentifier(columnNames[i]) ? ID_INDEX : properties.indexOf(columnNames[i]);
+            }
+            stateIndexes.put(persister.getEntityName(), indexes);
+        }
+        return indexes;
+    }
+
+
+
+    ///////////////  INNER CLASSES  ///////////////
+
+    /**
+     * Insert, update or delete of an entity. Values are copied, since the
+     * entity state may change before the change is applied.
+     */
+    private static class Change {
+
+        final Serializable id;
+        final Object[] values;  // null when deleted
+
+        Change(Serializable id) {
+            this.id = id;
+            this.values = null;
+        }
+
+        Change(Serializable id, Object[] state, int[] indexes) {
+            this.id = id;
+            this.values = new Object[indexes.length];
+
+            for (int i = 0; i < indexes.length; i++) {
+                values[i] = (indexes[i] == ID_INDEX) ? id : state[indexes[i]];
+            }
+        }
+    }
+
+    private static class Table {
+
+        final Column[] columns;
+        final Map<Serializable, Integer> rows;
+        final BitSet live = new BitSet();
+        Serializable[] ids;
+        int size = 0;
+
+        Table(Class<?>[] types, int capacity) {
+            this.columns = new Column[types.length];
+            this.rows = new HashMap<Serializable, Integer>(capacity * 2);
+            this.ids = new Serializable[capacity];
+
+            for (int i = 0; i < types.length; i++) {
+                columns[i] = Column.create(types[i], capacity);
+            }
+        }
+
+        void apply(Change change) {
+            if (change.values != null) {
+                put(change);
+            } else {
+                Integer row = rows.remove(change.id);
+                if (row != null) live.clear(row);
+
+                if (size - rows.size() > rows.size()) {
+                    compact();
+                }
+            }
+        }
+
+        /**
+         * Move the existing rows to the beginning to drop rows of the deleted
+         * entities.
+         */
+        void compact() {
+            int to = 0;
+            for (int from = live.nextSetBit(0); from >= 0; from = live.nextSetBit(from + 1), to++) {
+                if (from == to) continue;
+
+                for (Column column : columns) {
+                    column.move(from, to);
+                }
+                ids[to] = ids[from];
+                rows.put(ids[to], to);
+            }
+            LOG.trace("Compacted {} rows to {}", size, to);
+
+            Arrays.fill(ids, to, size, null);
+            for (Column column : columns) {
+                column.truncate(to);
+            }
+            live.clear();
+            live.set(0, to);
+            size = to;
+        }
+
+        void put(Change change) {
+            Integer row = rows.get(change.id);
+
+            if (row == null) {
+                if (size == ids.length) {
+                    int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+                    ids = Arrays.copyOf(ids, capacity);
+                    for (Column column : columns) {
+                        column.grow(capacity);
+                    }
+                }
+                row = size++;
+                ids[row] = change.id;
+                rows.put(change.id, row);
+            }
+            live.set(row);
+
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].set(row, change.values[i]);
+            }
+        }
+
+        List<Serializable> getIds(BitSet matching) {
+            List<Serializable> result = new ArrayList<Serializable>(matching.cardinality());
+            for (int i = matching.nextSetBit(0); i >= 0; i = matching.nextSetBit(i + 1)) {
+                result.add(ids[i]);
+            }
+            return result;
+        }
+
+        int count() {
+            return live.cardinality();
+        }
+    }
+
+    /**
+     * Column of property values of all rows.
+     */
+    private static abstract class Column {
+
+        final BitSet nulls = new BitSet();
+
+        static boolean isSupported(Class<?> type) {
+            return LongColumn.isSupported(type) || DoubleColumn.isSupported(type)
+                    || type == Boolean.class || type == boolean.class || type == String.class;
+        }
+
+        static Column create(Class<?> type, int capacity) {
+            if (LongColumn.isSupported(type)) return new LongColumn(capacity);
+            if (DoubleColumn.isSupported(type)) return new DoubleColumn(capacity);
+            if (type == String.class) return new StringColumn(capacity);
+            return new BooleanColumn();
+        }
+
+        void set(int row, Object value) {
+            if (value == null) {
+                nulls.set(row);
+            } else {
+                nulls.clear(row);
+                setValue(row, value);
+            }
+        }
+
+        void move(int from, int to) {
+            nulls.set(to, nulls.get(from));
+            moveValue(from, to);
+        }
+
+        /**
+         * Clear rows from the given size on.
+         */
+        void truncate(int size) {
+            nulls.clear(size, Math.max(size, nulls.length()));
+        }
+
+        abstract void setValue(int row, Object value);
+
+        abstract void moveValue(int from, int to);
+
+        abstract void grow(int capacity);
+
+        /**
+         * @return Bit set of rows with non-null value satisfying the
+         *         comparison, or <tt>null</tt> if not supported.
+         */
+        abstract BitSet compare(Comparison operator, Object argument, int size);
+    }
+
+    /**
+     * Integral numbers, dates (in milliseconds) and enums (by ordinal, only
+     * for equality).
+     */
+    private static class LongColumn extends Column {
+
+        long[] values;
+
+        LongColumn(int capacity) {
+            values = new long[capacity];
+        }
+
+        static boolean isSupported(Class<?> type) {
+            return type == Long.class || type == long.class || type == Integer.class || type == int.class
+                    || type == Short.class || type == short.class || type == Byte.class || type == byte.class
+                    || Date.class.isAssignableFrom(type) || type.isEnum();
+        }
+
+        static long toLong(Object value) {
+            if (value instanceof Number) return ((Number) value).longValue();
+            if (value instanceof Date) return ((Date) value).getTime();
+            return ((Enum<?>) value).ordinal();
+        }
+
+        void setValue(int row, Object value) {
+            values[row] = toLong(value);
+        }
+
+        void moveValue(int from, int to) {
+            values[to] = values[from];
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        BitSet compare(Comparison operator, Object argument, int size) {
+            long arg = toLong(argument);
+            long[] values = this.values;
+            BitSet result = new BitSet(size);
+
+            switch (operator) {
+                case EQUAL :
+                    for (int i = 0; i < size; i++) if (values[i] == arg) result.set(i);
+                    break;
+                case NOT_EQUAL :
+                    for (int i = 0; i < size; i++) if (values[i] != arg) result.set(i);
+                    break;
+                case GREATER_THAN :
+                    for (int i = 0; i < size; i++) if (values[i] > arg) result.set(i);
+                    break;
+                case GREATER_EQUAL :
+                    for (int i = 0; i < size; i++) if (values[i] >= arg) result.set(i);
+                    break;
+                case LESS_THAN :
+                    for (int i = 0; i < size; i++) if (values[i] < arg) result.set(i);
+                    break;
+                case LESS_EQUAL :
+                    for (int i = 0; i < size; i++) if (values[i] <= arg) result.set(i);
+                    break;
+            }
+            result.andNot(nulls);
+            return result;
+        }
+    }
+
+    private static class DoubleColumn extends Column {
+
+        double[] values;
+
+        DoubleColumn(int capacity) {
+            values = new double[capacity];
+        }
+
+        static boolean isSupported(Class<?> type) {
+            return type == Double.class || type == double.class || type == Float.class || type == float.class;
+        }
+
+        void setValue(int row, Object value) {
+            values[row] = ((Number) value).doubleValue();
+        }
+
+        void moveValue(int from, int to) {
+            values[to] = values[from];
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        BitSet compare(Comparison operator, Object argument, int size) {
+            double arg = ((Number) argument).doubleValue();
+            double[] values = this.values;
+            BitSet result = new BitSet(size);
+
+            switch (operator) {
+                case EQUAL :
+                    for (int i = 0; i < size; i++) if (values[i] == arg) result.set(i);
+                    break;
+                case NOT_EQUAL :
+                    for (int i = 0; i < size; i++) if (values[i] != arg) result.set(i);
+                    break;
+                case GREATER_THAN :
+                    for (int i = 0; i < size; i++) if (values[i] > arg) result.set(i);
+                    break;
+                case GREATER_EQUAL :
+                    for (int i = 0; i < size; i++) if (values[i] >= arg) result.set(i);
+                    break;
+                case LESS_THAN :
+                    for (int i = 0; i < size; i++) if (values[i] < arg) result.set(i);
+                    break;
+                case LESS_EQUAL :
+                    for (int i = 0; i < size; i++) if (values[i] <= arg) result.set(i);
+                    break;
+            }
+            result.andNot(nulls);
+            return result;
+        }
+    }
+
+    private static class BooleanColumn extends Column {
+
+        final BitSet values = new BitSet();
+
+        void setValue(int row, Object value) {
+            values.set(row, (Boolean) value);
+        }
+
+        void moveValue(int from, int to) {
+            values.set(to, values.get(from));
+        }
+
+        @Override
+        void truncate(int size) {
+            super.truncate(size);
+            values.clear(size, Math.max(size, values.length()));
+        }
+
+        void grow(int capacity) {
+            // bit sets grow automatically
+        }
+
+        BitSet compare(Comparison operator, Object argument, int size) {
+            if (operator != Comparison.EQUAL && operator != Comparison.NOT_EQUAL) {
+                return null;
+            }
+            BitSet result = (BitSet) values.clone();
+            if ((Boolean) argument != (operator == Comparison.EQUAL)) {
+                result.flip(0, size);
+            }
+            result.andNot(nulls);
+            return result;
+        }
+    }
+
+    /**
+     * Strings encoded to codes of a dictionary of distinct values. Ordering
+     * comparisons are not supported, because they depend on the database
+     * collation.
+     */
+    private static class StringColumn extends Column {
+
+        final List<String> dictionary = new ArrayList<String>();
+        final Map<String, Integer> codes = new HashMap<String, Integer>();
+        int[] values;
+
+        StringColumn(int capacity) {
+            values = new int[capacity];
+        }
+
+        void setValue(int row, Object value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add((String) value);
+                codes.put((String) value, code);
+            }
+            values[row] = code;
+        }
+
+        void moveValue(int from, int to) {
+            values[to] = values[from];
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        /**
+         * Truncate also the dictionary to values of the remaining rows.
+         */
+        @Override
+        void truncate(int size) {
+            super.truncate(size);
+            List<String> used = new ArrayList<String>();
+            int[] recoded = new int[dictionary.size()];
+            Arrays.fill(recoded, -1);
+
+            for (int i = 0; i < size; i++) {
+                if (nulls.get(i)) continue;
+                int code = values[i];
+                if (recoded[code] < 0) {
+                    recoded[code] = used.size();
+                    used.add(dictionary.get(code));
+                }
+                values[i] = recoded[code];
+            }
+            dictionary.clear();
+            codes.clear();
+            for (String value : used) {
+                codes.put(value, dictionary.size());
+                dictionary.add(value);
+            }
+        }
+
+        BitSet compare(Comparison operator, Object argument, int size) {
+            if (operator != Comparison.EQUAL && operator != Comparison.NOT_EQUAL) {
+                return null;
+            }
+            Integer code = codes.get(argument);
+            int arg = (code != null) ? code : -1;
+            int[] values = this.values;
+            BitSet result = new BitSet(size);
+
+            if (operator == Comparison.EQUAL) {
+                for (int i = 0; i < size; i++) if (values[i] == arg) result.set(i);
+            } else {
+                for (int i = 0; i < size; i++) if (values[i] != arg) result.set(i);
+            }
+            result.andNot(nulls);
+            return result;
+        }
+
+        /**
+         * Match the pattern on the dictionary and then select rows with
+         * the matching codes.
+         */
+        BitSet like(Pattern pattern, boolean matches, int size) {
+            boolean[] matching = new boolean[dictionary.size()];
+            for (int code = 0; code < matching.length; code++) {
+                matching[code] = pattern.matcher(dictionary.get(code)).matches() == matches;
+            }
+            int[] values = this.values;
+            BitSet result = new BitSet(size);
+
+            for (int i = 0; i < size; i++) {
+                int code = values[i];
+                if (code < matching.length && matching[code]) result.set(i);
+            }
+            result.andNot(nulls);
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Date;
+
+/**
+ * Encoder and decoder of continuation tokens used by keyset pagination. Token
+ * holds values of the sort keys of the last row on a page. It's URL-safe and
+ * should be treated as opaque by clients.
+ *
+ * <p>Values are formatted as strings and parsed back via
+ * {@linkplain ArgumentParser}, so the same types as in RSQL arguments are
+ * supported. Dates are encoded as milliseconds to not lose precision.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class ContinuationToken {
+
+    private static final String SEPARATOR = ",";
+    private static final String CHARSET = "UTF-8";
+
+
+    private ContinuationToken() {}
+
+
+    /**
+     * Encode given sort key values into a continuation token.
+     *
+     * @param values Values of the sort keys, must not contain <tt>null</tt>.
+     * @return continuation token
+     * @throws IllegalArgumentException If some value is <tt>null</tt>.
+     */
+    public static String encode(Object[] values) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                throw new IllegalArgumentException("Cannot encode null value of sort key #" + i);
+            }
+            if (i > 0) sb.append(SEPARATOR);
+            sb.append(urlEncode(format(values[i])));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decode given continuation token into values of the specified types.
+     *
+     * @param token continuation token
+     * @param types types of the sort keys
+     * @param parser parser used to parse values
+     * @return Values of the sort keys.
+     * @throws ArgumentFormatException If token is malformed or doesn't match
+     *         the given types.
+     */
+    public static Object[] decode(String token, Class<?>[] types, ArgumentParser parser)
+            throws ArgumentFormatException {
+
+        String[] parts = token.split(SEPARATOR, -1);
+        if (parts.length != types.length) {
+            throw new ArgumentFormatException(token, ContinuationToken.class);
+        }
+        Object[] values = new Object[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            String value = urlDecode(parts[i]);
+
+            if (Date.class.isAssignableFrom(types[i])) {
+                try {
+                    values[i] = new Date(Long.parseLong(value));
+                } catch (NumberFormatException ex) {
+                    throw new ArgumentFormatException(value, types[i]);
+                }
+            } else {
+                values[i] = parser.parse(value, types[i]);
+            }
+        }
+        return values;
+    }
+
+
+    private static String format(Object value) {
+        if (value instanceof Date) {
+            return String.valueOf(((Date) value).getTime());
+        }
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        return value.toString();
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, CHARSET);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String urlDecode(String value) throws ArgumentFormatException {
+        try {
+            return URLDecoder.decode(value, CHARSET);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        } catch (IllegalArgumentException ex) {
+            throw new ArgumentFormatException(value, String.class);
+        }
+    }
+
+}
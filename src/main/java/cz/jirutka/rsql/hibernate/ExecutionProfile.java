@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Criteria;
+import org.hibernate.FlushMode;
+
+/**
+ * Settings of how a criteria query is executed, applied in one place.
+ *
+ * <p>The default profile is tuned for reads: loaded entities are read-only,
+ * so Hibernate doesn't keep their snapshots for dirty checking, and the
+ * session is not flushed before the query. Be aware that pending changes in
+ * the session are then not visible to the query until flushed.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class ExecutionProfile {
+
+    private boolean readOnly = true;
+    private FlushMode flushMode = FlushMode.MANUAL;
+    private CacheMode cacheMode;
+    private int timeout = -1;
+
+
+    /**
+     * Apply this profile to given criteria.
+     *
+     * @param criteria the criteria to configure
+     * @return the given criteria (for method chaining)
+     */
+    public Criteria apply(Criteria criteria) {
+        if (readOnly) {
+            criteria.setReadOnly(true);
+        }
+        if (flushMode != null) {
+            criteria.setFlushMode(flushMode);
+        }
+        if (cacheMode != null) {
+            criteria.setCacheMode(cacheMode);
+        }
+        if (timeout >= 0) {
+            criteria.setTimeout(timeout);
+        }
+        return criteria;
+    }
+
+
+    /**
+     * @return <tt>true</tt> if loaded entities are read-only
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Set whether loaded entities are read-only, i.e. without snapshots for
+     * dirty checking. Default is <tt>true</tt>. When <tt>false</tt>, the
+     * session's default read-only setting is kept.
+     *
+     * @param readOnly read-only flag
+     * @return this (for method chaining)
+     */
+    public ExecutionProfile setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    /**
+     * @return Flush mode, or <tt>null</tt> for the session's flush mode.
+     */
+    public FlushMode getFlushMode() {
+        return flushMode;
+    }
+
+    /**
+     * Set flush mode of the query. Default is {@link FlushMode#MANUAL}, i.e.
+     * no auto-flush before the query.
+     *
+     * @param flushMode flush mode, or <tt>null</tt> for the session's one
+     * @return this (for method chaining)
+     */
+    public ExecutionProfile setFlushMode(FlushMode flushMode) {
+        this.flushMode = flushMode;
+        return this;
+    }
+
+    /**
+     * @return Cache mode, or <tt>null</tt> for the session's cache mode.
+     */
+    public CacheMode getCacheMode() {
+        return cacheMode;
+    }
+
+    /**
+     * Set cache mode of the query, e.g. {@link CacheMode#GET} to not put
+     * entities of large results into the second-level cache. Default is the
+     * session's cache mode.
+     *
+     * @param cacheMode cache mode, or <tt>null</tt> for the session's one
+     * @return this (for method chaining)
+     */
+    public ExecutionProfile setCacheMode(CacheMode cacheMode) {
+        this.cacheMode = cacheMode;
+        return this;
+    }
+
+    /**
+     * @return Query timeout in seconds, or -1 if not set.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set JDBC query timeout.
+     *
+     * @param timeout timeout in seconds, or -1 for no timeout
+     * @return this (for method chaining)
+     */
+    public ExecutionProfile setTimeout(int timeout) {
+        assert timeout >= -1 : "must be greater or equal -1";
+        this.timeout = timeout;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutionProfile[readOnly=" + readOnly + ", flushMode=" + flushMode
+                + ", cacheMode=" + cacheMode + ", timeout=" + timeout + "]";
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Keys of in-memory indexes, shared by {@link IndexedEntitySet} and
+ * {@link PredicateIndex}.
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+final class IndexKeys {
+
+    private IndexKeys() {}
+
+
+    /**
+     * Normalize the value, so that equal values have equal keys, e.g.
+     * <tt>java.util.Date</tt> and <tt>java.sql.Timestamp</tt>.
+     *
+     * @param value property value or parsed argument, may be <tt>null</tt>
+     * @return key of the value
+     */
+    static Object normalize(Object value) {
+        if (value instanceof Date) return ((Date) value).getTime();
+        if (value instanceof BigDecimal) return ((BigDecimal) value).stripTrailingZeros();
+        return value;
+    }
+
+}
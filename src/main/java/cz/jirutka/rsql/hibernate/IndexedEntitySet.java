@@ -0,0 +1,559 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.parser.ParseException;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.TokenMgrError;
+import cz.jirutka.rsql.parser.model.Comparison;
+import cz.jirutka.rsql.parser.model.ComparisonExpression;
+import cz.jirutka.rsql.parser.model.Expression;
+import cz.jirutka.rsql.parser.model.LogicalExpression;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory set of entities, e.g. a cached reference table, that is filtered
+ * by RSQL queries using secondary indexes of selected properties.
+ *
+ * <p>There are two kinds of indexes:</p>
+ * <ul>
+ * <li><i>hash index</i> maps each value to the rows that have it, it's
+ * used for equality comparisons. The identifier and the natural identifier
+ * (if consists of a single property) are indexed automatically.</li>
+ * <li><i>bitmap index</i> holds a bit set of rows for each value, it's
+ * intended for low-cardinality properties like enums and booleans and is
+ * used also for inequality comparisons.</li>
+ * </ul>
+ *
+ * <p>Filtering first looks up rows of the indexed comparisons and intersects
+ * (for AND) or unites (for OR) them. Then the remaining candidate rows are
+ * checked by the predicate compiled by {@link PredicateCompiler}, unless
+ * the whole query has been answered by indexes. A query without any
+ * indexed comparison is a plain scan.</p>
+ *
+ * <p>The query is always compiled before the indexes are used, so a query
+ * that the compiler refuses, e.g. with a selector handled by a custom
+ * {@linkplain AbstractCriterionBuilder Criterion Builder}, is refused even
+ * when the selector is indexed.</p>
+ *
+ * <p>Rows of removed entities are reused by compaction, when they outnumber
+ * rows of the entities in the set.</p>
+ *
+ * <p>Indexed entities must not be modified without calling
+ * {@link #update(Object)}.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class IndexedEntitySet<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexedEntitySet.class);
+
+    private final SessionFactory sessionFactory;
+    private final PredicateCompiler compiler;
+    private final Class<T> entityClass;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<T> entities = new ArrayList<T>();  // guarded by lock
+    private final Map<T, Integer> rows = new IdentityHashMap<T, Integer>();  // guarded by lock
+    private final BitSet live = new BitSet();  // guarded by lock
+    private final Map<String, Index> indexes = new LinkedHashMap<String, Index>();  // guarded by lock
+
+
+    /**
+     * Construct a new <tt>IndexedEntitySet</tt> with indexed identifier and
+     * natural identifier.
+     *
+     * @param sessionFactory factory to obtain metadata from
+     * @param compiler compiler of queries, its Mapper and Argument Parser are
+     *        used also for indexed comparisons
+     * @param entityClass entity class of the set
+     * @param entities initial entities
+     * @throws IllegalArgumentException If the class is not an entity.
+     */
+    public IndexedEntitySet(SessionFactory sessionFactory, PredicateCompiler compiler, Class<T> entityClass,
+            Collection<? extends T> entities) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(entityClass);
+        if (metadata == null) {
+            throw new IllegalArgumentException("Not an entity: " + entityClass);
+        }
+        this.sessionFactory = sessionFactory;
+        this.compiler = compiler;
+        this.entityClass = entityClass;
+
+        for (T entity : entities) {
+            add(entity);
+        }
+        if (metadata.getIdentifierPropertyName() != null) {
+            createIndex(resolveProperty(metadata.getIdentifierPropertyName()), false);
+        }
+        if (metadata.hasNaturalIdentifier() && metadata.getNaturalIdentifierProperties().length == 1) {
+            int idx = metadata.getNaturalIdentifierProperties()[0];
+            createIndex(resolveProperty(metadata.getPropertyNames()[idx]), false);
+        }
+    }
+
+
+    /**
+     * Add a hash index of the given property, used for equality comparisons.
+     *
+     * @param selector selector of a basic property, may be a path through
+     *         single-valued associations
+     * @throws RSQLException If the selector is unknown, or it's not a basic
+     *         single-valued property. This is a wrapper exception for
+     *         {@link UnknownSelectorException} and
+     *         {@link UnsupportedSelectorException}.
+     */
+    public void addHashIndex(String selector) throws RSQLException {
+        createIndex(resolveIndexable(selector), false);
+    }
+
+    /**
+     * Add a bitmap index of the given property, used for equality and
+     * inequality comparisons. It should be used only for low-cardinality
+     * properties like enums and booleans.
+     *
+     * @param selector selector of a basic property, may be a path through
+     *         single-valued associations
+     * @throws RSQLException If the selector is unknown, or it's not a basic
+     *         single-valued property. This is a wrapper exception for
+     *         {@link UnknownSelectorException} and
+     *         {@link UnsupportedSelectorException}.
+     */
+    public void addBitmapIndex(String selector) throws RSQLException {
+        createIndex(resolveIndexable(selector), true);
+    }
+
+    /**
+     * Return entities matching given RSQL query expression, in the order they
+     * were added.
+     *
+     * @param query RSQL query expression
+     * @return matching entities
+     * @throws RSQLException If some problem occured when parsing or compiling
+     *         the query, see {@link PredicateCompiler#compile(String, Class)}.
+     */
+    public List<T> filter(String query) throws RSQLException {
+        try {
+            return filter(RSQLParser.parse(query));
+
+        } catch (ParseException ex) {
+            throw new RSQLException(ex);
+        } catch (TokenMgrError er) {
+            throw new RSQLException(er);
+        }
+    }
+
+    /**
+     * Return entities matching given parsed query, in the order they were
+     * added.
+     *
+     * @param queryTree RSQL query expression tree
+     * @return matching entities
+     * @throws RSQLException If some problem occured when compiling the query,
+     *         see {@link PredicateCompiler#compile(Expression, Class)}.
+     */
+    public List<T> filter(Expression queryTree) throws RSQLException {
+        EntityPredicate<T> predicate = compiler.compile(queryTree, entityClass);
+        List<T> result = new ArrayList<T>();
+
+        lock.readLock().lock();
+        try {
+            Lookup lookup = lookup(queryTree);
+            BitSet candidates = live;
+
+            if (lookup != null) {
+                candidates = lookup.rows;
+                candidates.and(live);
+            }
+            LOG.trace("Query {} has {} candidates, exact: {}", new Object[]{
+                    queryTree, candidates.cardinality(), lookup != null && lookup.exact });
+
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                T entity = entities.get(i);
+                if ((lookup != null && lookup.exact) || predicate.evaluate(entity)) {
+                    result.add(entity);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Add the entity to this set.
+     *
+     * @param entity entity
+     * @return <tt>false</tt> if the entity is already in this set
+     */
+    public boolean add(T entity) {
+        lock.writeLock().lock();
+        try {
+            if (rows.containsKey(entity)) return false;
+
+            int row = entities.size();
+            entities.add(entity);
+            rows.put(entity, row);
+            live.set(row);
+
+            for (Index index : indexes.values()) {
+                index.add(row, entity);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the entity from this set.
+     *
+     * @param entity entity
+     * @return <tt>false</tt> if the entity is not in this set
+     */
+    public boolean remove(T entity) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rows.remove(entity);
+            if (row == null) return false;
+
+            for (Index index : indexes.values()) {
+                index.remove(row);
+            }
+            entities.set(row, null);
+            live.clear(row);
+
+            if (entities.size() - rows.size() > rows.size()) {
+                compact();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reindex the entity after it has been modified.
+     *
+     * @param entity entity
+     * @return <tt>false</tt> if the entity is not in this set
+     */
+    public boolean update(T entity) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rows.get(entity);
+            if (row == null) return false;
+
+            for (Index index : indexes.values()) {
+                index.remove(row);
+                index.add(row, entity);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of entities in this set.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rows.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of rows including rows of removed entities.
+     */
+    int capacity() {
+        lock.readLock().lock();
+        try {
+            return entities.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Paths of the indexed properties.
+     */
+    public List<String> getIndexedPaths() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<String>(indexes.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Look up candidate rows using indexes.
+     *
+     * @return Candidate rows, or <tt>null</tt> if all rows are candidates.
+     */
+    private Lookup lookup(Expression expression) throws RSQLException {
+        if (expression.isComparison()) {
+            return lookup((ComparisonExpression) expression);
+        }
+        LogicalExpression logical = (LogicalExpression) expression;
+        Lookup left = lookup(logical.getLeft());
+        Lookup right = lookup(logical.getRight());
+
+        switch (logical.getOperator()) {
+            case AND :
+                if (left == null || right == null) {
+                    Lookup known = (left != null) ? left : right;
+                    if (known != null) known.exact = false;
+                    return known;
+                }
+                left.rows.and(right.rows);
+                left.exact &= right.exact;
+                return left;
+            case OR :
+                if (left == null || right == null) return null;
+                left.rows.or(right.rows);
+                left.exact &= right.exact;
+                return left;
+        }
+        throw new IllegalArgumentException("Unknown operator: " + logical.getOperator());
+    }
+
+    private Lookup lookup(ComparisonExpression comparison) throws RSQLException {
+        Comparison operator = comparison.getOperator();
+        String argument = comparison.getArgument();
+
+        if (AbstractCriterionBuilder.NULL_ARGUMENT.equals(argument)
+                || (operator != Comparison.EQUAL && operator != Comparison.NOT_EQUAL)) {
+            return null;
+        }
+        PropertyPath path;
+        try {
+            path = PropertyPath.resolve(comparison.getSelector(), entityClass, compiler.getMapper(),
+                    (SessionFactoryImplementor) sessionFactory);
+        } catch (UnknownSelectorException ex) {
+            throw new RSQLException(ex);
+        }
+        Index index = indexes.get(path.getPath());
+        if (index == null || (operator == Comparison.NOT_EQUAL && !index.bitmap)) {
+            return null;
+        }
+
+        Object value;
+        try {
+            value = compiler.getArgumentParser().parse(argument, path.getType());
+        } catch (ArgumentFormatException ex) {
+            throw new RSQLException(
+                    new ArgumentFormatException(comparison.getSelector(), ex.getArgument(), ex.getPropertyType()));
+        }
+        if (value instanceof String && argument.contains(AbstractCriterionBuilder.LIKE_WILDCARD.toString())) {
+            return null;
+        }
+
+        return new Lookup(operator == Comparison.EQUAL ? index.get(value) : index.getOthers(value), true);
+    }
+
+    private PropertyPath resolveIndexable(String selector) throws RSQLException {
+        try {
+            PropertyPath path = PropertyPath.resolve(selector, entityClass, compiler.getMapper(),
+                    (SessionFactoryImplementor) sessionFactory);
+
+            if (path.isCollectionValued() || path.isAssociation()
+                    || path.getPropertyType(path.length() -1).isComponentType()) {
+                throw new UnsupportedSelectorException(selector,
+                        "cannot index a property that is not a basic single-valued property");
+            }
+            return path;
+
+        } catch (UnknownSelectorException ex) {
+            throw new RSQLException(ex);
+        } catch (UnsupportedSelectorException ex) {
+            throw new RSQLException(ex);
+        }
+    }
+
+    private PropertyPath resolveProperty(String property) {
+        try {
+            return PropertyPath.resolve(property, entityClass, null, (SessionFactoryImplementor) sessionFactory);
+        } catch (UnknownSelectorException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Renumber rows of the entities in this set to drop rows of the removed
+     * ones, and rebuild indexes. Must be called with the write lock held.
+     */
+    private void compact() {
+        List<T> remaining = new ArrayList<T>(rows.size());
+        for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+            remaining.add(entities.get(row));
+        }
+        LOG.trace("Compacting {} rows of {} to {}", new Object[]{
+                entities.size(), entityClass.getSimpleName(), remaining.size() });
+
+        entities.clear();
+        entities.addAll(remaining);
+        rows.clear();
+        live.clear();
+        for (int row = 0; row < remaining.size(); row++) {
+            rows.put(remaining.get(row), row);
+            live.set(row);
+        }
+        for (Map.Entry<String, Index> entry : indexes.entrySet()) {
+            Index index = new Index(entry.getValue().path, entry.getValue().bitmap);
+            for (int row = 0; row < remaining.size(); row++) {
+                index.add(row, remaining.get(row));
+            }
+            entry.setValue(index);
+        }
+    }
+
+    private void createIndex(PropertyPath path, boolean bitmap) {
+        lock.writeLock().lock();
+        try {
+            Index index = new Index(path, bitmap);
+            for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+                index.add(row, entities.get(row));
+            }
+            indexes.put(path.getPath(), index);
+            LOG.debug("Created {} index of {}.{} with {} keys", new Object[]{
+                    bitmap ? "bitmap" : "hash", entityClass.getSimpleName(), path, index.rows.size() });
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+
+    ///////////////  INNER CLASSES  ///////////////
+
+    private static class Lookup {
+
+        final BitSet rows;
+        boolean exact;
+
+        Lookup(BitSet rows, boolean exact) {
+            this.rows = rows;
+            this.exact = exact;
+        }
+    }
+
+    /**
+     * Index of values of a property. Hash index holds rows of a value in a
+     * list, bitmap index in a bit set.
+     */
+    private static class Index {
+
+        final PropertyPath path;
+        final boolean bitmap;
+        final Map<Object, Object> rows = new HashMap<Object, Object>();  // key -> List<Integer> or BitSet
+        final Map<Integer, Object> keys = new HashMap<Integer, Object>();
+
+        Index(PropertyPath path, boolean bitmap) {
+            this.path = path;
+            this.bitmap = bitmap;
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(int row, Object entity) {
+            Object key = IndexKeys.normalize(path.getValue(entity));
+            Object bucket = rows.get(key);
+
+            if (bucket == null) {
+                bucket = bitmap ? new BitSet() : new ArrayList<Integer>(1);
+                rows.put(key, bucket);
+            }
+            if (bitmap) {
+                ((BitSet) bucket).set(row);
+            } else {
+                ((List<Integer>) bucket).add(row);
+            }
+            keys.put(row, key);
+        }
+
+        @SuppressWarnings("unchecked")
+        void remove(int row) {
+            Object key = keys.remove(row);
+            Object bucket = rows.get(key);
+
+            if (bitmap) {
+                ((BitSet) bucket).clear(row);
+                if (((BitSet) bucket).isEmpty()) rows.remove(key);
+            } else {
+                ((List<Integer>) bucket).remove(Integer.valueOf(row));
+                if (((List<Integer>) bucket).isEmpty()) rows.remove(key);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        BitSet get(Object value) {
+            Object bucket = rows.get(IndexKeys.normalize(value));
+            BitSet result = new BitSet();
+
+            if (bucket instanceof BitSet) {
+                result.or((BitSet) bucket);
+            } else if (bucket != null) {
+                for (Integer row : (List<Integer>) bucket) {
+                    result.set(row);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Rows with non-null value other than the given one (bitmap only).
+         */
+        BitSet getOthers(Object value) {
+            Object key = IndexKeys.normalize(value);
+            BitSet result = new BitSet();
+
+            for (Map.Entry<Object, Object> entry : rows.entrySet()) {
+                if (entry.getKey() != null && !entry.getKey().equals(key)) {
+                    result.or((BitSet) entry.getValue());
+                }
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.util.List;
+
+/**
+ * One page of results fetched using keyset (seek) pagination.
+ *
+ * @see RSQL2CriteriaConverter#fetchPage(String, List, int, String, Class, org.hibernate.Session)
+ * @param <T> entity type
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class KeysetPage<T> {
+
+    private final List<T> content;
+    private final String nextToken;
+
+
+    /**
+     * Construct a new <tt>KeysetPage</tt>.
+     *
+     * @param content Entities on this page.
+     * @param nextToken Continuation token of the next page, or <tt>null</tt>
+     *        if this is the last page.
+     */
+    public KeysetPage(List<T> content, String nextToken) {
+        this.content = content;
+        this.nextToken = nextToken;
+    }
+
+
+    /**
+     * @return Entities on this page.
+     */
+    public List<T> getContent() {
+        return content;
+    }
+
+    /**
+     * Return an opaque continuation token which should be passed back to fetch
+     * the next page.
+     *
+     * @return The continuation token, or <tt>null</tt> if this is the last page.
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    /**
+     * @return <tt>true</tt> if there's a next page, <tt>false</tt> otherwise.
+     */
+    public boolean hasNext() {
+        return nextToken != null;
+    }
+
+}
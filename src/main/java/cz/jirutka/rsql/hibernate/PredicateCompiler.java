@@ -0,0 +1,805 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.parser.ParseException;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.TokenMgrError;
+import cz.jirutka.rsql.parser.model.Comparison;
+import cz.jirutka.rsql.parser.model.ComparisonExpression;
+import cz.jirutka.rsql.parser.model.Expression;
+import cz.jirutka.rsql.parser.model.LogicalExpression;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiler of RSQL query expressions into {@link EntityPredicate}s that are
+ * evaluated on entities in memory, e.g. entities from the second-level cache
+ * or a preloaded list, without going to the database.
+ *
+ * <p>Selectors are translated via {@linkplain Mapper} and arguments are parsed
+ * by {@linkplain ArgumentParser} in the same way as when converting to
+ * Criteria, so the same query has the same meaning:</p>
+ * <ul>
+ * <li>Selector may be a path through associations. Like JOINs of the
+ * converted Criteria, each association path is bound to one associated
+ * entity (an element of a collection) for the whole query, so comparisons on
+ * the same path must hold for the same element. An entity without any
+ * associated entity on the path doesn't match at all.</li>
+ * <li>Comparison on an association compares its natural identifier, if it
+ * has one, otherwise its identifier.</li>
+ * <li><tt>==</tt> and <tt>!=</tt> with an argument containing <tt>*</tt> is
+ * a case-insensitive <i>like</i>, where <tt>*</tt> and <tt>%</tt> match any
+ * string and <tt>_</tt> any single character.</li>
+ * <li>Argument <tt>NULL</tt> of <tt>==</tt> and <tt>!=</tt> checks for
+ * <tt>null</tt>. Other comparisons with a <tt>null</tt> value are false.</li>
+ * <li>Strings are compared case-sensitively (except <i>like</i>), by their
+ * UTF-16 code units. The database compares them by its collation, that
+ * may be case-insensitive or accent-insensitive, so results may differ
+ * for such columns.</li>
+ * </ul>
+ *
+ * <p>Only the semantics of the built-in {@linkplain AbstractCriterionBuilder
+ * Criterion Builders} is known. When the {@linkplain
+ * #setCriterionBuilders(List) Criterion Builders} of the converter are set,
+ * a query with a selector that some other builder accepts is refused.</p>
+ *
+ * <p>Properties are accessed through getters (or fields, when there's no
+ * getter) that are resolved once when compiling. Proxies are initialized
+ * when accessed, hence lazy associations must be initialized, or the session
+ * must be open.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class PredicateCompiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PredicateCompiler.class);
+
+    private static final Set<Class<?>> BUILT_IN_BUILDERS = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            AssociationsCriterionBuilder.class, NaturalIdCriterionBuilder.class, IdentifierCriterionBuilder.class,
+            NaturalIdCollectionCriterionBuilder.class, IdentifierCollectionCriterionBuilder.class,
+            DefaultCriterionBuilder.class));
+
+    private final SessionFactory sessionFactory;
+    private ArgumentParser argumentParser;
+    private Mapper mapper;
+    private List<AbstractCriterionBuilder> criterionBuilders;
+
+
+    /**
+     * Construct a new Predicate Compiler.
+     *
+     * @param sessionFactory Hibernate <tt>SessionFactory</tt> that will used to
+     *        obtain entities' <tt>ClassMetadata</tt>.
+     */
+    public PredicateCompiler(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+
+    /**
+     * Parse given RSQL query expression and compile it into a predicate on
+     * entities of the given class.
+     *
+     * @param query RSQL query expression
+     * @param entityClass entity class which given query is related to
+     * @return compiled predicate
+     * @throws RSQLException If some problem occured when parsing or compiling
+     *         the query. This is a wrapper exception for
+     *         {@link ParseException}, {@link ArgumentFormatException},
+     *         {@link UnknownSelectorException} and
+     *         {@link UnsupportedSelectorException}.
+     */
+    public <T> EntityPredicate<T> compile(String query, Class<T> entityClass) throws RSQLException {
+        try {
+            return compile(RSQLParser.parse(query), entityClass);
+
+        } catch (ParseException ex) {
+            throw new RSQLException(ex);
+        } catch (TokenMgrError er) {
+            throw new RSQLException(er);
+        }
+    }
+
+    /**
+     * Compile given parsed query into a predicate on entities of the given
+     * class.
+     *
+     * @param queryTree RSQL query expression tree
+     * @param entityClass entity class which given query is related to
+     * @return compiled predicate
+     * @throws RSQLException If some problem occured when compiling the query.
+     *         This is a wrapper exception for {@link ArgumentFormatException},
+     *         {@link UnknownSelectorException} and
+     *         {@link UnsupportedSelectorException}.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> EntityPredicate<T> compile(Expression queryTree, Class<T> entityClass) throws RSQLException {
+        Map<String, Binding> bindings = new LinkedHashMap<String, Binding>();
+        Condition condition = createCondition(queryTree, entityClass, bindings);
+
+        return (EntityPredicate<T>) new BoundPredicate(condition,
+                bindings.values().toArray(new Binding[bindings.size()]));
+    }
+
+    /**
+     * Return entities matching given predicate, in the same order.
+     *
+     * @param entities entities to filter
+     * @param predicate predicate
+     * @return matching entities
+     */
+    public static <T> List<T> filter(Collection<? extends T> entities, EntityPredicate<? super T> predicate) {
+        List<T> result = new ArrayList<T>();
+        for (T entity : entities) {
+            if (predicate.evaluate(entity)) result.add(entity);
+        }
+        return result;
+    }
+
+    /**
+     * Return entities matching given predicate, in the same order. Chunks of
+     * the list are evaluated in parallel on the given executor. This should
+     * be used only with detached entities with initialized associations,
+     * because a Hibernate session is not thread-safe.
+     *
+     * @param entities entities to filter
+     * @param predicate predicate
+     * @param executor executor to evaluate chunks on
+     * @param chunkSize number of entities evaluated by one task, must be
+     *        greater than 0
+     * @return matching entities
+     * @throws IllegalStateException If the current thread was interrupted.
+     */
+    public static <T> List<T> filter(List<? extends T> entities, final EntityPredicate<? super T> predicate,
+            ExecutorService executor, int chunkSize) {
+        assert chunkSize > 0 : "chunkSize must be greater than 0";
+
+        if (entities.size() <= chunkSize) {
+            return filter(entities, predicate);
+        }
+
+        List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>(entities.size() / chunkSize + 1);
+        for (int i = 0; i < entities.size(); i += chunkSize) {
+            final List<? extends T> chunk = entities.subList(i, Math.min(i + chunkSize, entities.size()));
+
+            futures.add(executor.submit(new Callable<List<T>>() {
+                public List<T> call() {
+                    return filter(chunk, predicate);
+                }
+            }));
+        }
+
+        List<T> result = new ArrayList<T>();
+        try {
+            for (Future<List<T>> future : futures) {
+                result.addAll(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while filtering", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            if (ex.getCause() instanceof Error) throw (Error) ex.getCause();
+            throw new IllegalStateException(ex.getCause());
+        }
+        return result;
+    }
+
+
+    public ArgumentParser getArgumentParser() {
+        return argumentParser;
+    }
+
+    /**
+     * Set Argument Parser that is used to parse arguments of comparisons.
+     *
+     * @param argumentParser An <tt>ArgumentParser</tt> instance,
+     *        must not be <tt>null</tt>.
+     */
+    public void setArgumentParser(ArgumentParser argumentParser) {
+        this.argumentParser = argumentParser;
+    }
+
+    public Mapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Set Mapper that is used to translate selectors to property names.
+     *
+     * @param mapper A <tt>Mapper</tt> instance, must not be <tt>null</tt>.
+     */
+    public void setMapper(Mapper mapper) {
+        this.mapper = mapper;
+    }
+
+    public List<AbstractCriterionBuilder> getCriterionBuilders() {
+        return criterionBuilders;
+    }
+
+    /**
+     * Set stack of Criterion Builders used by the converter, so queries with
+     * a selector handled by a custom builder are refused.
+     *
+     * @param criterionBuilders List of Criterion Builders, or <tt>null</tt>
+     *        to not check selectors (default).
+     */
+    public void setCriterionBuilders(List<AbstractCriterionBuilder> criterionBuilders) {
+        this.criterionBuilders = criterionBuilders;
+    }
+
+    /**
+     * Check that comparison on given path would be converted to Criteria
+     * by one of the built-in Criterion Builders of the stack, i.e. that it
+     * has the same meaning when evaluated in memory. For a path through
+     * associations the last property is checked too, as it's delegated by
+     * {@link AssociationsCriterionBuilder} back to the stack.
+     *
+     * @param builders stack of Criterion Builders
+     * @param path resolved path of the selector
+     * @param mapper mapper used to translate the selector
+     * @param sessionFactory session factory to obtain class metadata from
+     * @return <tt>true</tt> if handled by a built-in builder
+     */
+    static boolean isHandledByBuiltInBuilder(List<AbstractCriterionBuilder> builders, PropertyPath path,
+            Mapper mapper, SessionFactoryImplementor sessionFactory) {
+
+        CriteriaBuilder parent = new MetadataBuilder(sessionFactory, mapper);
+        Class<?> entityClass = path.getOwner(0);
+        String property = (mapper != null) ? mapper.translate(path.getSelector(), entityClass) : path.getSelector();
+
+        AbstractCriterionBuilder builder = findBuilder(builders, property, entityClass, parent);
+        if (builder instanceof AssociationsCriterionBuilder && path.length() > 1) {
+            int last = path.length() - 1;
+            builder = findBuilder(builders, path.getProperties()[last], path.getOwner(last), parent);
+        }
+        return builder != null && BUILT_IN_BUILDERS.contains(builder.getClass());
+    }
+
+
+    private Condition createCondition(Expression expression, Class<?> entityClass, Map<String, Binding> bindings)
+            throws RSQLException {
+
+        if (expression.isComparison()) {
+            return createCondition((ComparisonExpression) expression, entityClass, bindings);
+        }
+        LogicalExpression logical = (LogicalExpression) expression;
+        Condition left = createCondition(logical.getLeft(), entityClass, bindings);
+        Condition right = createCondition(logical.getRight(), entityClass, bindings);
+
+        switch (logical.getOperator()) {
+            case AND : return new And(left, right);
+            case OR : return new Or(left, right);
+        }
+        throw new IllegalArgumentException("Unknown operator: " + logical.getOperator());
+    }
+
+    private Condition createCondition(ComparisonExpression comparison, Class<?> entityClass,
+            Map<String, Binding> bindings) throws RSQLException {
+
+        Comparison operator = comparison.getOperator();
+        String argument = comparison.getArgument();
+        PropertyPath path;
+        try {
+            path = PropertyPath.resolve(comparison.getSelector(), entityClass, mapper,
+                    (SessionFactoryImplementor) sessionFactory);
+        } catch (UnknownSelectorException ex) {
+            throw new RSQLException(ex);
+        }
+        if (criterionBuilders != null && !isHandledByBuiltInBuilder(criterionBuilders, path, mapper,
+                (SessionFactoryImplementor) sessionFactory)) {
+            throw new RSQLException(new UnsupportedSelectorException(comparison.getSelector(),
+                    "handled by a custom Criterion Builder, cannot be evaluated in memory"));
+        }
+        LOG.trace("Compiling comparison {} on {}", comparison, path);
+
+        if (AbstractCriterionBuilder.NULL_ARGUMENT.equals(argument)
+                && (operator == Comparison.EQUAL || operator == Comparison.NOT_EQUAL)) {
+            return new NullCheck(createAccessor(path, false, bindings), operator == Comparison.EQUAL);
+        }
+        Accessor accessor = createAccessor(path, true, bindings);
+
+        Object value;
+        try {
+            value = argumentParser.parse(argument, accessor.getType());
+        } catch (ArgumentFormatException ex) {
+            throw new RSQLException(
+                    new ArgumentFormatException(comparison.getSelector(), ex.getArgument(), ex.getPropertyType()));
+        }
+
+        if (value instanceof String && argument.contains(AbstractCriterionBuilder.LIKE_WILDCARD.toString())
+                && (operator == Comparison.EQUAL || operator == Comparison.NOT_EQUAL)) {
+            return new Like(accessor, (String) value, operator == Comparison.EQUAL);
+        }
+        return new Compare(accessor, operator, value);
+    }
+
+    /**
+     * Create accessor of the given property path. When the path ends with an
+     * association and <tt>withKey</tt> is set, the associated entity's natural
+     * identifier (or identifier) is appended.
+     *
+     * <p>Associations on the path are bound, i.e. they are accessed through
+     * the shared bindings. The last association is bound too when its key is
+     * compared, unless it's an identifier of a to-one association (that
+     * doesn't need a JOIN).</p>
+     */
+    private Accessor createAccessor(PropertyPath path, boolean withKey, Map<String, Binding> bindings) {
+        String[] properties = path.getProperties();
+        int last = properties.length - 1;
+        Class<?> type = path.getType();
+
+        if (withKey && path.isAssociation()) {
+            ClassMetadata metadata = sessionFactory.getClassMetadata(type);
+            String keyName;
+            Type keyType;
+            boolean naturalId = metadata.hasNaturalIdentifier();
+
+            if (naturalId) {
+                int idx = metadata.getNaturalIdentifierProperties()[0];
+                keyName = metadata.getPropertyNames()[idx];
+                keyType = metadata.getPropertyTypes()[idx];
+            } else {
+                keyName = metadata.getIdentifierPropertyName();
+                keyType = metadata.getIdentifierType();
+            }
+            Member key = findMember(type, keyName);
+            type = keyType.getReturnedClass();
+
+            if (naturalId || path.getPropertyType(last).isCollectionType()) {
+                return new Accessor(bind(path, properties.length, bindings), new Member[]{ key },
+                        type, path.getSelector());
+            }
+            return new Accessor(bind(path, last, bindings),
+                    new Member[]{ findMember(path.getOwner(last), properties[last]), key }, type, path.getSelector());
+        }
+
+        return new Accessor(bind(path, last, bindings),
+                new Member[]{ findMember(path.getOwner(last), properties[last]) }, type, path.getSelector());
+    }
+
+    /**
+     * Return binding of the first <tt>length</tt> properties of the path,
+     * create it (and its parents) if doesn't exist yet.
+     *
+     * @return binding, or <tt>null</tt> for the root entity
+     */
+    private Binding bind(PropertyPath path, int length, Map<String, Binding> bindings) {
+        if (length == 0) {
+            return null;
+        }
+        String[] properties = path.getProperties();
+        StringBuilder key = new StringBuilder(properties[0]);
+        for (int i = 1; i < length; i++) {
+            key.append('.').append(properties[i]);
+        }
+
+        Binding binding = bindings.get(key.toString());
+        if (binding == null) {
+            Binding parent = bind(path, length - 1, bindings);
+            Member member = findMember(path.getOwner(length - 1), properties[length - 1]);
+
+            binding = new Binding(bindings.size(), parent, member);
+            bindings.put(key.toString(), binding);
+        }
+        return binding;
+    }
+
+    /**
+     * Return the first builder of the stack that accepts given property, or
+     * <tt>null</tt> if none.
+     */
+    private static AbstractCriterionBuilder findBuilder(List<AbstractCriterionBuilder> builders, String property,
+            Class<?> entityClass, CriteriaBuilder parent) {
+
+        for (AbstractCriterionBuilder builder : builders) {
+            if (builder.accept(property, entityClass, parent)) return builder;
+        }
+        return null;
+    }
+
+    /**
+     * Find public getter of the given property, or the field if there's no
+     * getter.
+     */
+    private static Member findMember(Class<?> clazz, String property) {
+        String capitalized = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+
+        for (String name : Arrays.asList("get" + capitalized, "is" + capitalized)) {
+            try {
+                return clazz.getMethod(name);
+            } catch (NoSuchMethodException ex) {
+                // try next
+            }
+        }
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(property);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException ex) {
+                // try superclass
+            }
+        }
+        throw new IllegalArgumentException("Cannot find getter nor field of " + property + " in " + clazz);
+    }
+
+    /**
+     * Convert the argument of a <i>like</i> comparison into a case-insensitive
+     * regular expression with the same meaning as {@link
+     * AbstractCriterionBuilder#createLike(String, Object)}.
+     *
+     * @param like argument with wildcards
+     * @return compiled pattern
+     */
+    static Pattern toLikePattern(String like) {
+        StringBuilder regex = new StringBuilder(like.length() + 8);
+        StringBuilder literal = new StringBuilder();
+
+        for (char ch : like.toCharArray()) {
+            if (ch == AbstractCriterionBuilder.LIKE_WILDCARD || ch == '%' || ch == '_') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(ch == '_' ? "." : ".*");
+            } else {
+                literal.append(ch);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+
+
+    ///////////////  INNER CLASSES  ///////////////
+
+    /**
+     * Return values of the member of given owner. Collections are flattened
+     * and <tt>null</tt> owner has no values.
+     */
+    private static List<Object> getValues(Member member, Object owner) {
+        if (owner == null) {
+            return Collections.emptyList();
+        }
+        if (owner instanceof HibernateProxy) {
+            owner = ((HibernateProxy) owner).getHibernateLazyInitializer().getImplementation();
+        }
+        Object value;
+        try {
+            value = (member instanceof Method)
+                    ? ((Method) member).invoke(owner)
+                    : ((Field) member).get(owner);
+
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException("Failed to get " + member.getName(), ex.getCause());
+        }
+
+        if (value instanceof Collection) {
+            return new ArrayList<Object>((Collection<?>) value);
+        } else if (value instanceof Map) {
+            return new ArrayList<Object>(((Map<?, ?>) value).values());
+        }
+        return Collections.singletonList(value);
+    }
+
+
+    /**
+     * Compiled condition evaluated on an entity and associated entities bound
+     * to the query's association paths.
+     */
+    private static interface Condition {
+
+        boolean evaluate(Object entity, Object[] bound);
+    }
+
+    /**
+     * Association path bound to one associated entity, i.e. an alias.
+     */
+    /**
+     * Criteria Builder that provides only metadata for the <tt>accept()</tt>
+     * methods of Criterion Builders, there are no Criteria to build.
+     */
+    private static class MetadataBuilder implements CriteriaBuilder {
+
+        private final SessionFactoryImplementor sessionFactory;
+        private final Mapper mapper;
+
+        MetadataBuilder(SessionFactoryImplementor sessionFactory, Mapper mapper) {
+            this.sessionFactory = sessionFactory;
+            this.mapper = mapper;
+        }
+
+        public String createAssociationAlias(String associationPath) {
+            throw new UnsupportedOperationException("Not building Criteria");
+        }
+
+        public String createAssociationAlias(String associationPath, int joinType) {
+            throw new UnsupportedOperationException("Not building Criteria");
+        }
+
+        public Criterion delegateToBuilder(String property, Comparison operator, String argument,
+                Class<?> entityClass, String alias) {
+            throw new UnsupportedOperationException("Not building Criteria");
+        }
+
+        public ArgumentParser getArgumentParser() {
+            throw new UnsupportedOperationException("Not parsing arguments");
+        }
+
+        public ClassMetadata getClassMetadata(Class<?> entityClass) {
+            return sessionFactory.getClassMetadata(entityClass);
+        }
+
+        public Mapper getMapper() {
+            return mapper;
+        }
+
+        public String getRootAlias() {
+            return RSQL2CriteriaConverter.ROOT_ALIAS;
+        }
+
+        public SessionFactoryImplementor getSessionFactory() {
+            return sessionFactory;
+        }
+    }
+
+    private static class Binding {
+
+        final int index;
+        final Binding parent;
+        final Member member;
+
+        Binding(int index, Binding parent, Member member) {
+            this.index = index;
+            this.parent = parent;
+            this.member = member;
+        }
+    }
+
+    /**
+     * Predicate that matches an entity when its condition holds for any
+     * combination of associated entities bound to the association paths.
+     */
+    private static class BoundPredicate implements EntityPredicate<Object> {
+
+        private final Condition condition;
+        private final Binding[] bindings;  // parents precede children
+
+        BoundPredicate(Condition condition, Binding[] bindings) {
+            this.condition = condition;
+            this.bindings = bindings;
+        }
+
+        public boolean evaluate(Object entity) {
+            return evaluate(entity, new Object[bindings.length], 0);
+        }
+
+        private boolean evaluate(Object entity, Object[] bound, int idx) {
+            if (idx == bindings.length) {
+                return condition.evaluate(entity, bound);
+            }
+            Binding binding = bindings[idx];
+            Object owner = (binding.parent != null) ? bound[binding.parent.index] : entity;
+
+            for (Object associated : getValues(binding.member, owner)) {
+                if (associated == null) continue;
+
+                bound[idx] = associated;
+                if (evaluate(entity, bound, idx + 1)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Accessor of values on a property path, relative to its binding.
+     */
+    private static class Accessor {
+
+        private final Binding binding;
+        private final Member[] members;
+        private final Class<?> type;
+        private final String selector;
+
+        Accessor(Binding binding, Member[] members, Class<?> type, String selector) {
+            this.binding = binding;
+            this.members = members;
+            this.type = type;
+            this.selector = selector;
+        }
+
+        /**
+         * Return values of the last property. Collections after the binding
+         * are flattened and <tt>null</tt> associations are skipped, so the
+         * result may be empty.
+         */
+        List<Object> getValues(Object entity, Object[] bound) {
+            List<Object> current = Collections.singletonList(
+                    (binding != null) ? bound[binding.index] : entity);
+
+            for (Member member : members) {
+                List<Object> next = new ArrayList<Object>(current.size());
+
+                for (Object owner : current) {
+                    next.addAll(PredicateCompiler.getValues(member, owner));
+                }
+                current = next;
+            }
+            return current;
+        }
+
+        Class<?> getType() {
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return selector;
+        }
+    }
+
+    private static class And implements Condition {
+
+        private final Condition left, right;
+
+        And(Condition left, Condition right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public boolean evaluate(Object entity, Object[] bound) {
+            return left.evaluate(entity, bound) && right.evaluate(entity, bound);
+        }
+    }
+
+    private static class Or implements Condition {
+
+        private final Condition left, right;
+
+        Or(Condition left, Condition right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public boolean evaluate(Object entity, Object[] bound) {
+            return left.evaluate(entity, bound) || right.evaluate(entity, bound);
+        }
+    }
+
+    private static class NullCheck implements Condition {
+
+        private final Accessor accessor;
+        private final boolean isNull;
+
+        NullCheck(Accessor accessor, boolean isNull) {
+            this.accessor = accessor;
+            this.isNull = isNull;
+        }
+
+        public boolean evaluate(Object entity, Object[] bound) {
+            for (Object value : accessor.getValues(entity, bound)) {
+                if ((value == null) == isNull) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Case-insensitive like with the same wildcards as
+     * {@link AbstractCriterionBuilder#createLike(String, Object)}.
+     */
+    private static class Like implements Condition {
+
+        private final Accessor accessor;
+        private final Pattern pattern;
+        private final boolean matches;
+
+        Like(Accessor accessor, String like, boolean matches) {
+            this.accessor = accessor;
+            this.pattern = toLikePattern(like);
+            this.matches = matches;
+        }
+
+        public boolean evaluate(Object entity, Object[] bound) {
+            for (Object value : accessor.getValues(entity, bound)) {
+                if (value != null && pattern.matcher(value.toString()).matches() == matches) return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Compare implements Condition {
+
+        private final Accessor accessor;
+        private final Comparison operator;
+        private final Object argument;
+
+        Compare(Accessor accessor, Comparison operator, Object argument) {
+            this.accessor = accessor;
+            this.operator = operator;
+            this.argument = argument;
+        }
+
+        public boolean evaluate(Object entity, Object[] bound) {
+            for (Object value : accessor.getValues(entity, bound)) {
+                if (value != null && test(value)) return true;
+            }
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean test(Object value) {
+            if (!(value instanceof Comparable)) {
+                switch (operator) {
+                    case EQUAL : return value.equals(argument);
+                    case NOT_EQUAL : return !value.equals(argument);
+                    default : throw new IllegalArgumentException(
+                            "Cannot compare " + value.getClass() + " by " + operator);
+                }
+            }
+            int result = ((Comparable<Object>) value).compareTo(argument);
+
+            switch (operator) {
+                case EQUAL : return result == 0;
+                case NOT_EQUAL : return result != 0;
+                case GREATER_THAN : return result > 0;
+                case GREATER_EQUAL : return result >= 0;
+                case LESS_THAN : return result < 0;
+                case LESS_EQUAL : return result <= 0;
+            }
+            throw new IllegalArgumentException("Unknown operator: " + operator);
+        }
+    }
+
+}
@@ -0,0 +1,399 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.parser.model.Comparison;
+import cz.jirutka.rsql.parser.model.ComparisonExpression;
+import cz.jirutka.rsql.parser.model.Expression;
+import cz.jirutka.rsql.parser.model.Logical;
+import cz.jirutka.rsql.parser.model.LogicalExpression;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.proxy.HibernateProxy;
+
+/**
+ * Inverted index of many standing RSQL queries, used to quickly find the
+ * queries that may match a given entity, so only these have to be fully
+ * evaluated (e.g. by {@link PredicateCompiler}).
+ *
+ * <p>The top-level conjuncts of each query (i.e. comparisons joined by AND
+ * at the root) are indexed when they compare a basic property on
+ * a single-valued path: equality by (path, value) in a hash map, ranges
+ * (<tt>=gt=</tt>, <tt>=ge=</tt>, <tt>=lt=</tt>, <tt>=le=</tt>) by their
+ * bound in a sorted map per operator. Other comparisons and OR subtrees are
+ * not indexed. When looking up candidates for an entity, each path is read
+ * once, satisfied conjuncts are found in the maps and counted per query;
+ * a query is a candidate when all of its indexed conjuncts are satisfied.
+ * A query without any indexed conjunct is always a candidate.</p>
+ *
+ * @param <V> type of values associated with the queries, e.g. subscriptions
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class PredicateIndex<V> {
+
+    private final SessionFactory sessionFactory;
+    private final PredicateCompiler compiler;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Class<?>, ClassIndex<V>> classes = new LinkedHashMap<Class<?>, ClassIndex<V>>();  // guarded by lock
+    private final Map<V, Entry<V>> entries = new HashMap<V, Entry<V>>();  // guarded by lock
+
+
+    /**
+     * Construct a new empty <tt>PredicateIndex</tt>.
+     *
+     * @param sessionFactory factory to obtain metadata from
+     * @param compiler compiler whose Mapper and Argument Parser are used to
+     *        resolve selectors and arguments
+     */
+    public PredicateIndex(SessionFactory sessionFactory, PredicateCompiler compiler) {
+        this.sessionFactory = sessionFactory;
+        this.compiler = compiler;
+    }
+
+
+    /**
+     * Add a query to the index.
+     *
+     * @param value value associated with the query, it's returned as
+     *        a candidate
+     * @param queryTree RSQL query expression tree
+     * @param entityClass entity class which given query is related to
+     */
+    public void add(V value, Expression queryTree, Class<?> entityClass) {
+        List<ComparisonExpression> conjuncts = new ArrayList<ComparisonExpression>();
+        collectConjuncts(queryTree, conjuncts);
+
+        lock.writeLock().lock();
+        try {
+            remove(value);
+
+            ClassIndex<V> classIndex = classes.get(entityClass);
+            if (classIndex == null) {
+                classIndex = new ClassIndex<V>();
+                classes.put(entityClass, classIndex);
+            }
+            Entry<V> entry = new Entry<V>(value, entityClass, classIndex);
+
+            for (ComparisonExpression comparison : conjuncts) {
+                PropertyPath path = resolveIndexable(comparison.getSelector(), entityClass);
+                if (path == null) continue;
+
+                Object key = parseKey(comparison, path);
+                if (key == null) continue;
+
+                PathIndex<V> pathIndex = classIndex.paths.get(path.getPath());
+                if (pathIndex == null) {
+                    pathIndex = new PathIndex<V>(path);
+                    classIndex.paths.put(path.getPath(), pathIndex);
+                }
+                entry.placements.add(pathIndex.add(comparison.getOperator(), key, entry));
+            }
+            if (entry.placements.isEmpty()) {
+                classIndex.unindexed.add(entry);
+            }
+            entries.put(value, entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a query from the index. Buckets and indexes left empty are
+     * removed too.
+     *
+     * @param value value associated with the query
+     * @return <tt>false</tt> if there's no such value
+     */
+    public boolean remove(V value) {
+        lock.writeLock().lock();
+        try {
+            Entry<V> entry = entries.remove(value);
+            if (entry == null) return false;
+
+            ClassIndex<V> classIndex = entry.classIndex;
+            for (Placement<V> placement : entry.placements) {
+                placement.remove(entry);
+
+                PathIndex<V> pathIndex = placement.pathIndex;
+                if (pathIndex.isEmpty()) {
+                    classIndex.paths.remove(pathIndex.path.getPath());
+                }
+            }
+            classIndex.unindexed.remove(entry);
+
+            if (classIndex.paths.isEmpty() && classIndex.unindexed.isEmpty()) {
+                classes.remove(entry.entityClass);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find queries that may match the given entity, i.e. queries related to
+     * its class or superclass with all indexed conjuncts satisfied.
+     *
+     * @param entity entity
+     * @return values associated with the candidate queries
+     */
+    public Set<V> candidates(Object entity) {
+        if (entity instanceof HibernateProxy) {
+            entity = ((HibernateProxy) entity).getHibernateLazyInitializer().getImplementation();
+        }
+        Set<V> result = new LinkedHashSet<V>();
+
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Class<?>, ClassIndex<V>> classEntry : classes.entrySet()) {
+                if (classEntry.getKey().isInstance(entity)) {
+                    classEntry.getValue().candidates(entity, result);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of indexed queries.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private void collectConjuncts(Expression expression, List<ComparisonExpression> conjuncts) {
+        if (expression.isComparison()) {
+            conjuncts.add((ComparisonExpression) expression);
+        } else if (((LogicalExpression) expression).getOperator() == Logical.AND) {
+            collectConjuncts(((LogicalExpression) expression).getLeft(), conjuncts);
+            collectConjuncts(((LogicalExpression) expression).getRight(), conjuncts);
+        }
+    }
+
+    /**
+     * @return Resolved path of a basic single-valued property, or
+     *         <tt>null</tt> if it can't be indexed.
+     */
+    private PropertyPath resolveIndexable(String selector, Class<?> entityClass) {
+        try {
+            PropertyPath path = PropertyPath.resolve(selector, entityClass, compiler.getMapper(),
+                    (SessionFactoryImplementor) sessionFactory);
+
+            return (path.isCollectionValued() || path.isAssociation()) ? null : path;
+
+        } catch (UnknownSelectorException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Normalized argument of an indexable comparison, or
+     *         <tt>null</tt> if the comparison can't be indexed.
+     */
+    private Object parseKey(ComparisonExpression comparison, PropertyPath path) {
+        Comparison operator = comparison.getOperator();
+        String argument = comparison.getArgument();
+
+        if (operator == Comparison.NOT_EQUAL || AbstractCriterionBuilder.NULL_ARGUMENT.equals(argument)) {
+            return null;
+        }
+        Object value;
+        try {
+            value = compiler.getArgumentParser().parse(argument, path.getType());
+        } catch (ArgumentFormatException ex) {
+            return null;
+        }
+        if (value instanceof String && argument.contains(AbstractCriterionBuilder.LIKE_WILDCARD.toString())) {
+            return null;
+        }
+        value = IndexKeys.normalize(value);
+
+        return (operator == Comparison.EQUAL || value instanceof Comparable) ? value : null;
+    }
+
+
+
+    ///////////////  INNER CLASSES  ///////////////
+
+    private static class Entry<V> {
+
+        final V value;
+        final Class<?> entityClass;
+        final ClassIndex<V> classIndex;
+        final List<Placement<V>> placements = new ArrayList<Placement<V>>();
+
+        Entry(V value, Class<?> entityClass, ClassIndex<V> classIndex) {
+            this.value = value;
+            this.entityClass = entityClass;
+            this.classIndex = classIndex;
+        }
+    }
+
+    /**
+     * Bucket of a path index that an entry has been added to.
+     */
+    private static class Placement<V> {
+
+        final PathIndex<V> pathIndex;
+        final Map<Object, List<Entry<V>>> map;
+        final Object key;
+
+        Placement(PathIndex<V> pathIndex, Map<Object, List<Entry<V>>> map, Object key) {
+            this.pathIndex = pathIndex;
+            this.map = map;
+            this.key = key;
+        }
+
+        void remove(Entry<V> entry) {
+            List<Entry<V>> entries = map.get(key);
+            entries.remove(entry);
+
+            if (entries.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static class ClassIndex<V> {
+
+        final Map<String, PathIndex<V>> paths = new LinkedHashMap<String, PathIndex<V>>();
+        final Set<Entry<V>> unindexed = new LinkedHashSet<Entry<V>>();
+
+        void candidates(Object entity, Set<V> result) {
+            Map<Entry<V>, Integer> counts = new LinkedHashMap<Entry<V>, Integer>();
+
+            for (PathIndex<V> pathIndex : paths.values()) {
+                pathIndex.count(entity, counts);
+            }
+            for (Map.Entry<Entry<V>, Integer> count : counts.entrySet()) {
+                if (count.getValue() == count.getKey().placements.size()) {
+                    result.add(count.getKey().value);
+                }
+            }
+            for (Entry<V> entry : unindexed) {
+                result.add(entry.value);
+            }
+        }
+    }
+
+    /**
+     * Conjuncts on one property path.
+     */
+    private static class PathIndex<V> {
+
+        final PropertyPath path;
+        final Map<Object, List<Entry<V>>> equal = new HashMap<Object, List<Entry<V>>>();
+        final NavigableMap<Object, List<Entry<V>>> greaterThan = new TreeMap<Object, List<Entry<V>>>();
+        final NavigableMap<Object, List<Entry<V>>> greaterEqual = new TreeMap<Object, List<Entry<V>>>();
+        final NavigableMap<Object, List<Entry<V>>> lessThan = new TreeMap<Object, List<Entry<V>>>();
+        final NavigableMap<Object, List<Entry<V>>> lessEqual = new TreeMap<Object, List<Entry<V>>>();
+
+        PathIndex(PropertyPath path) {
+            this.path = path;
+        }
+
+        /**
+         * @return The bucket the entry has been added to.
+         */
+        Placement<V> add(Comparison operator, Object key, Entry<V> entry) {
+            Map<Object, List<Entry<V>>> map;
+            switch (operator) {
+                case GREATER_THAN : map = greaterThan; break;
+                case GREATER_EQUAL : map = greaterEqual; break;
+                case LESS_THAN : map = lessThan; break;
+                case LESS_EQUAL : map = lessEqual; break;
+                default : map = equal;
+            }
+            List<Entry<V>> entries = map.get(key);
+            if (entries == null) {
+                entries = new ArrayList<Entry<V>>(1);
+                map.put(key, entries);
+            }
+            entries.add(entry);
+
+            return new Placement<V>(this, map, key);
+        }
+
+        boolean isEmpty() {
+            return equal.isEmpty() && greaterThan.isEmpty() && greaterEqual.isEmpty()
+                    && lessThan.isEmpty() && lessEqual.isEmpty();
+        }
+
+        /**
+         * Increment counts of the entries whose conjunct is satisfied by the
+         * entity's value.
+         */
+        void count(Object entity, Map<Entry<V>, Integer> counts) {
+            Object value = IndexKeys.normalize(path.getValue(entity));
+            if (value == null) return;
+
+            count(equal.get(value), counts);
+
+            if (value instanceof Comparable) {
+                // value > bound, i.e. bounds lower than value
+                count(greaterThan.headMap(value, false).values(), counts);
+                count(greaterEqual.headMap(value, true).values(), counts);
+                count(lessThan.tailMap(value, false).values(), counts);
+                count(lessEqual.tailMap(value, true).values(), counts);
+            }
+        }
+
+        private void count(Collection<List<Entry<V>>> lists, Map<Entry<V>, Integer> counts) {
+            for (List<Entry<V>> entries : lists) {
+                count(entries, counts);
+            }
+        }
+
+        private void count(List<Entry<V>> entries, Map<Entry<V>, Integer> counts) {
+            if (entries == null) return;
+
+            for (Entry<V> entry : entries) {
+                Integer count = counts.get(entry);
+                counts.put(entry, (count == null) ? 1 : count + 1);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.util.Arrays;
+import org.hibernate.EntityMode;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.Type;
+
+/**
+ * Selector resolved to a path of entity properties. Each property of the path,
+ * except the last one, is an association to the entity that owns the next
+ * property. It's resolved in the same way as selectors of comparisons, i.e.
+ * a selector is translated via {@linkplain Mapper} as a whole and then each
+ * property of a dot-separated path again in context of its entity.
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class PropertyPath {
+
+    private final String selector;
+    private final String[] properties;
+    private final Class<?>[] owners;
+    private final Type[] types;
+    private final SessionFactoryImplementor sessionFactory;
+
+
+    private PropertyPath(String selector, String[] properties, Class<?>[] owners, Type[] types,
+            SessionFactoryImplementor sessionFactory) {
+        this.selector = selector;
+        this.properties = properties;
+        this.owners = owners;
+        this.types = types;
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Resolve given selector to a property path.
+     *
+     * @param selector Selector or dot-separated path of selectors.
+     * @param entityClass Root entity class.
+     * @param mapper Mapper used to translate selectors to property names, or
+     *        <tt>null</tt> if the selector is already a property path.
+     * @param sessionFactory session factory to obtain class metadata from
+     * @return resolved property path
+     * @throws UnknownSelectorException If some property doesn't exist or
+     *         the path dereferences a property that is not an association.
+     */
+    public static PropertyPath resolve(String selector, Class<?> entityClass, Mapper mapper,
+            SessionFactoryImplementor sessionFactory) throws UnknownSelectorException {
+
+        String[] path = translate(selector, entityClass, mapper).split("\\.");
+        String[] properties = new String[path.length];
+        Class<?>[] owners = new Class<?>[path.length];
+        Type[] types = new Type[path.length];
+        Class<?> lastClass = entityClass;
+
+        for (int i = 0; i < path.length; i++) {
+            ClassMetadata metadata = sessionFactory.getClassMetadata(lastClass);
+            if (metadata == null) {
+                throw new UnknownSelectorException(selector);
+            }
+            String property = (path.length > 1) ? translate(path[i], lastClass, mapper) : path[i];
+
+            if (property.equals(metadata.getIdentifierPropertyName())) {
+                types[i] = metadata.getIdentifierType();
+            } else if (Arrays.asList(metadata.getPropertyNames()).contains(property)) {
+                types[i] = metadata.getPropertyType(property);
+            } else {
+                throw new UnknownSelectorException(selector);
+            }
+            properties[i] = property;
+            owners[i] = lastClass;
+
+            if (types[i].isCollectionType() && types[i].isAssociationType()) {
+                lastClass = ((CollectionType) types[i]).getElementType(sessionFactory).getReturnedClass();
+            } else {
+                lastClass = types[i].getReturnedClass();
+            }
+        }
+
+        return new PropertyPath(selector, properties, owners, types, sessionFactory);
+    }
+
+    private static String translate(String selector, Class<?> entityClass, Mapper mapper) {
+        return (mapper != null) ? mapper.translate(selector, entityClass) : selector;
+    }
+
+
+    /**
+     * @return <tt>true</tt> if some property of this path is a collection.
+     */
+    public boolean isCollectionValued() {
+        for (Type type : types) {
+            if (type.isCollectionType()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return <tt>true</tt> if the last property is an association.
+     */
+    public boolean isAssociation() {
+        return types[types.length -1].isAssociationType();
+    }
+
+    /**
+     * @return <tt>true</tt> if this path is an identifier of the root entity.
+     */
+    public boolean isRootIdentifier() {
+        return properties.length == 1
+                && properties[0].equals(getClassMetadata(0).getIdentifierPropertyName());
+    }
+
+    /**
+     * Return the java type of the last property. For a collection of
+     * associations, it returns type of the associated entity.
+     *
+     * @return java type of the property
+     */
+    public Class<?> getType() {
+        Type type = types[types.length -1];
+
+        if (type.isCollectionType() && type.isAssociationType()) {
+            return ((CollectionType) type).getElementType(sessionFactory).getReturnedClass();
+        }
+        return type.getReturnedClass();
+    }
+
+    /**
+     * Get value of this property path from the given entity. Proxies of
+     * associated entities are initialized when necessary.
+     *
+     * @param entity instance of the root entity
+     * @return Value of the last property, or <tt>null</tt> if some association
+     *         on the path is <tt>null</tt>.
+     * @throws IllegalStateException If this path is collection-valued.
+     */
+    public Object getValue(Object entity) {
+        if (isCollectionValued()) {
+            throw new IllegalStateException("Cannot get single value of collection path " + getPath());
+        }
+        Object value = entity;
+
+        for (int i = 0; i < properties.length && value != null; i++) {
+            if (value instanceof HibernateProxy) {
+                value = ((HibernateProxy) value).getHibernateLazyInitializer().getImplementation();
+            }
+            ClassMetadata metadata = getClassMetadata(i);
+
+            value = properties[i].equals(metadata.getIdentifierPropertyName())
+                    ? metadata.getIdentifier(value, EntityMode.POJO)
+                    : metadata.getPropertyValue(value, properties[i], EntityMode.POJO);
+        }
+        return value;
+    }
+
+    /**
+     * @return The original selector.
+     */
+    public String getSelector() {
+        return selector;
+    }
+
+    /**
+     * @return Dot-separated path of property names.
+     */
+    public String getPath() {
+        StringBuilder sb = new StringBuilder(properties[0]);
+        for (int i = 1; i < properties.length; i++) {
+            sb.append('.').append(properties[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Property names of this path.
+     */
+    public String[] getProperties() {
+        return properties.clone();
+    }
+
+    /**
+     * @param index index of the property in this path
+     * @return Class of the entity that owns the specified property.
+     */
+    public Class<?> getOwner(int index) {
+        return owners[index];
+    }
+
+    /**
+     * @param index index of the property in this path
+     * @return Hibernate type of the specified property.
+     */
+    public Type getPropertyType(int index) {
+        return types[index];
+    }
+
+    /**
+     * @return Number of properties in this path.
+     */
+    public int length() {
+        return properties.length;
+    }
+
+    @Override
+    public String toString() {
+        return getPath();
+    }
+
+
+    private ClassMetadata getClassMetadata(int index) {
+        return sessionFactory.getClassMetadata(owners[index]);
+    }
+
+}
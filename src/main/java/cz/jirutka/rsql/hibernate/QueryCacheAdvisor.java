@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.parser.model.Expression;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hibernate.Criteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enrolls frequently executed queries into the Hibernate query cache.
+ *
+ * <p>It counts executions per query shape, i.e. the root entity and
+ * the query's structure with selectors and operators, but without arguments.
+ * When a shape reaches the {@linkplain #setThreshold(int) threshold}, all
+ * following queries of this shape are marked as cacheable in a cache region
+ * of the root entity. Hence hot shapes are cached without touching call
+ * sites, while one-off queries don't pollute the cache.</p>
+ *
+ * <p>The query cache must be enabled (<tt>hibernate.cache.use_query_cache</tt>).
+ * Cached query results of entities are only identifiers, so the entities
+ * should be in the second-level cache too.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryCacheAdvisor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryCacheAdvisor.class);
+    private static final QueryCanonicalizer CANONICALIZER = new QueryCanonicalizer();
+
+    private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+    private final Set<String> enrolledShapes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong cacheableExecutions = new AtomicLong();
+
+    private volatile int threshold = 10;
+    private volatile int maxShapes = 10000;
+    private volatile String regionPrefix = "rsql.";
+
+
+    /**
+     * Count execution of the query and mark given criteria as cacheable if
+     * its shape is hot.
+     *
+     * @param criteria executable criteria of the query
+     * @param queryTree parsed query
+     * @param entityClass root entity class
+     * @return <tt>true</tt> if the criteria was marked as cacheable
+     */
+    public boolean advise(Criteria criteria, Expression queryTree, Class<?> entityClass) {
+        return advise(criteria, shapeOf(queryTree), entityClass);
+    }
+
+    /**
+     * Count execution of the query with given shape and mark given criteria
+     * as cacheable if the shape is hot.
+     *
+     * @param criteria executable criteria of the query
+     * @param queryShape shape of the query, see {@link
+     *        QueryCanonicalizer#shapeOf(Expression, Class)}
+     * @param entityClass root entity class
+     * @return <tt>true</tt> if the criteria was marked as cacheable
+     */
+    public boolean advise(Criteria criteria, String queryShape, Class<?> entityClass) {
+        String shape = entityClass.getName() +':'+ queryShape;
+        executions.incrementAndGet();
+
+        AtomicLong count = counts.get(shape);
+        if (count == null) {
+            if (counts.size() >= maxShapes) {
+                LOG.trace("Too many query shapes, not tracking: {}", shape);
+                return false;
+            }
+            AtomicLong existing = counts.putIfAbsent(shape, count = new AtomicLong());
+            if (existing != null) count = existing;
+        }
+
+        if (count.incrementAndGet() < threshold) {
+            return false;
+        }
+        if (enrolledShapes.add(shape)) {
+            LOG.info("Enrolling query shape into query cache after {} executions: {}", threshold, shape);
+        }
+        criteria.setCacheable(true)
+                .setCacheRegion(regionPrefix + entityClass.getName());
+        cacheableExecutions.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Return shape of the given query, i.e. its canonical structure with
+     * selectors and operators, but without arguments. Selectors are not
+     * translated and placeholders are untyped.
+     *
+     * @param queryTree parsed query
+     * @return shape of the query
+     */
+    public static String shapeOf(Expression queryTree) {
+        return CANONICALIZER.shapeOf(queryTree, null);
+    }
+
+
+    /**
+     * @return Number of all advised executions.
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * @return Number of executions that were marked as cacheable.
+     */
+    public long getCacheableExecutions() {
+        return cacheableExecutions.get();
+    }
+
+    /**
+     * @return Shapes enrolled into the query cache, prefixed by the entity
+     *         class name.
+     */
+    public Set<String> getEnrolledShapes() {
+        return new HashSet<String>(enrolledShapes);
+    }
+
+    /**
+     * @return Snapshot of numbers of executions per shape.
+     */
+    public Map<String, Long> getShapeCounts() {
+        Map<String, Long> result = new HashMap<String, Long>(counts.size());
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * Forget all counts and enrolled shapes.
+     */
+    public void reset() {
+        counts.clear();
+        enrolledShapes.clear();
+        executions.set(0);
+        cacheableExecutions.set(0);
+    }
+
+    /**
+     * @see #setThreshold(int)
+     * @return Number of executions after which a shape is cached.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Set number of executions of a shape after which it's cached.
+     * Default is 10.
+     *
+     * @param threshold must be greater than 0
+     */
+    public void setThreshold(int threshold) {
+        assert threshold > 0 : "must be greater than 0";
+        this.threshold = threshold;
+    }
+
+    /**
+     * Set maximum number of tracked shapes, so counters can't exhaust memory
+     * when queries are generated. Default is 10000.
+     *
+     * @param maxShapes must be greater than 0
+     */
+    public void setMaxShapes(int maxShapes) {
+        assert maxShapes > 0 : "must be greater than 0";
+        this.maxShapes = maxShapes;
+    }
+
+    /**
+     * @see #setRegionPrefix(String)
+     * @return Prefix of the query cache regions.
+     */
+    public String getRegionPrefix() {
+        return regionPrefix;
+    }
+
+    /**
+     * Set prefix of the query cache regions, which is followed by the entity
+     * class name. Default is <tt>rsql.</tt>.
+     *
+     * @param regionPrefix region prefix
+     */
+    public void setRegionPrefix(String regionPrefix) {
+        this.regionPrefix = regionPrefix;
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.parser.ParseException;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.TokenMgrError;
+import cz.jirutka.rsql.parser.model.Comparison;
+import cz.jirutka.rsql.parser.model.ComparisonExpression;
+import cz.jirutka.rsql.parser.model.Expression;
+import cz.jirutka.rsql.parser.model.Logical;
+import cz.jirutka.rsql.parser.model.LogicalExpression;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+
+/**
+ * Canonicalizer of parsed RSQL queries, so that equivalent queries written
+ * differently have the same cache key or statistics.
+ *
+ * <p>Selectors are translated via {@linkplain Mapper} to property paths,
+ * nested logical expressions with the same operator are flattened (AND and
+ * OR are associative) and their operands are sorted by shape and normal form
+ * and deduplicated (AND and OR are commutative and idempotent). Hence e.g.
+ * <tt>code==A;credits==3</tt>, <tt>credits==3;code==A</tt> and
+ * <tt>(code==A;(credits==3))</tt> have the same normal form.</p>
+ *
+ * <p>Shape of a query is its normal form with arguments replaced by typed
+ * placeholders, e.g. <tt>(code==?String;credits==?Integer)</tt>. It's
+ * used to identify the query regardless of its arguments.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryCanonicalizer {
+
+    private static final String RESERVED_CHARS = " \t\r\n;,()'\"!=<>~";
+
+    private static final Comparator<Node> NODE_ORDER = new Comparator<Node>() {
+        public int compare(Node o1, Node o2) {
+            int result = o1.shape.compareTo(o2.shape);
+            return (result != 0) ? result : o1.normal.compareTo(o2.normal);
+        }
+    };
+
+    private final SessionFactory sessionFactory;
+    private final Mapper mapper;
+
+
+    /**
+     * Construct a new <tt>QueryCanonicalizer</tt> that doesn't translate
+     * selectors and uses untyped placeholders.
+     */
+    public QueryCanonicalizer() {
+        this(null, null);
+    }
+
+    /**
+     * Construct a new <tt>QueryCanonicalizer</tt>.
+     *
+     * @param sessionFactory factory to obtain metadata from, or <tt>null</tt>
+     *        to use untyped placeholders
+     * @param mapper mapper to translate selectors with, or <tt>null</tt>
+     */
+    public QueryCanonicalizer(SessionFactory sessionFactory, Mapper mapper) {
+        this.sessionFactory = sessionFactory;
+        this.mapper = mapper;
+    }
+
+
+    /**
+     * Return canonical form of the query tree, i.e. with translated
+     * selectors, and flattened, sorted and deduplicated operands of logical
+     * expressions, that are joined to the left.
+     *
+     * @param queryTree parsed query
+     * @param entityClass root entity class, or <tt>null</tt> if unknown
+     * @return canonical query tree
+     */
+    public Expression canonicalize(Expression queryTree, Class<?> entityClass) {
+        return toExpression(toNode(queryTree, entityClass), true);
+    }
+
+    /**
+     * Return the query tree in canonical order, i.e. like {@link
+     * #canonicalize(Expression, Class) canonicalize()}, but with the original
+     * selectors. Hence it can be converted by the converter again.
+     *
+     * @param queryTree parsed query
+     * @param entityClass root entity class, or <tt>null</tt> if unknown
+     * @return reordered query tree
+     */
+    public Expression reorder(Expression queryTree, Class<?> entityClass) {
+        return toExpression(toNode(queryTree, entityClass), false);
+    }
+
+    /**
+     * Return normal form of the query, i.e. printed canonical query tree.
+     *
+     * @param queryTree parsed query
+     * @param entityClass root entity class, or <tt>null</tt> if unknown
+     * @return normal form
+     */
+    public String normalForm(Expression queryTree, Class<?> entityClass) {
+        return toNode(queryTree, entityClass).normal;
+    }
+
+    /**
+     * Parse the query and return its normal form.
+     *
+     * @param query RSQL query expression
+     * @param entityClass root entity class, or <tt>null</tt> if unknown
+     * @return normal form
+     * @throws RSQLException If the query cannot be parsed.
+     */
+    public String normalForm(String query, Class<?> entityClass) throws RSQLException {
+        return normalForm(parse(query), entityClass);
+    }
+
+    /**
+     * Return shape of the query, i.e. its normal form with arguments replaced
+     * by placeholders typed by the property type, e.g. <tt>?Integer</tt>.
+     * Argument <tt>NULL</tt> is kept and an argument with wildcards is
+     * replaced by <tt>?like</tt>.
+     *
+     * @param queryTree parsed query
+     * @param entityClass root entity class, or <tt>null</tt> if unknown
+     * @return shape
+     */
+    public String shapeOf(Expression queryTree, Class<?> entityClass) {
+        return toNode(queryTree, entityClass).shape;
+    }
+
+    /**
+     * Parse the query and return its shape.
+     *
+     * @param query RSQL query expression
+     * @param entityClass root entity class, or <tt>null</tt> if unknown
+     * @return shape
+     * @throws RSQLException If the query cannot be parsed.
+     */
+    public String shapeOf(String query, Class<?> entityClass) throws RSQLException {
+        return shapeOf(parse(query), entityClass);
+    }
+
+
+    private Node toNode(Expression expression, Class<?> entityClass) {
+        if (expression.isComparison()) {
+            return toNode((ComparisonExpression) expression, entityClass);
+        }
+        Logical operator = ((LogicalExpression) expression).getOperator();
+
+        // flatten and deduplicate by the normal form
+        List<Expression> operands = new ArrayList<Expression>();
+        collectOperands(expression, operator, operands);
+
+        Map<String, Node> unique = new HashMap<String, Node>();
+        for (Expression operand : operands) {
+            Node child = toNode(operand, entityClass);
+            unique.put(child.normal, child);
+        }
+        if (unique.size() == 1) {
+            return unique.values().iterator().next();
+        }
+
+        // sort by the shape first, so queries of the same shape have the
+        // same order regardless of arguments
+        List<Node> children = new ArrayList<Node>(unique.values());
+        Collections.sort(children, NODE_ORDER);
+
+        List<String> normals = new ArrayList<String>(children.size());
+        List<String> shapes = new ArrayList<String>(children.size());
+        for (Node child : children) {
+            normals.add(child.normal);
+            shapes.add(child.shape);
+        }
+
+        return new Node(operator, children, join(normals, operator), join(shapes, operator));
+    }
+
+    private Node toNode(ComparisonExpression comparison, Class<?> entityClass) {
+        PropertyPath path = resolve(comparison.getSelector(), entityClass);
+        String selector = (path != null) ? path.getPath() : translate(comparison.getSelector(), entityClass);
+        String argument = comparison.getArgument();
+        String operator = comparison.getOperator().toString();
+        String placeholder;
+
+        if (AbstractCriterionBuilder.NULL_ARGUMENT.equals(argument)
+                && (comparison.getOperator() == Comparison.EQUAL || comparison.getOperator() == Comparison.NOT_EQUAL)) {
+            placeholder = argument;
+        } else if (argument.contains(AbstractCriterionBuilder.LIKE_WILDCARD.toString())
+                && (path == null || path.getType() == String.class)) {
+            placeholder = "?like";
+        } else {
+            placeholder = (path != null) ? '?' + path.getType().getSimpleName() : "?";
+        }
+
+        return new Node(comparison, new ComparisonExpression(selector, comparison.getOperator(), argument),
+                selector + operator + quote(argument), selector + operator + placeholder);
+    }
+
+    private void collectOperands(Expression expression, Logical operator, List<Expression> operands) {
+        if (expression.isLogical() && ((LogicalExpression) expression).getOperator() == operator) {
+            collectOperands(((LogicalExpression) expression).getLeft(), operator, operands);
+            collectOperands(((LogicalExpression) expression).getRight(), operator, operands);
+        } else {
+            operands.add(expression);
+        }
+    }
+
+    private Expression toExpression(Node node, boolean translated) {
+        if (node.comparison != null) {
+            return translated ? node.comparison : node.original;
+        }
+        Expression result = toExpression(node.children.get(0), translated);
+        for (int i = 1; i < node.children.size(); i++) {
+            result = new LogicalExpression(result, node.operator, toExpression(node.children.get(i), translated));
+        }
+        return result;
+    }
+
+    private PropertyPath resolve(String selector, Class<?> entityClass) {
+        if (sessionFactory == null || entityClass == null) return null;
+        try {
+            return PropertyPath.resolve(selector, entityClass, mapper, (SessionFactoryImplementor) sessionFactory);
+        } catch (UnknownSelectorException ex) {
+            return null;
+        }
+    }
+
+    private String translate(String selector, Class<?> entityClass) {
+        return (mapper != null && entityClass != null) ? mapper.translate(selector, entityClass) : selector;
+    }
+
+    private static String join(Iterable<String> operands, Logical operator) {
+        StringBuilder sb = new StringBuilder("(");
+        for (String operand : operands) {
+            if (sb.length() > 1) sb.append(operator);
+            sb.append(operand);
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Quote the argument if it contains reserved characters.
+     */
+    private static String quote(String argument) {
+        boolean reserved = argument.length() == 0;
+        for (int i = 0; i < argument.length() && !reserved; i++) {
+            reserved = RESERVED_CHARS.indexOf(argument.charAt(i)) >= 0;
+        }
+        if (!reserved) {
+            return argument;
+        }
+        char quote = argument.indexOf('"') >= 0 ? '\'' : '"';
+        return quote + argument + quote;
+    }
+
+    private static Expression parse(String query) throws RSQLException {
+        try {
+            return RSQLParser.parse(query);
+        } catch (ParseException ex) {
+            throw new RSQLException(ex);
+        } catch (TokenMgrError er) {
+            throw new RSQLException(er);
+        }
+    }
+
+
+    private static class Node {
+
+        final ComparisonExpression original;
+        final ComparisonExpression comparison;
+        final Logical operator;
+        final List<Node> children;
+        final String normal;
+        final String shape;
+
+        Node(ComparisonExpression original, ComparisonExpression comparison, String normal, String shape) {
+            this.original = original;
+            this.comparison = comparison;
+            this.operator = null;
+            this.children = null;
+            this.normal = normal;
+            this.shape = shape;
+        }
+
+        Node(Logical operator, List<Node> children, String normal, String shape) {
+            this.original = null;
+            this.comparison = null;
+            this.operator = operator;
+            this.children = children;
+            this.normal = normal;
+            this.shape = shape;
+        }
+    }
+
+}
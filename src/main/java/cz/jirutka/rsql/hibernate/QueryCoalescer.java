@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalescer of identical concurrent queries (aka single-flight). When
+ * a query is requested while the same query is already being executed,
+ * the request waits for the in-flight execution and gets a copy of its
+ * result, instead of executing the query again.
+ *
+ * <p>Queries are identified by a normalized key of the entity class, the
+ * parsed query, sort keys, page and tenant. Result of a completed execution
+ * may be also shared for a short {@linkplain #setWindow(long) window} after
+ * it completes. Expired executions are removed by subsequent requests, at
+ * most once per window, or explicitly by {@link #purge()}.</p>
+ *
+ * <p>Each execution opens its own read-only session, so the results are
+ * detached entities shared by all requests of the execution. Each request
+ * gets its own copy of the list, but the entity instances themselves are
+ * shared across threads. They must not be modified and only initialized
+ * associations may be accessed; use {@link #execute(String, Callable)}
+ * with a loader of identifiers if the callers need their own instances.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryCoalescer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryCoalescer.class);
+
+    private final SessionFactory sessionFactory;
+    private final RSQL2CriteriaConverter converter;
+    private final ConcurrentMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+    private volatile long window = 0;
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+
+    /**
+     * Construct a new <tt>QueryCoalescer</tt>.
+     *
+     * @param sessionFactory factory to open sessions for executions
+     * @param converter converter to execute queries with
+     */
+    public QueryCoalescer(SessionFactory sessionFactory, RSQL2CriteriaConverter converter) {
+        this.sessionFactory = sessionFactory;
+        this.converter = converter;
+    }
+
+
+    /**
+     * List a page of entities matching given RSQL query expression using
+     * {@link RSQL2CriteriaConverter#listByIds(String, List, int, int, Class,
+     * Session) listByIds()}, or share the result of the same in-flight
+     * query.
+     *
+     * @param query RSQL query expression.
+     * @param orderBy Sort keys in order of precedence, may be empty.
+     * @param firstResult Index of the first entity, numbered from 0.
+     * @param maxResults Maximum number of entities.
+     * @param entityClass Entity class which given query is related to.
+     * @param tenant Identifier of the tenant, or <tt>null</tt>. Queries of
+     *        different tenants are never coalesced.
+     * @return Detached entities in order of given sort keys.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> listByIds(final String query, final List<SortKey> orderBy, final int firstResult,
+            final int maxResults, final Class<T> entityClass, String tenant) throws RSQLException {
+
+        String key = keyOf(entityClass, query, orderBy, firstResult, maxResults, tenant);
+
+        return (List<T>) execute(key, new Callable<List<?>>() {
+            public List<?> call() {
+                Session session = sessionFactory.openSession();
+                try {
+                    session.setDefaultReadOnly(true);
+                    return converter.listByIds(query, orderBy, firstResult, maxResults, entityClass, session);
+                } finally {
+                    session.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Execute the loader, or share the result of an in-flight execution
+     * with the same key.
+     *
+     * @param key normalized key of the query, see {@link #keyOf(Class,
+     *        String, List, int, int, String) keyOf()}
+     * @param loader loader that executes the query
+     * @return copy of the result
+     * @throws RSQLException If the loader fails with RSQLException.
+     */
+    public List<?> execute(String key, Callable<? extends List<?>> loader) throws RSQLException {
+        boolean leader = false;
+        purgeIfDue();
+
+        Call call = calls.get(key);
+        if (call != null && call.isExpired(window)) {
+            calls.remove(key, call);
+            call = null;
+        }
+
+        if (call == null) {
+            Call created = new Call(loader);
+            call = calls.putIfAbsent(key, created);
+
+            if (call == null) {
+                call = created;
+                leader = true;
+                executions.incrementAndGet();
+                try {
+                    call.run();
+                } finally {
+                    call.completedAt = System.currentTimeMillis();
+                    // a failure is not shared with new requests
+                    if (window <= 0 || call.failed) calls.remove(key, call);
+                }
+            }
+        }
+        if (!leader) {
+            coalesced.incrementAndGet();
+            LOG.trace("Coalesced query {}", key);
+        }
+        return new ArrayList<Object>(await(key, call));
+    }
+
+    /**
+     * Create normalized key of a query. The query is canonicalized by
+     * {@link QueryCanonicalizer}, so formatting differences (e.g. redundant
+     * parentheses or order of operands) don't matter.
+     *
+     * @param entityClass entity class
+     * @param query RSQL query expression
+     * @param orderBy sort keys
+     * @param firstResult index of the first entity
+     * @param maxResults maximum number of entities
+     * @param tenant identifier of the tenant, or <tt>null</tt>
+     * @return normalized key
+     * @throws RSQLException If the query cannot be parsed.
+     */
+    public String keyOf(Class<?> entityClass, String query, List<SortKey> orderBy, int firstResult,
+            int maxResults, String tenant) throws RSQLException {
+        String normalized = new QueryCanonicalizer(sessionFactory, converter.getMapper())
+                .normalForm(query, entityClass);
+        return tenant +'|'+ entityClass.getName() +'|'+ normalized +'|'+ orderBy +'|'+ firstResult +'|'+ maxResults;
+    }
+
+    /**
+     * Remove completed executions whose window has passed.
+     */
+    public void purge() {
+        for (Iterator<Map.Entry<String, Call>> it = calls.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().isExpired(window)) {
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * @return Number of executions that are in-flight or shared within
+     *         the window.
+     */
+    int size() {
+        return calls.size();
+    }
+
+    /**
+     * @return Number of executed queries.
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * @return Number of requests that shared result of another execution,
+     *         i.e. saved executions.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Set time in milliseconds for which a result of completed execution
+     * is shared with new requests. Default is 0, i.e. only in-flight
+     * executions are shared.
+     *
+     * @param window Must be greater or equal 0.
+     */
+    public void setWindow(long window) {
+        assert window >= 0 : "must be greater or equal 0";
+        this.window = window;
+    }
+
+
+    private void purgeIfDue() {
+        long window = this.window;
+        long now = System.currentTimeMillis();
+        if (window > 0 && now - lastPurge > window) {
+            lastPurge = now;
+            purge();
+        }
+    }
+
+    private List<?> await(String key, Call call) throws RSQLException {
+        try {
+            return call.get();
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for query " + key, ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RSQLException(cause);
+        }
+    }
+
+
+    private static class Call extends FutureTask<List<?>> {
+
+        volatile long completedAt = 0;
+        volatile boolean failed = false;
+
+        @SuppressWarnings("unchecked")
+        Call(Callable<? extends List<?>> loader) {
+            super((Callable<List<?>>) loader);
+        }
+
+        @Override
+        protected void setException(Throwable cause) {
+            failed = true;
+            super.setException(cause);
+        }
+
+        boolean isExpired(long window) {
+            return completedAt != 0 && System.currentTimeMillis() - completedAt > window;
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.parser.model.Comparison;
+import cz.jirutka.rsql.parser.model.ComparisonExpression;
+import cz.jirutka.rsql.parser.model.Expression;
+import cz.jirutka.rsql.parser.model.Logical;
+import cz.jirutka.rsql.parser.model.LogicalExpression;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+
+/**
+ * Containment check of parsed RSQL queries, i.e. whether every entity
+ * matching one query matches also the other one.
+ *
+ * <p>The check is sound, but not complete: when it returns <tt>true</tt>,
+ * the narrower query is contained in the broader one, but it may return
+ * <tt>false</tt> even for some contained queries. The queries are
+ * decomposed by logical operators and each comparison of the narrower
+ * query is checked for implication of a comparison of the broader one on
+ * the same property. Arguments are parsed to the property type, so e.g.
+ * <tt>credits=gt=5</tt> implies <tt>credits=ge=4</tt>, and a value without
+ * wildcards implies a <i>like</i> that matches it.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryContainment {
+
+    private final SessionFactory sessionFactory;
+    private final PredicateCompiler compiler;
+
+
+    /**
+     * Construct a new <tt>QueryContainment</tt>.
+     *
+     * @param sessionFactory factory to obtain metadata from
+     * @param compiler compiler whose Mapper and Argument Parser are used to
+     *        resolve selectors and arguments
+     */
+    public QueryContainment(SessionFactory sessionFactory, PredicateCompiler compiler) {
+        this.sessionFactory = sessionFactory;
+        this.compiler = compiler;
+    }
+
+
+    /**
+     * Check if the narrower query is contained in the broader one, i.e.
+     * every entity matching the narrower query matches also the broader one.
+     *
+     * @param broader RSQL query expression tree
+     * @param narrower RSQL query expression tree
+     * @param entityClass entity class which given queries are related to
+     * @return <tt>true</tt> if the narrower query is contained in the broader
+     *         one, <tt>false</tt> if not or it cannot be proved
+     */
+    public boolean contains(Expression broader, Expression narrower, Class<?> entityClass) {
+        if (isLogical(broader, Logical.AND)) {
+            LogicalExpression and = (LogicalExpression) broader;
+            return contains(and.getLeft(), narrower, entityClass)
+                    && contains(and.getRight(), narrower, entityClass);
+        }
+        if (isLogical(narrower, Logical.OR)) {
+            LogicalExpression or = (LogicalExpression) narrower;
+            return contains(broader, or.getLeft(), entityClass)
+                    && contains(broader, or.getRight(), entityClass);
+        }
+        if (isLogical(broader, Logical.OR)) {
+            LogicalExpression or = (LogicalExpression) broader;
+            if (contains(or.getLeft(), narrower, entityClass)
+                    || contains(or.getRight(), narrower, entityClass)) {
+                return true;
+            }
+        }
+        if (isLogical(narrower, Logical.AND)) {
+            LogicalExpression and = (LogicalExpression) narrower;
+            return contains(broader, and.getLeft(), entityClass)
+                    || contains(broader, and.getRight(), entityClass);
+        }
+        if (broader.isComparison() && narrower.isComparison()) {
+            return implies((ComparisonExpression) narrower, (ComparisonExpression) broader, entityClass);
+        }
+        return false;
+    }
+
+
+    private boolean isLogical(Expression expression, Logical operator) {
+        return expression.isLogical() && ((LogicalExpression) expression).getOperator() == operator;
+    }
+
+    /**
+     * Check if the comparison <tt>n</tt> implies the comparison <tt>b</tt>.
+     */
+    private boolean implies(ComparisonExpression n, ComparisonExpression b, Class<?> entityClass) {
+        if (n.getOperator() == b.getOperator() && n.getArgument().equals(b.getArgument())
+                && n.getSelector().equals(b.getSelector())) {
+            return true;
+        }
+        PropertyPath path = resolve(n.getSelector(), entityClass);
+        if (path == null || !path.getPath().equals(pathOf(b.getSelector(), entityClass))) {
+            return false;
+        }
+        if (isNull(b)) {
+            // only "is null" implies "is null"; any comparison with a value
+            // excludes null, hence implies "is not null"
+            return b.getOperator() == Comparison.NOT_EQUAL && !isNull(n);
+        }
+        if (isNull(n) || path.isAssociation()) {
+            return n.getOperator() == b.getOperator() && n.getArgument().equals(b.getArgument());
+        }
+
+        Object a, c;
+        try {
+            a = compiler.getArgumentParser().parse(n.getArgument(), path.getType());
+            c = compiler.getArgumentParser().parse(b.getArgument(), path.getType());
+        } catch (ArgumentFormatException ex) {
+            return false;
+        }
+        if (isLike(b, c)) {
+            return n.getOperator() == Comparison.EQUAL && b.getOperator() == Comparison.EQUAL && !isLike(n, a)
+                    && PredicateCompiler.toLikePattern((String) c).matcher(a.toString()).matches();
+        }
+        if (isLike(n, a) || !(a instanceof Comparable)) {
+            return false;
+        }
+        return implies(n.getOperator(), a, b.getOperator(), c);
+    }
+
+    /**
+     * Check if <tt>x opN a</tt> implies <tt>x opB c</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean implies(Comparison opN, Object a, Comparison opB, Object c) {
+        int cmp;
+        try {
+            cmp = ((Comparable<Object>) a).compareTo(c);
+        } catch (ClassCastException ex) {
+            return false;
+        }
+
+        switch (opN) {
+            case EQUAL :
+                switch (opB) {
+                    case EQUAL : return cmp == 0;
+                    case NOT_EQUAL : return cmp != 0;
+                    case GREATER_THAN : return cmp > 0;
+                    case GREATER_EQUAL : return cmp >= 0;
+                    case LESS_THAN : return cmp < 0;
+                    case LESS_EQUAL : return cmp <= 0;
+                }
+                break;
+            case NOT_EQUAL :
+                return opB == Comparison.NOT_EQUAL && cmp == 0;
+            case GREATER_THAN :
+                switch (opB) {
+                    case GREATER_THAN : case GREATER_EQUAL : case NOT_EQUAL : return cmp >= 0;
+                }
+                break;
+            case GREATER_EQUAL :
+                switch (opB) {
+                    case GREATER_EQUAL : return cmp >= 0;
+                    case GREATER_THAN : case NOT_EQUAL : return cmp > 0;
+                }
+                break;
+            case LESS_THAN :
+                switch (opB) {
+                    case LESS_THAN : case LESS_EQUAL : case NOT_EQUAL : return cmp <= 0;
+                }
+                break;
+            case LESS_EQUAL :
+                switch (opB) {
+                    case LESS_EQUAL : return cmp <= 0;
+                    case LESS_THAN : case NOT_EQUAL : return cmp < 0;
+                }
+                break;
+        }
+        return false;
+    }
+
+    private boolean isNull(ComparisonExpression comparison) {
+        return AbstractCriterionBuilder.NULL_ARGUMENT.equals(comparison.getArgument())
+                && (comparison.getOperator() == Comparison.EQUAL || comparison.getOperator() == Comparison.NOT_EQUAL);
+    }
+
+    private boolean isLike(ComparisonExpression comparison, Object value) {
+        return value instanceof String
+                && comparison.getArgument().contains(AbstractCriterionBuilder.LIKE_WILDCARD.toString())
+                && (comparison.getOperator() == Comparison.EQUAL || comparison.getOperator() == Comparison.NOT_EQUAL);
+    }
+
+    private String pathOf(String selector, Class<?> entityClass) {
+        PropertyPath path = resolve(selector, entityClass);
+        return (path != null) ? path.getPath() : null;
+    }
+
+    private PropertyPath resolve(String selector, Class<?> entityClass) {
+        try {
+            return PropertyPath.resolve(selector, entityClass, compiler.getMapper(),
+                    (SessionFactoryImplementor) sessionFactory);
+        } catch (UnknownSelectorException ex) {
+            return null;
+        }
+    }
+
+}
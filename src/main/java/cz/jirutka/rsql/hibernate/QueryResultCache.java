@@ -0,0 +1,361 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of query results, i.e. lists of identifiers of matching entities,
+ * including empty results. It's used by {@link
+ * RSQL2CriteriaConverter#listByIds(String, List, int, int, Class, Session)
+ * listByIds()} when set on the converter.
+ *
+ * <p>Each cached result remembers the entity classes its query touched
+ * (the root entity and all joined associations). When an entity of such
+ * class is inserted, updated or deleted, or a collection owned by it is
+ * changed, the result is invalidated. Changes are detected by Hibernate
+ * event listeners that must be {@linkplain #install() installed} into the
+ * session factory. Results are invalidated right after the change is
+ * flushed and again after the transaction completes, so a result loaded by
+ * another session in the meantime is not kept.</p>
+ *
+ * <p>An invalidated (or expired) result may still be served during the
+ * configured {@linkplain #setStaleWhileRevalidate(long) stale-while-revalidate
+ * window}, while it's reloaded in a new session on the executor.</p>
+ *
+ * <p>Results are keyed also by the execution profile of the query. When
+ * some Hibernate filter is enabled on the session, the cache is bypassed,
+ * because the result depends on the filter parameters and couldn't be
+ * revalidated in a new session. This applies to tenant filters too;
+ * Hibernate 3 has no other notion of a tenant, a cache can be created per
+ * session factory of each tenant instead.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryResultCache extends AbstractInvalidationListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryResultCache.class);
+
+    private final SessionFactory sessionFactory;
+    private final Executor executor;
+    private final Map<String, CachedResult> entries;  // guarded by this
+    private final Map<Class<?>, Long> invalidations = new HashMap<Class<?>, Long>();  // guarded by this
+    private long sequence = 0;  // guarded by this
+    private volatile long timeToLive = 0;
+    private volatile long staleWhileRevalidate = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+
+    /**
+     * Construct a new <tt>QueryResultCache</tt>.
+     *
+     * @param sessionFactory factory to install listeners into and to open
+     *        sessions for revalidation
+     * @param executor executor to revalidate stale results on, may be
+     *        <tt>null</tt> when stale results are not served
+     * @param maxEntries maximum number of cached results, the least recently
+     *        used are evicted
+     */
+    public QueryResultCache(SessionFactory sessionFactory, Executor executor, final int maxEntries) {
+        super(sessionFactory);
+        assert maxEntries > 0 : "maxEntries must be greater than 0";
+
+        this.sessionFactory = sessionFactory;
+        this.executor = executor;
+        this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    /**
+     * Get identifiers of the query result from the cache, or load them.
+     *
+     * @param entityClass entity class which the query is related to
+     * @param query normalized query expression
+     * @param orderBy sort keys
+     * @param firstResult index of the first entity
+     * @param maxResults maximum number of entities
+     * @param profile execution profile applied by the loader, or
+     *        <tt>null</tt>
+     * @param session session to load the result in when not cached
+     * @param loader loader of the result
+     * @return Identifiers of matching entities, unmodifiable.
+     */
+    public List<Serializable> get(Class<?> entityClass, String query, List<SortKey> orderBy,
+            int firstResult, int maxResults, ExecutionProfile profile, Session session, Loader loader) {
+
+        if (((SessionImplementor) session).getLoadQueryInfluencers().hasEnabledFilters()) {
+            LOG.debug("Some filter is enabled on the session, bypassing the cache");
+            misses.incrementAndGet();
+            return Collections.unmodifiableList(loader.load(session, new HashSet<Class<?>>()));
+        }
+        String key = entityClass.getName() +'|'+ query +'|'+ orderBy +'|'+ firstResult +'|'+ maxResults
+                +'|'+ profile;
+        long now = System.currentTimeMillis();
+        CachedResult entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+
+            if (entry != null && !entry.isStale(now, timeToLive)) {
+                hits.incrementAndGet();
+                return entry.ids;
+            }
+            if (entry != null && executor != null && now < entry.staleSince(timeToLive) + staleWhileRevalidate) {
+                staleHits.incrementAndGet();
+                if (!entry.revalidating) {
+                    entry.revalidating = true;
+                    revalidate(key, loader);
+                }
+                return entry.ids;
+            }
+        }
+        misses.incrementAndGet();
+
+        return load(key, session, loader).ids;
+    }
+
+    /**
+     * Invalidate all results that touched the given entity class, its
+     * superclass or subclass.
+     *
+     * @param entityClass entity class
+     */
+    @Override
+    public synchronized void invalidate(Class<?> entityClass) {
+        long now = System.currentTimeMillis();
+        invalidations.put(entityClass, ++sequence);
+
+        for (Iterator<CachedResult> it = entries.values().iterator(); it.hasNext(); ) {
+            CachedResult entry = it.next();
+
+            if (entry.invalidatedAt == 0 && entry.touches(entityClass)) {
+                entry.invalidatedAt = now;
+                if (staleWhileRevalidate == 0) it.remove();
+            }
+        }
+        LOG.trace("Invalidated results of {}", entityClass.getName());
+    }
+
+    /**
+     * Remove all cached results.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+
+    /**
+     * @return Number of results served from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of stale results served while being revalidated.
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * @return Number of results that had to be loaded.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of currently cached results.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @see #setTimeToLive(long)
+     * @return Time to live in milliseconds, 0 means unlimited.
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Set how long a result is fresh, regardless of invalidation. Default is
+     * 0, i.e. until invalidated.
+     *
+     * @param timeToLive time in milliseconds, or 0 for unlimited
+     */
+    public void setTimeToLive(long timeToLive) {
+        assert timeToLive >= 0 : "must be greater or equal 0";
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @see #setStaleWhileRevalidate(long)
+     * @return Window in milliseconds.
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * Set for how long after invalidation or expiration the stale result is
+     * still served, while it's reloaded on the executor. Default is 0, i.e.
+     * stale results are never served.
+     *
+     * @param staleWhileRevalidate window in milliseconds
+     */
+    public void setStaleWhileRevalidate(long staleWhileRevalidate) {
+        assert staleWhileRevalidate >= 0 : "must be greater or equal 0";
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+
+    private CachedResult load(String key, Session session, Loader loader) {
+        long startSequence;
+        synchronized (this) {
+            startSequence = sequence;
+        }
+        Set<Class<?>> touchedClasses = new HashSet<Class<?>>();
+        List<Serializable> ids = loader.load(session, touchedClasses);
+        CachedResult entry = new CachedResult(Collections.unmodifiableList(new ArrayList<Serializable>(ids)), touchedClasses);
+
+        synchronized (this) {
+            // some touched entity has changed while loading, so the result may be outdated
+            if (isInvalidatedSince(startSequence, entry)) {
+                LOG.debug("Result of {} changed while loading, not caching it", key);
+                entries.remove(key);
+            } else {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private void revalidate(final String key, final Loader loader) {
+        LOG.debug("Revalidating stale result of {}", key);
+
+        executor.execute(new Runnable() {
+            public void run() {
+                Session session = sessionFactory.openSession();
+                try {
+                    session.setDefaultReadOnly(true);
+                    load(key, session, loader);
+
+                } catch (RuntimeException ex) {
+                    LOG.warn("Failed to revalidate result of {}", key, ex);
+                    synchronized (QueryResultCache.this) {
+                        entries.remove(key);
+                    }
+                } finally {
+                    session.close();
+                }
+            }
+        });
+    }
+
+    private boolean isInvalidatedSince(long startSequence, CachedResult entry) {
+        for (Map.Entry<Class<?>, Long> inv : invalidations.entrySet()) {
+            if (inv.getValue() > startSequence && entry.touches(inv.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+
+    /**
+     * Loader of a query result.
+     */
+    public interface Loader {
+
+        /**
+         * Execute the query and return identifiers of matching entities.
+         *
+         * @param session session to execute the query in
+         * @param touchedClasses set to add all entity classes that the query
+         *        touches into
+         * @return identifiers of matching entities
+         */
+        List<Serializable> load(Session session, Set<Class<?>> touchedClasses);
+    }
+
+    private static class CachedResult {
+
+        final List<Serializable> ids;
+        final Set<Class<?>> touchedClasses;
+        final long createdAt = System.currentTimeMillis();
+        long invalidatedAt = 0;  // guarded by the cache
+        boolean revalidating = false;  // guarded by the cache
+
+        CachedResult(List<Serializable> ids, Set<Class<?>> touchedClasses) {
+            this.ids = ids;
+            this.touchedClasses = touchedClasses;
+        }
+
+        boolean touches(Class<?> entityClass) {
+            for (Class<?> touched : touchedClasses) {
+                if (touched.isAssignableFrom(entityClass) || entityClass.isAssignableFrom(touched)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isStale(long now, long timeToLive) {
+            return invalidatedAt != 0 || (timeToLive > 0 && now >= createdAt + timeToLive);
+        }
+
+        long staleSince(long timeToLive) {
+            long expiredAt = (timeToLive > 0) ? createdAt + timeToLive : Long.MAX_VALUE;
+            return (invalidatedAt != 0) ? Math.min(invalidatedAt, expiredAt) : expiredAt;
+        }
+    }
+
+}
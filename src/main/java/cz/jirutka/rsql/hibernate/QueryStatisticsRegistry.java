@@ -0,0 +1,391 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.impl.CriteriaImpl;
+import org.hibernate.loader.criteria.CriteriaLoader;
+import org.hibernate.persister.entity.OuterJoinLoadable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of statistics per query shape, i.e. the root entity and the
+ * canonical query with typed placeholders instead of arguments (see {@link
+ * QueryCanonicalizer#shapeOf(cz.jirutka.rsql.parser.model.Expression, Class)
+ * shapeOf()}).
+ *
+ * <p>It records number of conversions, time spent by parsing and converting,
+ * number of JOINs created, and number of executions, returned rows,
+ * execution time and SQL rendered from the criteria. Hence the {@linkplain
+ * #getTopShapes(int) top shapes} are the few shapes that dominate database
+ * load. The SQL may be used to find the query in database statistics.</p>
+ *
+ * <p>Rendering of SQL isn't free, so it's rendered for the first execution of
+ * a shape and then only for every {@linkplain #setSqlSampleInterval(int)
+ * n-th} execution. Since queries are converted in the canonical order, the
+ * same shape executed by the same method renders the same SQL.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryStatisticsRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryStatisticsRegistry.class);
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private volatile int maxShapes = 10000;
+    private volatile int sqlSampleInterval = 100;
+
+
+    /**
+     * Record conversion of a query into criteria.
+     *
+     * @param entityClass root entity class
+     * @param shape shape of the query
+     * @param parseTime time spent by parsing the query in nanoseconds
+     * @param convertTime time spent by converting the query in nanoseconds
+     * @param joins number of association aliases (JOINs) created
+     */
+    public void recordConversion(Class<?> entityClass, String shape, long parseTime, long convertTime, int joins) {
+        Entry entry = getEntry(entityClass, shape);
+        if (entry == null) return;
+
+        entry.count.incrementAndGet();
+        entry.parseTime.addAndGet(parseTime);
+        entry.convertTime.addAndGet(convertTime);
+        entry.joins.addAndGet(joins);
+    }
+
+    /**
+     * Record execution of executable criteria created from a query. Its SQL
+     * is rendered if it's the first or a sampled execution of the shape.
+     * Failure of rendering is logged and ignored.
+     *
+     * @param entityClass root entity class
+     * @param shape shape of the query
+     * @param criteria executed criteria (bound to a session)
+     * @param rows number of returned rows
+     * @param time execution time in nanoseconds
+     */
+    public void recordExecution(Class<?> entityClass, String shape, Criteria criteria, int rows, long time) {
+        Entry entry = getEntry(entityClass, shape);
+        if (entry == null) return;
+
+        long executions = entry.executions.getAndIncrement();
+        entry.rows.addAndGet(rows);
+        entry.executionTime.addAndGet(time);
+        for (long max = entry.executionMaxTime.get(); time > max; max = entry.executionMaxTime.get()) {
+            if (entry.executionMaxTime.compareAndSet(max, time)) break;
+        }
+
+        if (executions % sqlSampleInterval != 0 || !(criteria instanceof CriteriaImpl)) {
+            return;
+        }
+        try {
+            entry.lastSql = renderSql((CriteriaImpl) criteria);
+        } catch (HibernateException ex) {
+            LOG.debug("Cannot render SQL of query shape: " + shape, ex);
+        }
+    }
+
+    /**
+     * Return snapshot of statistics of the shapes with the highest total time,
+     * i.e. time of parsing, converting and executing.
+     *
+     * @param limit maximum number of shapes
+     * @return statistics ordered by the total time, descending
+     */
+    public List<ShapeStatistics> getTopShapes(int limit) {
+        List<ShapeStatistics> result = getShapes();
+
+        Collections.sort(result, new Comparator<ShapeStatistics>() {
+            public int compare(ShapeStatistics o1, ShapeStatistics o2) {
+                long t1 = o1.getTotalTime(), t2 = o2.getTotalTime();
+                return (t1 < t2) ? 1 : (t1 > t2 ? -1 : o1.getShape().compareTo(o2.getShape()));
+            }
+        });
+
+        return new ArrayList<ShapeStatistics>(result.subList(0, Math.min(limit, result.size())));
+    }
+
+    /**
+     * Return snapshot of statistics of all recorded shapes in no particular
+     * order.
+     *
+     * @return statistics of all shapes
+     */
+    public List<ShapeStatistics> getShapes() {
+        List<ShapeStatistics> result = new ArrayList<ShapeStatistics>(entries.size());
+        for (Entry entry : entries.values()) {
+            result.add(new ShapeStatistics(entry.entityClass, entry.shape, entry.count.get(),
+                    entry.parseTime.get(), entry.convertTime.get(), entry.joins.get(), entry.lastSql,
+                    entry.executions.get(), entry.rows.get(), entry.executionTime.get(),
+                    entry.executionMaxTime.get()));
+        }
+        return result;
+    }
+
+    /**
+     * Forget statistics of all shapes.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return Number of recorded shapes.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Set maximum number of recorded shapes, so statistics can't exhaust
+     * memory when queries are generated. Default is 10000.
+     *
+     * @param maxShapes must be greater than 0
+     */
+    public void setMaxShapes(int maxShapes) {
+        assert maxShapes > 0 : "must be greater than 0";
+        this.maxShapes = maxShapes;
+    }
+
+    /**
+     * @see #setSqlSampleInterval(int)
+     * @return Number of executions per rendering of SQL.
+     */
+    public int getSqlSampleInterval() {
+        return sqlSampleInterval;
+    }
+
+    /**
+     * Set how often is SQL of a shape rendered, i.e. every n-th execution.
+     * Default is 100.
+     *
+     * @param sqlSampleInterval must be greater than 0
+     */
+    public void setSqlSampleInterval(int sqlSampleInterval) {
+        assert sqlSampleInterval > 0 : "must be greater than 0";
+        this.sqlSampleInterval = sqlSampleInterval;
+    }
+
+
+    private Entry getEntry(Class<?> entityClass, String shape) {
+        String key = entityClass.getName() +':'+ shape;
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() >= maxShapes) {
+                LOG.trace("Too many query shapes, not recording: {}", key);
+                return null;
+            }
+            Entry existing = entries.putIfAbsent(key, entry = new Entry(entityClass, shape));
+            if (existing != null) entry = existing;
+        }
+        return entry;
+    }
+
+    /**
+     * Render SQL of the criteria in the same way as Hibernate does when
+     * listing it. When the entity has more implementors (i.e. it's
+     * polymorphic), their SQLs are separated by a semicolon.
+     */
+    static String renderSql(CriteriaImpl criteria) {
+        SessionImplementor session = criteria.getSession();
+        SessionFactoryImplementor factory = session.getFactory();
+        StringBuilder sql = new StringBuilder();
+
+        for (String implementor : factory.getImplementors(criteria.getEntityOrClassName())) {
+            OuterJoinLoadable persister = (OuterJoinLoadable) factory.getEntityPersister(implementor);
+            if (sql.length() > 0) sql.append("; ");
+            sql.append(new SqlRenderingLoader(persister, factory, criteria, implementor, session).getSql());
+        }
+        return sql.toString();
+    }
+
+
+    /**
+     * Snapshot of statistics of one query shape. Times are in nanoseconds.
+     */
+    public static class ShapeStatistics {
+
+        private final Class<?> entityClass;
+        private final String shape;
+        private final long count;
+        private final long parseTime;
+        private final long convertTime;
+        private final long joins;
+        private final String lastSql;
+        private final long executionCount;
+        private final long executionRowCount;
+        private final long executionTime;
+        private final long executionMaxTime;
+
+        ShapeStatistics(Class<?> entityClass, String shape, long count, long parseTime, long convertTime,
+                long joins, String lastSql, long executionCount, long executionRowCount, long executionTime,
+                long executionMaxTime) {
+            this.entityClass = entityClass;
+            this.shape = shape;
+            this.count = count;
+            this.parseTime = parseTime;
+            this.convertTime = convertTime;
+            this.joins = joins;
+            this.lastSql = lastSql;
+            this.executionCount = executionCount;
+            this.executionRowCount = executionRowCount;
+            this.executionTime = executionTime;
+            this.executionMaxTime = executionMaxTime;
+        }
+
+        public Class<?> getEntityClass() {
+            return entityClass;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        /**
+         * @return Number of conversions of queries of this shape.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return Total time of parsing in nanoseconds.
+         */
+        public long getParseTime() {
+            return parseTime;
+        }
+
+        /**
+         * @return Total time of converting in nanoseconds.
+         */
+        public long getConvertTime() {
+            return convertTime;
+        }
+
+        /**
+         * @return Total number of association aliases (JOINs) created.
+         */
+        public long getJoins() {
+            return joins;
+        }
+
+        /**
+         * @return The last rendered SQL, or <tt>null</tt> if not executed yet.
+         */
+        public String getLastSql() {
+            return lastSql;
+        }
+
+        /**
+         * @return Number of executions.
+         */
+        public long getExecutionCount() {
+            return executionCount;
+        }
+
+        /**
+         * @return Total number of returned rows.
+         */
+        public long getExecutionRowCount() {
+            return executionRowCount;
+        }
+
+        /**
+         * @return Total execution time in nanoseconds.
+         */
+        public long getExecutionTime() {
+            return executionTime;
+        }
+
+        /**
+         * @return Maximum execution time in nanoseconds.
+         */
+        public long getExecutionMaxTime() {
+            return executionMaxTime;
+        }
+
+        /**
+         * @return Total time of parsing, converting and executing in
+         *         nanoseconds.
+         */
+        public long getTotalTime() {
+            return parseTime + convertTime + executionTime;
+        }
+
+        @Override
+        public String toString() {
+            return entityClass.getSimpleName() +':'+ shape + " [count=" + count + ", joins=" + joins
+                    + ", executions=" + executionCount + ", rows=" + executionRowCount
+                    + ", totalTime=" + getTotalTime() / 1000000L + " ms]";
+        }
+    }
+
+    private static class Entry {
+
+        final Class<?> entityClass;
+        final String shape;
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong parseTime = new AtomicLong();
+        final AtomicLong convertTime = new AtomicLong();
+        final AtomicLong joins = new AtomicLong();
+        final AtomicLong executions = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong executionTime = new AtomicLong();
+        final AtomicLong executionMaxTime = new AtomicLong();
+        volatile String lastSql;
+
+        Entry(Class<?> entityClass, String shape) {
+            this.entityClass = entityClass;
+            this.shape = shape;
+        }
+    }
+
+    private static class SqlRenderingLoader extends CriteriaLoader {
+
+        SqlRenderingLoader(OuterJoinLoadable persister, SessionFactoryImplementor factory, CriteriaImpl criteria,
+                String entityName, SessionImplementor session) {
+            super(persister, factory, criteria, entityName, session.getLoadQueryInfluencers());
+        }
+
+        String getSql() {
+            return getSQLString();
+        }
+    }
+
+}
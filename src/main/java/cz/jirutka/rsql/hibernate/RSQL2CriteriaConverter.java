@@ -27,8 +27,11 @@ import cz.jirutka.rsql.parser.ParseException;
 import cz.jirutka.rsql.parser.model.ComparisonExpression;
 import java.util.List;
 import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.transform.ResultTransformer;
 
 /**
  * RSQL to Hibernate Criteria Converter
@@ -90,7 +93,7 @@ public interface RSQL2CriteriaConverter {
      * {@link #ROOT_ALIAS}.</p>
      *
      * @param query RSQL query expression.
-     * @param orderBy Selector or property name to order by.
+     * @param orderBy Selector or property path to order by.
      * @param ascending <tt>true</tt> ascending order,
      *                  <tt>false</tt> descending order
      * @param entityClass Entity class which given query is related to.
@@ -103,6 +106,217 @@ public interface RSQL2CriteriaConverter {
     DetachedCriteria createCriteria(String query, String orderBy, boolean ascending, Class<?> entityClass)
             throws RSQLException;
 
+    /**
+     * Parse given RSQL query expression, bind it to given entity class and
+     * convert to Hibernate Criteria query ordered by given sort keys.
+     *
+     * <p>Sort key may be a dot-separated path through single-valued
+     * associations, e.g. <tt>department.name</tt>. Sorting reuses association
+     * aliases (JOINs) created for the query, missing ones are created as
+     * LEFT JOIN.</p>
+     *
+     * @param query RSQL query expression.
+     * @param orderBy Sort keys in order of precedence.
+     * @param entityClass Entity class which given query is related to.
+     * @return Criteria query generated from given RSQL expression.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria. This is a wrapper exception for {@link ParseException},
+     *         {@link ArgumentFormatException}, {@link JoinsLimitException},
+     *         {@link UnknownSelectorException} and
+     *         {@link UnsupportedSelectorException} (when sort key is
+     *         a collection path).
+     */
+    DetachedCriteria createCriteria(String query, List<SortKey> orderBy, Class<?> entityClass)
+            throws RSQLException;
+
+    /**
+     * Parse given RSQL query expression, bind it to given entity class and
+     * convert to Hibernate Criteria query that counts matching entities.
+     *
+     * <p>When the query doesn't need any JOIN of a collection, it's simply
+     * <tt>count(*)</tt> with the query's restrictions. Otherwise the query is
+     * wrapped in a correlated <tt>EXISTS</tt> subquery, so each entity is
+     * counted only once without need of <tt>count(distinct id)</tt>.</p>
+     *
+     * @param query RSQL query expression.
+     * @param entityClass Entity class which given query is related to.
+     * @return Criteria query with projection to the number of entities.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria. This is a wrapper exception for {@link ParseException},
+     *         {@link ArgumentFormatException}, {@link JoinsLimitException},
+     *         {@link UnknownSelectorException}.
+     */
+    DetachedCriteria createCountCriteria(String query, Class<?> entityClass) throws RSQLException;
+
+    /**
+     * Count entities matching given RSQL query expression, but at most up to
+     * the given limit. This is useful when the exact count of a broad query
+     * on a large table is too expensive and it's enough to show e.g.
+     * "10000+".
+     *
+     * <p>Hibernate doesn't support limit in subqueries, so identifiers of
+     * matching entities are selected with the limit plus one and counted
+     * while scrolling through the results. The cost is therefore bounded by
+     * the limit, no matter how large the table is.</p>
+     *
+     * @param query RSQL query expression.
+     * @param entityClass Entity class which given query is related to.
+     * @param limit Maximum number to count, must be greater than 0.
+     * @param session Hibernate session to execute the query in.
+     * @return Number of matching entities, at most the limit, and flag
+     *         whether there are more matching entities than the limit.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria.
+     */
+    BoundedCount countAtMost(String query, Class<?> entityClass, int limit, Session session)
+            throws RSQLException;
+
+    /**
+     * Check if there's any entity matching given RSQL query expression.
+     *
+     * <p>Only the identifier of the first matching row is selected, without
+     * ordering and hydrating entities, so the database can stop at the first
+     * match and usually answer from an index only.</p>
+     *
+     * @param query RSQL query expression.
+     * @param entityClass Entity class which given query is related to.
+     * @param session Hibernate session to execute the query in.
+     * @return <tt>true</tt> if at least one entity matches, <tt>false</tt>
+     *         otherwise.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria.
+     */
+    boolean exists(String query, Class<?> entityClass, Session session) throws RSQLException;
+
+    /**
+     * Fetch a page of entities matching given RSQL query expression in two
+     * phases. First only distinct identifiers of the root entities on the
+     * requested page are selected. Then the entities are obtained from the
+     * second-level cache, or loaded by identifiers in batches.
+     *
+     * <p>This is useful especially for queries with JOINs of collections,
+     * because the page is counted in entities, not in rows multiplied by the
+     * JOINs, and there's no need to load all duplicate rows and filter them
+     * by {@link org.hibernate.criterion.CriteriaSpecification#DISTINCT_ROOT_ENTITY
+     * DISTINCT_ROOT_ENTITY} transformer.</p>
+     *
+     * @param query RSQL query expression.
+     * @param orderBy Sort keys in order of precedence, may be empty.
+     * @param firstResult Index of the first entity, numbered from 0.
+     * @param maxResults Maximum number of entities.
+     * @param entityClass Entity class which given query is related to.
+     * @param session Hibernate session to execute the query in.
+     * @return Entities in order of given sort keys.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria.
+     */
+    <T> List<T> listByIds(String query, List<SortKey> orderBy, int firstResult, int maxResults,
+            Class<T> entityClass, Session session) throws RSQLException;
+
+    /**
+     * List entities matching given RSQL query expression and eagerly load
+     * the associations specified by the fetch plan, so rendering them
+     * doesn't trigger a lazy select per entity (aka N+1 problem).
+     *
+     * <p>Single-valued associations that are already joined by the query
+     * (e.g. <tt>department</tt> when filtering on <tt>department.name</tt>)
+     * are fetched by the same JOIN. Other associations, including
+     * collections, are fetched afterwards in batches using {@link
+     * BatchFetcher}. Hence the number of queries doesn't depend on the number
+     * of entities.</p>
+     *
+     * @param query RSQL query expression.
+     * @param orderBy Sort keys in order of precedence, may be empty.
+     * @param fetch Selectors of associations to fetch eagerly, translated via
+     *        {@linkplain Mapper}, may be empty.
+     * @param entityClass Entity class which given query is related to.
+     * @param session Hibernate session to execute the query in.
+     * @return Entities in order of given sort keys.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria, or when some fetched selector is not an association.
+     */
+    <T> List<T> list(String query, List<SortKey> orderBy, List<String> fetch, Class<T> entityClass,
+            Session session) throws RSQLException;
+
+    /**
+     * Stream entities matching given RSQL query expression with constant
+     * memory use, e.g. for exports of millions of rows.
+     *
+     * <p>The query is executed as read-only with forward-only
+     * {@linkplain org.hibernate.ScrollableResults} and the given JDBC fetch
+     * size. The session is {@linkplain Session#clear() cleared} after each
+     * <tt>fetchSize</tt> rows, so all entities in the session that were
+     * loaded before become detached!</p>
+     *
+     * @param query RSQL query expression.
+     * @param orderBy Sort keys in order of precedence, may be empty.
+     * @param fetchSize JDBC fetch size and number of rows between clearing
+     *        the session, must be greater than 0.
+     * @param entityClass Entity class which given query is related to.
+     * @param session Hibernate session to execute the query in.
+     * @return Iterator over the results, must be closed if not exhausted.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria.
+     */
+    <T> ScrollableResultsIterator<T> stream(String query, List<SortKey> orderBy, int fetchSize,
+            Class<T> entityClass, Session session) throws RSQLException;
+
+    /**
+     * Stream entities matching given RSQL query expression with constant
+     * memory use, e.g. for exports of millions of rows.
+     *
+     * <p>The query is executed with forward-only
+     * {@linkplain org.hibernate.ScrollableResults} and the given JDBC fetch
+     * size. A stateless session has no persistence context, so entities are
+     * not tracked at all, but their lazy associations can't be initialized.</p>
+     *
+     * @param query RSQL query expression.
+     * @param orderBy Sort keys in order of precedence, may be empty.
+     * @param fetchSize JDBC fetch size, must be greater than 0.
+     * @param entityClass Entity class which given query is related to.
+     * @param session Hibernate stateless session to execute the query in.
+     * @return Iterator over the results, must be closed if not exhausted.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria.
+     */
+    <T> ScrollableResultsIterator<T> stream(String query, List<SortKey> orderBy, int fetchSize,
+            Class<T> entityClass, StatelessSession session) throws RSQLException;
+
+    /**
+     * Parse given RSQL query expression, bind it to given entity class and
+     * convert to Hibernate Criteria query that selects only the properties
+     * specified by given selectors (aka sparse fields), without hydrating
+     * entities.
+     *
+     * <p>Selectors are translated via {@linkplain Mapper} and may be paths
+     * through single-valued associations, e.g. <tt>department.name</tt>. They
+     * reuse association aliases of the query, missing ones are created as LEFT
+     * JOIN. Each projected property is aliased by its selector.</p>
+     *
+     * <p>Without a transformer, each row is <tt>Object[]</tt> of the
+     * properties in order of the selectors (or just the value when there's
+     * only one selector). Use e.g.
+     * {@link org.hibernate.transform.Transformers#ALIAS_TO_ENTITY_MAP
+     * ALIAS_TO_ENTITY_MAP} to get maps keyed by selectors, or
+     * {@link org.hibernate.transform.AliasToBeanConstructorResultTransformer}
+     * to construct DTOs.</p>
+     *
+     * @param query RSQL query expression.
+     * @param selectors Selectors of properties to select, must not be empty.
+     * @param orderBy Sort keys in order of precedence, may be empty.
+     * @param transformer Result transformer, or <tt>null</tt> for tuples.
+     * @param entityClass Entity class which given query is related to.
+     * @return Criteria query with projection to the specified properties.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria. This is a wrapper exception for {@link ParseException},
+     *         {@link ArgumentFormatException}, {@link JoinsLimitException},
+     *         {@link UnknownSelectorException} and
+     *         {@link UnsupportedSelectorException} (when selector is
+     *         a collection path).
+     */
+    DetachedCriteria createProjectionCriteria(String query, List<String> selectors, List<SortKey> orderBy,
+            ResultTransformer transformer, Class<?> entityClass) throws RSQLException;
+
     /**
      * Parse RSQL query expression, bind it to given entity class, convert
      * and append to given Criteria query.
@@ -118,6 +332,64 @@ public interface RSQL2CriteriaConverter {
     void extendCriteria(String query, Class<?> entityClass, Criteria targetCriteria)
             throws RSQLException;
 
+    /**
+     * Parse given RSQL query expression, bind it to given entity class and
+     * convert to Hibernate Criteria query for keyset (aka seek) pagination.
+     *
+     * <p>Results are ordered by given sort keys. If the last key is not the
+     * entity's identifier, then the identifier is appended as a unique
+     * tie-breaker. When a continuation token is given, the seek predicate
+     * <tt>(a > ?) or (a = ? and id > ?)</tt> is added, so the query selects
+     * only rows following the last row of the previous page. Unlike paging by
+     * {@linkplain Criteria#setFirstResult(int) first result}, the database
+     * doesn't have to scan and discard rows of all the previous pages.</p>
+     *
+     * @param query RSQL query expression.
+     * @param orderBy Sort keys, properties must not be nullable.
+     * @param continuationToken Token from {@link KeysetPage#getNextToken()},
+     *        or <tt>null</tt> for the first page.
+     * @param entityClass Entity class which given query is related to.
+     * @return Criteria query generated from given RSQL expression.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria, or when the continuation token is malformed.
+     */
+    DetachedCriteria createKeysetCriteria(String query, List<SortKey> orderBy, String continuationToken,
+            Class<?> entityClass) throws RSQLException;
+
+    /**
+     * Create a continuation token for keyset pagination from the given entity,
+     * typically the last row of a page.
+     *
+     * @param entity Entity to take values of the sort keys from.
+     * @param orderBy Sort keys, same as passed to
+     *        {@link #createKeysetCriteria(String, List, String, Class)
+     *        createKeysetCriteria()}.
+     * @param entityClass Entity class.
+     * @return continuation token
+     * @throws RSQLException If some sort key refers to an unknown property.
+     */
+    String createContinuationToken(Object entity, List<SortKey> orderBy, Class<?> entityClass)
+            throws RSQLException;
+
+    /**
+     * Fetch one page of entities matching given RSQL query expression using
+     * keyset pagination.
+     *
+     * @see #createKeysetCriteria(String, List, String, Class)
+     * @param query RSQL query expression.
+     * @param orderBy Sort keys, properties must not be nullable.
+     * @param pageSize Maximum number of entities on a page.
+     * @param continuationToken Token from {@link KeysetPage#getNextToken()},
+     *        or <tt>null</tt> for the first page.
+     * @param entityClass Entity class which given query is related to.
+     * @param session Hibernate session to execute the query in.
+     * @return Page of entities with a token of the next page.
+     * @throws RSQLException If some problem occured when parsing or building
+     *         Criteria, or when the continuation token is malformed.
+     */
+    <T> KeysetPage<T> fetchPage(String query, List<SortKey> orderBy, int pageSize, String continuationToken,
+            Class<T> entityClass, Session session) throws RSQLException;
+
 
 
     /**
@@ -162,6 +434,23 @@ public interface RSQL2CriteriaConverter {
      */
     public void setAssociationsLimit(int limit);
 
+    /**
+     * @see #setExecutionProfile(ExecutionProfile)
+     * @return The execution profile, or <tt>null</tt> if not set.
+     */
+    ExecutionProfile getExecutionProfile();
+
+    /**
+     * Set the execution profile that is applied to all queries executed by
+     * this converter, i.e. by methods with a <tt>Session</tt> argument.
+     * Criteria returned by <tt>create*</tt> methods are not affected, use
+     * {@link ExecutionProfile#apply(Criteria)} on them.
+     *
+     * @param executionProfile An <tt>ExecutionProfile</tt>, or <tt>null</tt>
+     *        to use the session's settings (default).
+     */
+    void setExecutionProfile(ExecutionProfile executionProfile);
+
     /**
      * Return the stack of Criterion Builders that are used to convert specific
      * {@linkplain ComparisonExpression} (constraint) to {@linkplain Criterion}.
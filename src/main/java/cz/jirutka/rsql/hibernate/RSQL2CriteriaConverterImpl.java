@@ -30,23 +30,43 @@ import cz.jirutka.rsql.parser.model.Comparison;
 import cz.jirutka.rsql.parser.model.ComparisonExpression;
 import cz.jirutka.rsql.parser.model.Expression;
 import cz.jirutka.rsql.parser.model.LogicalExpression;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.hibernate.Criteria;
+import org.hibernate.EntityMode;
+import org.hibernate.FetchMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.criterion.Conjunction;
 import org.hibernate.criterion.CriteriaSpecification;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Disjunction;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
 import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
 import org.hibernate.impl.CriteriaImpl;
 import org.hibernate.impl.CriteriaImpl.Subcriteria;
 import org.hibernate.impl.SessionFactoryImpl;
 import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.transform.ResultTransformer;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,11 +80,25 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
 
     private static final Logger LOG = LoggerFactory.getLogger(RSQL2CriteriaConverterImpl.class);
 
+    /**
+     * Alias of the root entity when the RSQL query is converted into
+     * a subquery of the same entity.
+     */
+    private static final String SUBQUERY_ALIAS = "sub";
+
     private final SessionFactory sessionFactory;
     private List<AbstractCriterionBuilder> builders = new LinkedList<AbstractCriterionBuilder>();
     private ArgumentParser argumentParser;
     private Mapper mapper;
+    private QueryCanonicalizer canonicalizer;
     private int associationsLimit = -1; //default
+    private int loadBatchSize = 100;  //default
+    private ExecutionProfile executionProfile;
+    private QueryResultCache resultCache;
+    private QueryCacheAdvisor queryCacheAdvisor;
+    private QueryStatisticsRegistry statisticsRegistry;
+    private SlowQueryLog slowQueryLog;
+    private boolean keyLookupEnabled = true;  //default
 
 
 
@@ -76,25 +110,17 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
      */
     public RSQL2CriteriaConverterImpl(SessionFactory sessionFactory) {
         this.sessionFactory = sessionFactory;
+        this.canonicalizer = new QueryCanonicalizer(sessionFactory, null);
     }
 
 
     @Override
     public DetachedCriteria createCriteria(String query, Class<?> entityClass) throws RSQLException {
-        Expression queryTree;
-        try {
-            LOG.info("Parsing query: {}", query);
-            queryTree = RSQLParser.parse(query);
-
-        } catch (ParseException ex) {
-            throw new RSQLException(ex);
-        } catch (TokenMgrError er) {
-            throw new RSQLException(er);
-        }
+        ParsedQuery parsed = parseTimed(query);
 
         DetachedCriteria criteria = DetachedCriteria.forClass(entityClass, ROOT_ALIAS);
         // convert query into this criteria
-        new InnerBuilder(entityClass).convert(queryTree, criteria);
+        new InnerBuilder(entityClass, parsed.parseTime).convert(parsed.tree, criteria);
 
         return criteria;
     }
@@ -104,30 +130,275 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
             throws RSQLException {
         assert orderBy != null : "orderBy must not be null!";
 
-        DetachedCriteria result = createCriteria(query, entityClass);
+        return createCriteria(query, Arrays.asList(new SortKey(orderBy, ascending)), entityClass);
+    }
 
-        orderBy = ROOT_ALIAS +'.'+ mapper.translate(orderBy, entityClass);
-        result.addOrder(ascending ? Order.asc(orderBy) : Order.desc(orderBy));
+    @Override
+    public DetachedCriteria createCriteria(String query, List<SortKey> orderBy, Class<?> entityClass)
+            throws RSQLException {
 
-        return result;
+        List<PropertyPath> paths = resolveSortPaths(orderBy, entityClass);
+        DetachedCriteria criteria = DetachedCriteria.forClass(entityClass, ROOT_ALIAS);
+
+        ParsedQuery parsed = parseTimed(query);
+
+        convertAndOrder(parsed, orderBy, paths, entityClass, criteria);
+
+        return criteria;
+    }
+
+    @Override
+    public DetachedCriteria createProjectionCriteria(String query, List<String> selectors, List<SortKey> orderBy,
+            ResultTransformer transformer, Class<?> entityClass) throws RSQLException {
+        assert !selectors.isEmpty() : "selectors must not be empty";
+
+        List<PropertyPath> paths = new ArrayList<PropertyPath>(selectors.size());
+        for (String selector : selectors) {
+            paths.add(resolveSingleValuedPath(selector, entityClass, "cannot project a collection"));
+        }
+        List<PropertyPath> sortPaths = resolveSortPaths(orderBy, entityClass);
+
+        DetachedCriteria criteria = DetachedCriteria.forClass(entityClass, ROOT_ALIAS);
+
+        ParsedQuery parsed = parseTimed(query);
+
+        InnerBuilder builder = new InnerBuilder(entityClass, parsed.parseTime);
+        builder.convert(parsed.tree, criteria);
+
+        // projected associations shouldn't filter out entities, hence LEFT JOIN
+        ProjectionList projection = Projections.projectionList();
+        for (int i = 0; i < paths.size(); i++) {
+            String path = builder.createAliasedPath(paths.get(i), Criteria.LEFT_JOIN);
+            projection.add(Projections.property(path), selectors.get(i));
+        }
+        for (int i = 0; i < sortPaths.size(); i++) {
+            builder.addOrder(sortPaths.get(i), orderBy.get(i).isAscending());
+        }
+        criteria.setProjection(projection);
+
+        if (transformer != null) {
+            criteria.setResultTransformer(transformer);
+        }
+
+        return criteria;
     }
 
     @Override
     public void extendCriteria(String query, Class<?> entityClass, Criteria criteria) throws RSQLException {
-        Expression queryTree;
+        ParsedQuery parsed = parseTimed(query);
+
+        // convert query into this criteria
+        new InnerBuilder(entityClass, parsed.parseTime).convert(parsed.tree, criteria);
+    }
+
+    @Override
+    public DetachedCriteria createCountCriteria(String query, Class<?> entityClass) throws RSQLException {
+        ParsedQuery parsed = parseTimed(query);
+
+        return createDistinctCriteria(parsed, entityClass)
+                .setProjection(Projections.rowCount());
+    }
+
+    @Override
+    public BoundedCount countAtMost(String query, Class<?> entityClass, int limit, Session session)
+            throws RSQLException {
+        assert limit > 0 : "limit must be greater than 0";
 
+        ParsedQuery parsed = parseTimed(query);
+
+        DetachedCriteria criteria = createDistinctCriteria(parsed, entityClass)
+                .setProjection(Projections.id());
+        // one more to find out if there are more than the limit
+        Criteria executable = execute(criteria, session)
+                .setMaxResults(limit < Integer.MAX_VALUE ? limit + 1 : limit);
+
+        long start = System.nanoTime();
+        ScrollableResults results = executable.scroll(ScrollMode.FORWARD_ONLY);
+        int count = 0;
         try {
-            LOG.info("Parsing query: {}", query);
-            queryTree = RSQLParser.parse(query);
+            while (results.next()) count++;
+        } finally {
+            results.close();
+        }
+        record(executable, query, parsed.tree, null, entityClass, count, System.nanoTime() - start);
+        LOG.debug("Counted {} entities with limit {}", count, limit);
 
-        } catch (ParseException ex) {
-            throw new RSQLException(ex);
-        } catch (TokenMgrError er) {
-            throw new RSQLException(er);
+        return new BoundedCount(Math.min(count, limit), count > limit);
+    }
+
+    @Override
+    public boolean exists(String query, Class<?> entityClass, Session session) throws RSQLException {
+        ParsedQuery parsed = parseTimed(query);
+
+        // no key lookup, it would hydrate the entity just to check its existence
+        DetachedCriteria criteria = DetachedCriteria.forClass(entityClass, ROOT_ALIAS);
+        new InnerBuilder(entityClass, parsed.parseTime).convert(parsed.tree, criteria);
+
+        criteria.setProjection(Projections.id());
+        List<?> result = list(execute(criteria, session).setMaxResults(1), query, parsed.tree, entityClass);
+
+        return !result.isEmpty();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> listByIds(final String query, List<SortKey> orderBy, final int firstResult, final int maxResults,
+            final Class<T> entityClass, Session session) throws RSQLException {
+
+        final List<SortKey> keys = new ArrayList<SortKey>(orderBy);
+        final List<PropertyPath> paths = resolveSortPaths(keys, entityClass);
+        final ParsedQuery parsed = parseTimed(query);
+        List<Serializable> ids;
+
+        List<T> found = (List<T>) lookupByKey(parsed.tree, entityClass, session);
+        if (found != null) {
+            return (firstResult == 0 && maxResults > 0) ? found : new ArrayList<T>(0);
         }
 
-        // convert query into this criteria
-        new InnerBuilder(entityClass).convert(queryTree, criteria);
+        if (resultCache != null) {
+            ids = resultCache.get(entityClass, canonicalizer.normalForm(parsed.tree, entityClass), keys,
+                    firstResult, maxResults, executionProfile, session,
+                    new QueryResultCache.Loader() {
+                        public List<Serializable> load(Session session, Set<Class<?>> touchedClasses) {
+                            return selectIds(query, parsed, keys, paths, firstResult, maxResults,
+                                    entityClass, session, touchedClasses);
+                        }
+                    });
+        } else {
+            ids = selectIds(query, parsed, keys, paths, firstResult, maxResults, entityClass,
+                    session, new HashSet<Class<?>>());
+        }
+
+        return (List<T>) loadByIds(ids, entityClass, session);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> list(String query, List<SortKey> orderBy, List<String> fetch, Class<T> entityClass,
+            Session session) throws RSQLException {
+
+        List<PropertyPath> sortPaths = resolveSortPaths(orderBy, entityClass);
+        List<PropertyPath> fetchPaths = resolveFetchPaths(fetch, entityClass);
+
+        ParsedQuery parsed = parseTimed(query);
+
+        List<T> found = (List<T>) lookupByKey(parsed.tree, entityClass, session);
+        if (found != null) {
+            new BatchFetcher(session, loadBatchSize).fetchAll(found, fetchPaths);
+            return found;
+        }
+
+        DetachedCriteria criteria = DetachedCriteria.forClass(entityClass, ROOT_ALIAS);
+        InnerBuilder builder = new InnerBuilder(entityClass, parsed.parseTime);
+        builder.convert(parsed.tree, criteria);
+
+        for (int i = 0; i < sortPaths.size(); i++) {
+            builder.addOrder(sortPaths.get(i), orderBy.get(i).isAscending());
+        }
+
+        // JOIN of a collection would multiply rows, so only to-one
+        // associations that are already joined by the query are fetched by JOIN
+        List<PropertyPath> batchPaths = new ArrayList<PropertyPath>(fetchPaths.size());
+        for (PropertyPath path : fetchPaths) {
+            if (!path.isCollectionValued() && builder.isAliased(path)) {
+                LOG.debug("Fetching {} by JOIN", path);
+                criteria.setFetchMode(path.getPath(), FetchMode.JOIN);
+            } else {
+                batchPaths.add(path);
+            }
+        }
+
+        List<T> result = (List<T>) list(execute(criteria, session), query, parsed.tree, entityClass);
+        new BatchFetcher(session, loadBatchSize).fetchAll(result, batchPaths);
+
+        return result;
+    }
+
+    @Override
+    public <T> ScrollableResultsIterator<T> stream(String query, List<SortKey> orderBy, int fetchSize,
+            Class<T> entityClass, Session session) throws RSQLException {
+        assert fetchSize > 0 : "fetchSize must be greater than 0";
+
+        List<PropertyPath> paths = resolveSortPaths(orderBy, entityClass);
+        DetachedCriteria criteria = DetachedCriteria.forClass(entityClass, ROOT_ALIAS);
+
+        ParsedQuery parsed = parseTimed(query);
+        convertAndOrder(parsed, orderBy, paths, entityClass, criteria);
+
+        return scroll(execute(criteria, session).setReadOnly(true), query, parsed.tree, entityClass,
+                fetchSize, session);
+    }
+
+    @Override
+    public <T> ScrollableResultsIterator<T> stream(String query, List<SortKey> orderBy, int fetchSize,
+            Class<T> entityClass, StatelessSession session) throws RSQLException {
+        assert fetchSize > 0 : "fetchSize must be greater than 0";
+
+        // DetachedCriteria cannot be bound to a stateless session
+        List<PropertyPath> paths = resolveSortPaths(orderBy, entityClass);
+        Criteria criteria = session.createCriteria(entityClass, ROOT_ALIAS);
+
+        ParsedQuery parsed = parseTimed(query);
+
+        InnerBuilder builder = new InnerBuilder(entityClass, parsed.parseTime);
+        builder.convert(parsed.tree, criteria);
+
+        for (int i = 0; i < paths.size(); i++) {
+            builder.addOrder(paths.get(i), orderBy.get(i).isAscending());
+        }
+
+        // stateless session has no persistence context, flush mode nor cache mode
+        if (executionProfile != null && executionProfile.getTimeout() >= 0) {
+            criteria.setTimeout(executionProfile.getTimeout());
+        }
+
+        return scroll(criteria, query, parsed.tree, entityClass, fetchSize, null);
+    }
+
+    @Override
+    public DetachedCriteria createKeysetCriteria(String query, List<SortKey> orderBy, String continuationToken,
+            Class<?> entityClass) throws RSQLException {
+
+        return createKeysetCriteria(parseTimed(query), orderBy, continuationToken, entityClass);
+    }
+
+    @Override
+    public String createContinuationToken(Object entity, List<SortKey> orderBy, Class<?> entityClass)
+            throws RSQLException {
+
+        List<SortKey> keys = new ArrayList<SortKey>(orderBy);
+        List<PropertyPath> paths = resolveSortPaths(keys, entityClass);
+        appendTieBreaker(keys, paths, entityClass);
+
+        Object[] values = new Object[paths.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = paths.get(i).getValue(entity);
+        }
+
+        return ContinuationToken.encode(values);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> KeysetPage<T> fetchPage(String query, List<SortKey> orderBy, int pageSize,
+            String continuationToken, Class<T> entityClass, Session session) throws RSQLException {
+        assert pageSize > 0 : "pageSize must be greater than 0";
+
+        ParsedQuery parsed = parseTimed(query);
+
+        // fetch one more row to find out if there's a next page
+        DetachedCriteria criteria = createKeysetCriteria(parsed, orderBy, continuationToken, entityClass);
+        List<T> rows = (List<T>) list(execute(criteria, session).setMaxResults(pageSize + 1),
+                query, parsed.tree, entityClass);
+
+        if (rows.size() <= pageSize) {
+            return new KeysetPage<T>(rows, null);
+        }
+
+        List<T> content = new ArrayList<T>(rows.subList(0, pageSize));
+        String nextToken = createContinuationToken(content.get(pageSize - 1), orderBy, entityClass);
+
+        return new KeysetPage<T>(content, nextToken);
     }
 
 
@@ -154,6 +425,173 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
     }
 
 
+    /**
+     * @see #setLoadBatchSize(int)
+     * @return Maximum number of entities loaded by one query.
+     */
+    public int getLoadBatchSize() {
+        return loadBatchSize;
+    }
+
+    /**
+     * Set the maximum number of entities that are loaded by one query, when
+     * loading entities by identifiers in {@link #listByIds(String, List,
+     * int, int, Class, Session) listByIds()}, or associations in batches
+     * in {@link #list(String, List, List, Class, Session) list()}.
+     * Default is 100.
+     *
+     * @param loadBatchSize Must be greater than 0.
+     */
+    public void setLoadBatchSize(int loadBatchSize) {
+        assert loadBatchSize > 0 : "must be greater than 0";
+        this.loadBatchSize = loadBatchSize;
+    }
+
+    @Override
+    public ExecutionProfile getExecutionProfile() {
+        return executionProfile;
+    }
+
+    @Override
+    public void setExecutionProfile(ExecutionProfile executionProfile) {
+        this.executionProfile = executionProfile;
+    }
+
+    /**
+     * @see #setResultCache(QueryResultCache)
+     * @return The result cache, or <tt>null</tt> if not set.
+     */
+    public QueryResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Set the cache of identifiers of query results that is used by
+     * {@link #listByIds(String, List, int, int, Class, Session) listByIds()}.
+     * It must be {@linkplain QueryResultCache#install() installed} into the
+     * session factory.
+     *
+     * @param resultCache A <tt>QueryResultCache</tt>, or <tt>null</tt> to
+     *        not cache results (default).
+     */
+    public void setResultCache(QueryResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * @see #setKeyLookupEnabled(boolean)
+     * @return <tt>true</tt> if key lookups are enabled.
+     */
+    public boolean isKeyLookupEnabled() {
+        return keyLookupEnabled;
+    }
+
+    /**
+     * Set whether queries that are a single equality on the identifier or
+     * natural identifier of the root entity are answered by
+     * <tt>Session.get()</tt> or a cacheable natural-id lookup, instead of
+     * a generated SQL query. It's used by {@link #list(String, List, List,
+     * Class, Session) list()} and {@link #listByIds(String, List, int, int,
+     * Class, Session) listByIds()}, not by {@link #exists(String, Class,
+     * Session) exists()} that selects only the identifier. Default is
+     * <tt>true</tt>.
+     *
+     * <p>A key lookup is used only when the property would be handled by
+     * {@link DefaultCriterionBuilder}, i.e. no custom Criterion Builder in
+     * the stack accepts it. <tt>Session.get()</tt> is used only when no
+     * Hibernate filter is enabled on the session and no {@linkplain
+     * #setExecutionProfile(ExecutionProfile) execution profile} is set,
+     * because neither is applied to it; otherwise the entity is selected by
+     * a Criteria query on the identifier.</p>
+     *
+     * @param keyLookupEnabled <tt>true</tt> to enable key lookups
+     */
+    public void setKeyLookupEnabled(boolean keyLookupEnabled) {
+        this.keyLookupEnabled = keyLookupEnabled;
+    }
+
+    /**
+     * @see #setQueryCacheAdvisor(QueryCacheAdvisor)
+     * @return The query cache advisor, or <tt>null</tt> if not set.
+     */
+    public QueryCacheAdvisor getQueryCacheAdvisor() {
+        return queryCacheAdvisor;
+    }
+
+    /**
+     * Set the advisor that enrolls hot query shapes into the Hibernate query
+     * cache. It's used for queries executed by {@link #exists(String, Class,
+     * Session) exists()}, {@link #list(String, List, List, Class, Session)
+     * list()} and {@link #listByIds(String, List, int, int, Class, Session)
+     * listByIds()}.
+     *
+     * @param queryCacheAdvisor A <tt>QueryCacheAdvisor</tt>, or <tt>null</tt>
+     *        to not use the query cache (default).
+     */
+    public void setQueryCacheAdvisor(QueryCacheAdvisor queryCacheAdvisor) {
+        this.queryCacheAdvisor = queryCacheAdvisor;
+    }
+
+    /**
+     * @see #setStatisticsRegistry(QueryStatisticsRegistry)
+     * @return The statistics registry, or <tt>null</tt> if not set.
+     */
+    public QueryStatisticsRegistry getStatisticsRegistry() {
+        return statisticsRegistry;
+    }
+
+    /**
+     * Set the registry to record statistics of converted queries per query
+     * shape to. Executions of queries by {@link #countAtMost(String, Class,
+     * int, Session) countAtMost()}, {@link #exists(String, Class, Session)
+     * exists()}, {@link #list(String, List, List, Class, Session) list()},
+     * {@link #listByIds(String, List, int, int, Class, Session) listByIds()},
+     * {@code stream()} and {@link #fetchPage(String, List, int, String, Class,
+     * Session) fetchPage()} are recorded too, together with sampled SQL.
+     * Execution of a stream is recorded when its iterator is closed.
+     *
+     * @param statisticsRegistry A <tt>QueryStatisticsRegistry</tt>, or
+     *        <tt>null</tt> to not record statistics (default).
+     */
+    public void setStatisticsRegistry(QueryStatisticsRegistry statisticsRegistry) {
+        this.statisticsRegistry = statisticsRegistry;
+    }
+
+    /**
+     * @see #setSlowQueryLog(SlowQueryLog)
+     * @return The slow query log, or <tt>null</tt> if not set.
+     */
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    /**
+     * Set the log of slow queries executed by {@link #countAtMost(String,
+     * Class, int, Session) countAtMost()}, {@link #exists(String, Class,
+     * Session) exists()}, {@link #list(String, List, List, Class, Session)
+     * list()}, {@link #listByIds(String, List, int, int, Class, Session)
+     * listByIds()}, {@code stream()} and {@link #fetchPage(String, List, int,
+     * String, Class, Session) fetchPage()}. A stream is timed by opening its
+     * cursor and logged when its iterator is closed.
+     *
+     * @param slowQueryLog A <tt>SlowQueryLog</tt>, or <tt>null</tt> to not
+     *        log slow queries (default).
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    /**
+     * Return canonicalizer of queries that uses this converter's Mapper. It's
+     * used to create keys of cached results and shapes for the query cache
+     * advisor. The same instance is returned until the Mapper is changed.
+     *
+     * @return A <tt>QueryCanonicalizer</tt>.
+     */
+    public QueryCanonicalizer getCanonicalizer() {
+        return canonicalizer;
+    }
+
     @Override
     public List<AbstractCriterionBuilder> getCriterionBuilders() {
         return builders;
@@ -176,6 +614,515 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
     @Override
     public void setMapper(Mapper mapper) {
         this.mapper = mapper;
+        this.canonicalizer = new QueryCanonicalizer(sessionFactory, mapper);
+    }
+
+
+    /**
+     * Parse given RSQL query expression.
+     *
+     * @param query RSQL query expression.
+     * @return Parsed query tree.
+     * @throws RSQLException If query is not valid.
+     */
+    protected Expression parse(String query) throws RSQLException {
+        try {
+            LOG.info("Parsing query: {}", query);
+            return RSQLParser.parse(query);
+
+        } catch (ParseException ex) {
+            throw new RSQLException(ex);
+        } catch (TokenMgrError er) {
+            throw new RSQLException(er);
+        }
+    }
+
+    /**
+     * Parse given RSQL query expression and measure the time of parsing.
+     */
+    private ParsedQuery parseTimed(String query) throws RSQLException {
+        long start = System.nanoTime();
+        Expression tree = parse(query);
+
+        return new ParsedQuery(tree, System.nanoTime() - start);
+    }
+
+    /**
+     * Bind given criteria to the session and apply the execution profile.
+     */
+    private Criteria execute(DetachedCriteria criteria, Session session) {
+        return applyProfile(criteria.getExecutableCriteria(session));
+    }
+
+    /**
+     * Apply the execution profile to given criteria, if any is set.
+     */
+    private Criteria applyProfile(Criteria criteria) {
+        return (executionProfile != null) ? executionProfile.apply(criteria) : criteria;
+    }
+
+    /**
+     * Execute given criteria, after the query cache advisor marks it as
+     * cacheable, and record the execution.
+     */
+    private List<?> list(Criteria criteria, String query, Expression queryTree, Class<?> entityClass) {
+        String shape = null;
+
+        if (queryCacheAdvisor != null) {
+            shape = canonicalizer.shapeOf(queryTree, entityClass);
+            queryCacheAdvisor.advise(criteria, shape, entityClass);
+        }
+        long start = System.nanoTime();
+        List<?> result = criteria.list();
+        record(criteria, query, queryTree, shape, entityClass, result.size(), System.nanoTime() - start);
+
+        return result;
+    }
+
+    /**
+     * Execute given criteria with forward-only scrollable results. The
+     * execution is recorded when the returned iterator is closed, with the
+     * time of opening the results and the number of rows read.
+     */
+    private <T> ScrollableResultsIterator<T> scroll(final Criteria criteria, final String query,
+            final Expression queryTree, final Class<?> entityClass, int fetchSize, Session session) {
+        LOG.debug("Scrolling results with fetch size {}", fetchSize);
+
+        long start = System.nanoTime();
+        ScrollableResults results = criteria.setFetchSize(fetchSize).scroll(ScrollMode.FORWARD_ONLY);
+        final long time = System.nanoTime() - start;
+
+        if (statisticsRegistry == null && slowQueryLog == null) {
+            return new ScrollableResultsIterator<T>(results, session, fetchSize);
+        }
+        return new ScrollableResultsIterator<T>(results, session, fetchSize) {
+            private boolean recorded = false;
+
+            @Override
+            public void close() {
+                super.close();
+                if (!recorded) {
+                    recorded = true;
+                    record(criteria, query, queryTree, null, entityClass, getCount(), time);
+                }
+            }
+        };
+    }
+
+    /**
+     * Record the execution to the statistics registry and the slow query
+     * log, if they are set.
+     *
+     * @param shape shape of the query, or <tt>null</tt> if not computed yet
+     */
+    private void record(Criteria criteria, String query, Expression queryTree, String shape,
+            Class<?> entityClass, int rows, long time) {
+
+        if (statisticsRegistry != null) {
+            if (shape == null) {
+                shape = canonicalizer.shapeOf(queryTree, entityClass);
+            }
+            statisticsRegistry.recordExecution(entityClass, shape, criteria, rows, time);
+        }
+        // the shape is needed only for slow queries, that should be rare
+        if (slowQueryLog != null && slowQueryLog.isSlow(time)) {
+            if (shape == null) {
+                shape = canonicalizer.shapeOf(queryTree, entityClass);
+            }
+            slowQueryLog.record(query, shape, criteria, rows, time);
+        }
+    }
+
+    /**
+     * Answer the query without generating SQL query, when it's a single
+     * equality on the identifier, or on the natural identifier (consisting
+     * of one property) of the root entity. The entity is obtained by
+     * {@link Session#get(Class, Serializable)}, or by a cacheable natural-id
+     * lookup, so it's served from the session or the second-level cache if
+     * possible.
+     *
+     * <p>It's not used when the property is handled by a custom Criterion
+     * Builder. When some Hibernate filter is enabled or an execution profile
+     * is set, the identifier is looked up by a Criteria query instead of
+     * <tt>Session.get()</tt>, so both are applied like to the generated SQL
+     * query.</p>
+     *
+     * @return List with the matching entity, empty list when there's no
+     *         such entity, or <tt>null</tt> if the query is not a key lookup.
+     * @throws RSQLException If the argument cannot be parsed.
+     */
+    private List<Object> lookupByKey(Expression queryTree, Class<?> entityClass, Session session)
+            throws RSQLException {
+
+        if (!keyLookupEnabled || !queryTree.isComparison()) {
+            return null;
+        }
+        ComparisonExpression comparison = (ComparisonExpression) queryTree;
+        String argument = comparison.getArgument();
+
+        if (comparison.getOperator() != Comparison.EQUAL
+                || argument.contains(AbstractCriterionBuilder.LIKE_WILDCARD.toString())
+                || AbstractCriterionBuilder.NULL_ARGUMENT.equals(argument)) {
+            return null;
+        }
+
+        ClassMetadata metadata = sessionFactory.getClassMetadata(entityClass);
+        String property = mapper.translate(comparison.getSelector(), entityClass);
+        Object entity;
+
+        if (!isHandledByDefaultBuilder(property, entityClass)) {
+            return null;
+        }
+        if (property.equals(metadata.getIdentifierPropertyName()) && isBasic(metadata.getIdentifierType())) {
+            Serializable id = (Serializable) parseArgument(comparison, metadata.getIdentifierType());
+
+            if (executionProfile == null
+                    && !((SessionImplementor) session).getLoadQueryInfluencers().hasEnabledFilters()) {
+                LOG.debug("Answering query by identifier lookup: {}", comparison);
+                entity = session.get(entityClass, id);
+            } else {
+                // Session.get() doesn't apply filters nor the profile
+                entity = applyProfile(session.createCriteria(entityClass))
+                        .add(Restrictions.idEq(id))
+                        .uniqueResult();
+            }
+
+        } else if (isSoleNaturalId(property, metadata) && isBasic(metadata.getPropertyType(property))) {
+            LOG.debug("Answering query by natural-id lookup: {}", comparison);
+            Object value = parseArgument(comparison, metadata.getPropertyType(property));
+            entity = applyProfile(session.createCriteria(entityClass))
+                    .add(Restrictions.naturalId().set(property, value))
+                    .setCacheable(true)
+                    .uniqueResult();
+        } else {
+            return null;
+        }
+
+        List<Object> result = new ArrayList<Object>(1);
+        if (entity != null) result.add(entity);
+
+        return result;
+    }
+
+    /**
+     * Whether the first Criterion Builder in the stack that accepts the
+     * property is {@link DefaultCriterionBuilder}.
+     */
+    private boolean isHandledByDefaultBuilder(String property, Class<?> entityClass) {
+        InnerBuilder parent = new InnerBuilder(entityClass);
+
+        for (AbstractCriterionBuilder builder : builders) {
+            if (builder.accept(property, entityClass, parent)) {
+                return builder.getClass() == DefaultCriterionBuilder.class;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSoleNaturalId(String property, ClassMetadata metadata) {
+        if (!metadata.hasNaturalIdentifier()) {
+            return false;
+        }
+        int[] naturalId = metadata.getNaturalIdentifierProperties();
+
+        return naturalId.length == 1 && metadata.getPropertyNames()[naturalId[0]].equals(property);
+    }
+
+    private boolean isBasic(Type type) {
+        return !type.isAssociationType() && !type.isComponentType();
+    }
+
+    private Object parseArgument(ComparisonExpression comparison, Type type) throws RSQLException {
+        try {
+            return argumentParser.parse(comparison.getArgument(), type.getReturnedClass());
+
+        } catch (ArgumentFormatException ex) {
+            throw new RSQLException(
+                    new ArgumentFormatException(comparison.getSelector(), ex.getArgument(), ex.getPropertyType()));
+        }
+    }
+
+    /**
+     * Select distinct identifiers of the root entities on the requested page.
+     *
+     * @param touchedClasses set to add entity classes touched by the query
+     * @return Identifiers in order of given sort keys.
+     */
+    private List<Serializable> selectIds(String query, ParsedQuery parsed, List<SortKey> orderBy,
+            List<PropertyPath> paths, int firstResult, int maxResults, Class<?> entityClass, Session session,
+            Set<Class<?>> touchedClasses) throws RSQLException {
+
+        DetachedCriteria criteria = DetachedCriteria.forClass(entityClass, ROOT_ALIAS);
+        InnerBuilder builder = new InnerBuilder(entityClass, parsed.parseTime);
+        builder.convert(parsed.tree, criteria);
+
+        // ordered columns must be selected too when using DISTINCT
+        ProjectionList projection = Projections.projectionList().add(Projections.id());
+        for (int i = 0; i < paths.size(); i++) {
+            projection.add(Projections.property(builder.addOrder(paths.get(i), orderBy.get(i).isAscending())));
+        }
+        touchedClasses.addAll(builder.getEntityClasses());
+
+        criteria.setProjection(Projections.distinct(projection));
+        Criteria executable = execute(criteria, session)
+                .setFirstResult(firstResult)
+                .setMaxResults(maxResults);
+        List<?> rows = list(executable, query, parsed.tree, entityClass);
+
+        List<Serializable> ids = new ArrayList<Serializable>(rows.size());
+        for (Object row : rows) {
+            ids.add((Serializable) (paths.isEmpty() ? row : ((Object[]) row)[0]));
+        }
+
+        return ids;
+    }
+
+    /**
+     * Load entities with given identifiers in the same order. Entities in
+     * the second-level cache are obtained from the session, the rest are
+     * loaded by batches of {@link #getLoadBatchSize() loadBatchSize}.
+     * Entities that doesn't exist anymore are skipped.
+     */
+    private List<Object> loadByIds(List<Serializable> ids, Class<?> entityClass, Session session) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(entityClass);
+        Map<Serializable, Object> entities = new HashMap<Serializable, Object>(ids.size());
+        List<Serializable> missing = new ArrayList<Serializable>(ids.size());
+
+        for (Serializable id : ids) {
+            if (sessionFactory.getCache().containsEntity(entityClass, id)) {
+                entities.put(id, session.get(entityClass, id));
+            } else {
+                missing.add(id);
+            }
+        }
+        LOG.debug("Found {} of {} entities in the second-level cache", entities.size(), ids.size());
+
+        for (int i = 0; i < missing.size(); i += loadBatchSize) {
+            List<Serializable> batch = missing.subList(i, Math.min(i + loadBatchSize, missing.size()));
+            List<?> loaded = applyProfile(session.createCriteria(entityClass))
+                    .add(Restrictions.in(metadata.getIdentifierPropertyName(), batch))
+                    .list();
+
+            for (Object entity : loaded) {
+                entities.put(metadata.getIdentifier(entity, EntityMode.POJO), entity);
+            }
+        }
+
+        List<Object> result = new ArrayList<Object>(ids.size());
+        for (Serializable id : ids) {
+            Object entity = entities.get(id);
+            if (entity != null) result.add(entity);
+        }
+
+        return result;
+    }
+
+    /**
+     * Convert given RSQL query tree into criteria that selects each matching
+     * entity only once. When the query doesn't need any JOIN of a collection,
+     * it's converted as usual. Otherwise it's converted into a correlated
+     * <tt>EXISTS</tt> subquery, because such JOINs multiply rows of the root
+     * entity.
+     */
+    private DetachedCriteria createDistinctCriteria(ParsedQuery parsed, Class<?> entityClass)
+            throws RSQLException {
+
+        long start = System.nanoTime();
+        DetachedCriteria criteria = DetachedCriteria.forClass(entityClass, ROOT_ALIAS);
+        InnerBuilder builder = new InnerBuilder(entityClass, parsed.parseTime);
+        builder.convert(parsed.tree, criteria, ROOT_ALIAS);
+
+        if (!builder.hasToManyAssociations()) {
+            builder.record(parsed.tree, start);
+            return criteria;
+        }
+
+        String idName = sessionFactory.getClassMetadata(entityClass).getIdentifierPropertyName();
+        DetachedCriteria subquery = DetachedCriteria.forClass(entityClass, SUBQUERY_ALIAS);
+
+        // the first conversion is thrown away, so only this one is recorded
+        start = System.nanoTime();
+        InnerBuilder subqueryBuilder = new InnerBuilder(entityClass, parsed.parseTime);
+        subqueryBuilder.convert(parsed.tree, subquery, SUBQUERY_ALIAS);
+        subqueryBuilder.record(parsed.tree, start);
+        subquery.add(Restrictions.eqProperty(SUBQUERY_ALIAS +'.'+ idName, ROOT_ALIAS +'.'+ idName))
+                .setProjection(Projections.id());
+
+        return DetachedCriteria.forClass(entityClass, ROOT_ALIAS)
+                .add(Subqueries.exists(subquery));
+    }
+
+    /**
+     * Create criteria of the keyset page, see {@link #createKeysetCriteria(
+     * String, List, String, Class)}.
+     */
+    private DetachedCriteria createKeysetCriteria(ParsedQuery parsed, List<SortKey> orderBy,
+            String continuationToken, Class<?> entityClass) throws RSQLException {
+
+        List<SortKey> keys = new ArrayList<SortKey>(orderBy);
+        List<PropertyPath> paths = resolveSortPaths(keys, entityClass);
+        appendTieBreaker(keys, paths, entityClass);
+
+        DetachedCriteria criteria = DetachedCriteria.forClass(entityClass, ROOT_ALIAS);
+
+        String[] aliasedPaths = convertAndOrder(parsed, keys, paths, entityClass, criteria);
+
+        if (continuationToken != null) {
+            Class<?>[] types = new Class<?>[paths.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = paths.get(i).getType();
+            }
+            Object[] values;
+            try {
+                values = ContinuationToken.decode(continuationToken, types, argumentParser);
+            } catch (ArgumentFormatException ex) {
+                throw new RSQLException(ex);
+            }
+            criteria.add(createSeekCriterion(aliasedPaths, keys, values));
+        }
+
+        return criteria;
+    }
+
+    /**
+     * Convert given RSQL query tree into the criteria and then add orders by
+     * given sort keys, so they can reuse association aliases of the query.
+     *
+     * @return Aliased property paths of the sort keys.
+     */
+    private String[] convertAndOrder(ParsedQuery parsed, List<SortKey> orderBy,
+            List<PropertyPath> paths, Class<?> entityClass, DetachedCriteria criteria) throws RSQLException {
+
+        InnerBuilder builder = new InnerBuilder(entityClass, parsed.parseTime);
+        builder.convert(parsed.tree, criteria);
+
+        String[] aliasedPaths = new String[paths.size()];
+        for (int i = 0; i < aliasedPaths.length; i++) {
+            aliasedPaths[i] = builder.addOrder(paths.get(i), orderBy.get(i).isAscending());
+        }
+
+        return aliasedPaths;
+    }
+
+    /**
+     * Resolve selectors of given sort keys to property paths. Paths through
+     * collections are rejected, because sorting by them would multiply rows.
+     *
+     * @param orderBy sort keys
+     * @param entityClass entity class
+     * @return Property paths of the sort keys.
+     * @throws RSQLException If some selector doesn't match any property or
+     *         it's a collection path.
+     */
+    private List<PropertyPath> resolveSortPaths(List<SortKey> orderBy, Class<?> entityClass)
+            throws RSQLException {
+
+        List<PropertyPath> paths = new ArrayList<PropertyPath>(orderBy.size() + 1);
+        for (SortKey key : orderBy) {
+            paths.add(resolveSingleValuedPath(key.getSelector(), entityClass, "cannot order by a collection"));
+        }
+        return paths;
+    }
+
+    /**
+     * Resolve selectors of a fetch plan to paths of associations.
+     *
+     * @param fetch selectors of associations
+     * @param entityClass entity class
+     * @return Property paths of the associations.
+     * @throws RSQLException If some selector doesn't match any property or
+     *         it's not an association.
+     */
+    private List<PropertyPath> resolveFetchPaths(List<String> fetch, Class<?> entityClass)
+            throws RSQLException {
+
+        List<PropertyPath> paths = new ArrayList<PropertyPath>(fetch.size());
+        try {
+            for (String selector : fetch) {
+                PropertyPath path = PropertyPath.resolve(selector, entityClass, mapper,
+                        (SessionFactoryImplementor) sessionFactory);
+
+                if (!path.isAssociation()) {
+                    throw new UnsupportedSelectorException(selector, "cannot fetch a property that is not an association");
+                }
+                paths.add(path);
+            }
+        } catch (UnknownSelectorException ex) {
+            throw new RSQLException(ex);
+        } catch (UnsupportedSelectorException ex) {
+            throw new RSQLException(ex);
+        }
+        return paths;
+    }
+
+    /**
+     * Resolve given selector to a property path that is not collection-valued.
+     *
+     * @param selector selector or dot-separated path of selectors
+     * @param entityClass entity class
+     * @param reason why collection paths are not supported
+     * @return property path
+     * @throws RSQLException If the selector doesn't match any property or
+     *         it's a collection path.
+     */
+    private PropertyPath resolveSingleValuedPath(String selector, Class<?> entityClass, String reason)
+            throws RSQLException {
+        try {
+            PropertyPath path = PropertyPath.resolve(selector, entityClass, mapper,
+                    (SessionFactoryImplementor) sessionFactory);
+
+            if (path.isCollectionValued()) {
+                throw new UnsupportedSelectorException(selector, reason);
+            }
+            return path;
+
+        } catch (UnknownSelectorException ex) {
+            throw new RSQLException(ex);
+        } catch (UnsupportedSelectorException ex) {
+            throw new RSQLException(ex);
+        }
+    }
+
+    /**
+     * Append the identifier of the root entity to given sort keys and paths
+     * as a unique tie-breaker, if it's not already the last key.
+     */
+    private void appendTieBreaker(List<SortKey> keys, List<PropertyPath> paths, Class<?> entityClass) {
+        int last = paths.size() -1;
+
+        if (last < 0 || !paths.get(last).isRootIdentifier()) {
+            String idName = sessionFactory.getClassMetadata(entityClass).getIdentifierPropertyName();
+            try {
+                paths.add(PropertyPath.resolve(idName, entityClass, null,
+                        (SessionFactoryImplementor) sessionFactory));
+            } catch (UnknownSelectorException ex) {
+                throw new IllegalStateException(ex);
+            }
+            keys.add(new SortKey(idName, last < 0 || keys.get(last).isAscending()));
+        }
+    }
+
+    /**
+     * Create the seek predicate <tt>(a > ?) or (a = ? and b > ?) or ...</tt>
+     * for given sort keys and values of the last row.
+     */
+    private Criterion createSeekCriterion(String[] paths, List<SortKey> keys, Object[] values) {
+        Disjunction disjunction = Restrictions.disjunction();
+
+        for (int i = 0; i < paths.length; i++) {
+            Conjunction conjunction = Restrictions.conjunction();
+
+            for (int j = 0; j < i; j++) {
+                conjunction.add(Restrictions.eq(paths[j], values[j]));
+            }
+            conjunction.add(keys.get(i).isAscending()
+                    ? Restrictions.gt(paths[i], values[i])
+                    : Restrictions.lt(paths[i], values[i]));
+
+            disjunction.add(conjunction);
+        }
+
+        return disjunction;
     }
 
 
@@ -183,20 +1130,47 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
 
     ///////////////  INNER CLASSES  ///////////////
 
+    /**
+     * Parsed query tree with the time of parsing in nanoseconds.
+     */
+    private static class ParsedQuery {
+
+        final Expression tree;
+        final long parseTime;
+
+        ParsedQuery(Expression tree, long parseTime) {
+            this.tree = tree;
+            this.parseTime = parseTime;
+        }
+    }
+
     /**
      * Inner class for building Criteria from parsed RSQL expression.
      */
     protected class InnerBuilder implements CriteriaBuilder {
 
         private final Map<String, String> aliases = new HashMap<String, String>(3);
+        private final Map<String, Class<?>> aliasClasses = new HashMap<String, Class<?>>(3);
+        private final Set<String> toManyAliases = new HashSet<String>(3);
         private final Class<?> entityClass;
         private CriteriaSpecification criteria;  // Criteria or DetachedCriteria
         private String rootAlias;
         private int associations = 0;  // number of aliases created by this builder
+        private final long parseTime;  // of the converted query, recorded with the conversion
 
 
         protected InnerBuilder(Class<?> entityClass) {
+            this(entityClass, 0);
+        }
+
+        /**
+         * @param entityClass Root entity class.
+         * @param parseTime Time of parsing the converted query in
+         *        nanoseconds, recorded to the statistics registry.
+         */
+        protected InnerBuilder(Class<?> entityClass, long parseTime) {
             this.entityClass = entityClass;
+            this.parseTime = parseTime;
         }
 
 
@@ -209,9 +1183,27 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
          * @throws RSQLException
          */
         protected void convert(Expression queryTree, DetachedCriteria criteria) throws RSQLException {
+            long start = System.nanoTime();
+            convert(queryTree, criteria, ROOT_ALIAS);
+            record(queryTree, start);
+        }
+
+        /**
+         * Convert given RSQL query tree to Criterions and append it to given
+         * <i>empty</i> {@linkplain DetachedCriteria} with the specified root
+         * alias.
+         *
+         * @param queryTree RSQL query expression tree.
+         * @param criteria Criteria which will be extended by given query.
+         * @param rootAlias Alias of the root entity in given Criteria.
+         * @throws RSQLException
+         */
+        protected void convert(Expression queryTree, DetachedCriteria criteria, String rootAlias)
+                throws RSQLException {
             this.criteria = criteria;
-            this.rootAlias = ROOT_ALIAS;
-            Criterion criterion = createCriterion(queryTree);
+            this.rootAlias = rootAlias;
+            aliasClasses.put(rootAlias, entityClass);
+            Criterion criterion = createCriterion(reorder(queryTree));
             criteria.add(criterion);
         }
 
@@ -226,13 +1218,51 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
          * @throws RSQLException
          */
         protected void convert(Expression queryTree, Criteria criteria) throws RSQLException {
+            long start = System.nanoTime();
             this.criteria = criteria;
             this.rootAlias = loadAssociationAliases(criteria);
-            Criterion criterion = createCriterion(queryTree);
+            aliasClasses.put(rootAlias, entityClass);
+            Criterion criterion = createCriterion(reorder(queryTree));
             criteria.add(criterion);
+            record(queryTree, start);
+        }
+
+        /**
+         * Record conversion of the query to the statistics registry, if any
+         * is set, together with parse time given to this builder.
+         *
+         * @param queryTree RSQL query expression tree.
+         * @param start Start of the conversion by {@link System#nanoTime()}.
+         */
+        private void record(Expression queryTree, long start) {
+            if (statisticsRegistry == null) return;
+
+            long convertTime = System.nanoTime() - start;
+            statisticsRegistry.recordConversion(entityClass, canonicalizer.shapeOf(queryTree, entityClass),
+                    parseTime, convertTime, associations);
         }
 
 
+        /**
+         * Reorder operands of the query tree canonically, so logically
+         * identical queries create association aliases (JOINs) and
+         * Criterions in the same order, i.e. render the same SQL. This allows
+         * to reuse prepared statements and Hibernate's query plans.
+         *
+         * <p>The SQL is consumed by the query cache, statistics registry and
+         * slow query log, so when none of them is set, the tree is returned
+         * as is.</p>
+         *
+         * @param queryTree RSQL query expression tree.
+         * @return Reordered query tree.
+         */
+        private Expression reorder(Expression queryTree) {
+            if (queryCacheAdvisor == null && statisticsRegistry == null && slowQueryLog == null) {
+                return queryTree;
+            }
+            return canonicalizer.reorder(queryTree, entityClass);
+        }
+
         /**
          * Extract all association aliases from given Criteria and put them into
          * our aliases map. Then return the root alias of given Criteria.
@@ -339,6 +1369,72 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
             }
         }
 
+        /**
+         * Create association aliases for all associations on the given
+         * property path and return the aliased property. Aliases that already
+         * exist (e.g. created by Criterion Builders) are reused.
+         *
+         * @param path property path
+         * @param joinType join type of new association aliases
+         * @return Property name prefixed with an association alias.
+         * @throws AssociationsLimitException If allowed number of associations
+         *         was exceeded.
+         */
+        protected String createAliasedPath(PropertyPath path, int joinType)
+                throws AssociationsLimitException {
+
+            String[] properties = path.getProperties();
+            String alias = rootAlias + '.';
+
+            for (int i = 0; i < properties.length -1; i++) {
+                alias = createAssociationAlias(alias + properties[i], joinType) + '.';
+            }
+            return alias + properties[properties.length -1];
+        }
+
+        /**
+         * Return <tt>true</tt> if all associations on the given path,
+         * including the last property, are already aliased (i.e. joined).
+         *
+         * @param path path of associations
+         * @return <tt>true</tt> if the whole path is joined
+         */
+        protected boolean isAliased(PropertyPath path) {
+            String alias = rootAlias;
+
+            for (String property : path.getProperties()) {
+                alias = aliases.get(alias + '.' + property);
+                if (alias == null) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Add order by the given property path to the criteria. Missing
+         * association aliases are created as LEFT JOIN to not filter out
+         * entities without an associated entity.
+         *
+         * @param path property path to order by
+         * @param ascending <tt>true</tt> ascending order,
+         *                  <tt>false</tt> descending order
+         * @return Property name prefixed with an association alias.
+         * @throws AssociationsLimitException If allowed number of associations
+         *         was exceeded.
+         */
+        protected String addOrder(PropertyPath path, boolean ascending)
+                throws AssociationsLimitException {
+
+            String propertyPath = createAliasedPath(path, Criteria.LEFT_JOIN);
+            Order order = ascending ? Order.asc(propertyPath) : Order.desc(propertyPath);
+
+            if (criteria instanceof DetachedCriteria) {
+                ((DetachedCriteria) criteria).addOrder(order);
+            } else {
+                ((Criteria) criteria).addOrder(order);
+            }
+            return propertyPath;
+        }
+
         @Override
         public Criterion delegateToBuilder(String property, Comparison operator, String argument, Class<?> entityClass, String alias)
                 throws ArgumentFormatException, UnknownSelectorException, IllegalArgumentException {
@@ -384,6 +1480,7 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
             String alias = ALIAS_PREFIX + String.valueOf(associations);
             LOG.debug("Creating association alias (i.e. JOIN) for {}: {}", associationPath, alias);
             aliases.put(associationPath, alias);
+            resolveAssociation(associationPath, alias);
 
             if (criteria instanceof DetachedCriteria) {
                 ((DetachedCriteria) criteria).createAlias(associationPath, alias, joinType);
@@ -394,6 +1491,58 @@ public class RSQL2CriteriaConverterImpl implements RSQL2CriteriaConverter {
             return alias;
         }
 
+        /**
+         * Return <tt>true</tt> if this builder has created an association
+         * alias for a collection (i.e. to-many JOIN), or an alias for
+         * association that cannot be resolved.
+         *
+         * @return <tt>true</tt> if rows of the root entity may be multiplied
+         *         by JOINs, <tt>false</tt> otherwise
+         */
+        protected boolean hasToManyAssociations() {
+            return !toManyAliases.isEmpty();
+        }
+
+        /**
+         * Return classes of the root entity and all associated entities that
+         * are aliased (joined) by this builder.
+         *
+         * @return entity classes touched by the converted query
+         */
+        protected Set<Class<?>> getEntityClasses() {
+            return new HashSet<Class<?>>(aliasClasses.values());
+        }
+
+        /**
+         * Resolve the entity class of given association path and remember it
+         * for the alias, so we can resolve nested paths later.
+         *
+         * @param associationPath association path prefixed with an alias
+         * @param alias alias of the association
+         */
+        private void resolveAssociation(String associationPath, String alias) {
+            int dot = associationPath.lastIndexOf('.');
+            Class<?> ownerClass = (dot > 0) ? aliasClasses.get(associationPath.substring(0, dot)) : null;
+            ClassMetadata metadata = (ownerClass != null) ? getClassMetadata(ownerClass) : null;
+            String property = associationPath.substring(dot + 1);
+
+            if (metadata == null || !Arrays.asList(metadata.getPropertyNames()).contains(property)) {
+                LOG.debug("Cannot resolve type of association {}, assuming it's a collection", associationPath);
+                toManyAliases.add(alias);
+                return;
+            }
+
+            Type type = metadata.getPropertyType(property);
+            if (type.isCollectionType()) {
+                toManyAliases.add(alias);
+                if (type.isAssociationType()) {
+                    aliasClasses.put(alias, ((CollectionType) type).getElementType(getSessionFactory()).getReturnedClass());
+                }
+            } else {
+                aliasClasses.put(alias, type.getReturnedClass());
+            }
+        }
+
 
         @Override
         public ArgumentParser getArgumentParser() {
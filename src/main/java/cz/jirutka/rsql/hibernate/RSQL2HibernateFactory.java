@@ -44,6 +44,7 @@ public class RSQL2HibernateFactory {
     private List<AbstractCriterionBuilder> criterionBuilders = new ArrayList<AbstractCriterionBuilder>(4);
     private int associationsLimit = -1;  // default
     private Mapper mapper = new SimpleMapper();  // default
+    private ExecutionProfile executionProfile;
 
 
     /**
@@ -80,11 +81,30 @@ public class RSQL2HibernateFactory {
         converter.setArgumentParser(argumentParser);
         converter.setAssociationsLimit(associationsLimit);
         converter.setMapper(mapper);
+        converter.setExecutionProfile(executionProfile);
         converter.getCriterionBuilders().addAll(criterionBuilders);
 
         return converter;
     }
 
+    /**
+     * Create new {@link PredicateCompiler} that can compile a RSQL expressions
+     * into predicates evaluated on entities in memory. It uses the same
+     * Argument Parser, Mapper and Criterion Builders as converters.
+     *
+     * @return PredicateCompiler
+     */
+    public PredicateCompiler createPredicateCompiler() {
+        PredicateCompiler compiler = new PredicateCompiler(sessionFactory);
+
+        // copy defaults
+        compiler.setArgumentParser(argumentParser);
+        compiler.setMapper(mapper);
+        compiler.setCriterionBuilders(new ArrayList<AbstractCriterionBuilder>(criterionBuilders));
+
+        return compiler;
+    }
+
 
     /**
      * Set default Argument Parser. If you don't set any, the
@@ -147,6 +167,18 @@ public class RSQL2HibernateFactory {
         this.mapper = mapping;
     }
 
+    /**
+     * Set default <tt>ExecutionProfile</tt> for new instances. If you don't
+     * set any, queries are executed with the session's settings.
+     *
+     * @see RSQL2CriteriaConverter#setExecutionProfile(ExecutionProfile)
+     * @param executionProfile An <tt>ExecutionProfile</tt> instance, or
+     *        <tt>null</tt>.
+     */
+    public void setExecutionProfile(ExecutionProfile executionProfile) {
+        this.executionProfile = executionProfile;
+    }
+
     /**
      * Set Hibernate <tt>SessionFactory</tt> that will be used to obtain
      * <tt>ClassMetadata</tt>.
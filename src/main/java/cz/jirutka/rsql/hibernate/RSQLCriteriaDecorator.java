@@ -84,6 +84,18 @@ public class RSQLCriteriaDecorator extends AbstractCriteriaDecorator<RSQLCriteri
         return this;
     }
 
+    /**
+     * Apply given execution profile to this Criteria query, e.g. to execute
+     * it as read-only without auto-flush.
+     *
+     * @param profile execution profile
+     * @return this (for method chaining)
+     */
+    public RSQLCriteriaDecorator applyProfile(ExecutionProfile profile) {
+        profile.apply(criteria);
+        return this;
+    }
+
 
     @Override
     protected RSQLCriteriaDecorator decorate(Criteria criteria) {
@@ -0,0 +1,501 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.parser.ParseException;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.TokenMgrError;
+import cz.jirutka.rsql.parser.model.ComparisonExpression;
+import cz.jirutka.rsql.parser.model.Expression;
+import cz.jirutka.rsql.parser.model.LogicalExpression;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hibernate.EntityMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of complete (not paged) query results that answers also narrower
+ * queries. When a query is {@linkplain QueryContainment contained} in
+ * a query with cached result, e.g. <tt>credits=gt=4;active==true</tt> in
+ * <tt>credits=ge=4</tt>, it's evaluated in memory on the cached entities
+ * by the predicate compiled by {@link PredicateCompiler}, instead of
+ * querying the database.
+ *
+ * <p>Only results with at most {@linkplain #setMaxResultSize(int) max result
+ * size} entities are cached, filtering bigger results in memory is usually
+ * not worth it. Only identifiers of the entities are cached, they are
+ * materialized in the session of each request: from its persistence
+ * context, the second-level cache, or loaded by batches of identifiers.
+ * Only queries that compare basic properties of the root entity, that are
+ * not handled by a custom {@linkplain AbstractCriterionBuilder Criterion
+ * Builder}, are evaluated in memory, so associations of the materialized
+ * entities are not initialized; other queries are answered only by their
+ * own cached result.</p>
+ *
+ * <p>Each cached result remembers the entity classes its query touched.
+ * Results are invalidated when an entity of such class is changed, like in
+ * {@link QueryResultCache}; the event listeners must be {@linkplain
+ * #install() installed} into the session factory. Results are also
+ * invalidated when their {@linkplain #setTimeToLive(long) time to live}
+ * expires or {@linkplain #invalidate(Class) explicitly}.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class RefinementCache extends AbstractInvalidationListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RefinementCache.class);
+    private static final int LOAD_BATCH_SIZE = 100;
+
+    private final SessionFactory sessionFactory;
+    private final PredicateCompiler compiler;
+    private final QueryContainment containment;
+    private final Map<String, CachedResult> entries;  // guarded by this
+    private long invalidations = 0;  // guarded by this
+    private volatile int maxResultSize = 1000;
+    private volatile long timeToLive = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong refinements = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+
+    /**
+     * Construct a new <tt>RefinementCache</tt>.
+     *
+     * @param sessionFactory factory to obtain metadata from and to install
+     *        listeners into
+     * @param compiler compiler of queries evaluated in memory
+     * @param maxEntries maximum number of cached results, the least recently
+     *        used are evicted
+     */
+    public RefinementCache(SessionFactory sessionFactory, PredicateCompiler compiler, final int maxEntries) {
+        super(sessionFactory);
+        assert maxEntries > 0 : "maxEntries must be greater than 0";
+
+        this.sessionFactory = sessionFactory;
+        this.compiler = compiler;
+        this.containment = new QueryContainment(sessionFactory, compiler);
+        this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    /**
+     * List entities matching given RSQL query expression from the cache, or
+     * using the converter. Result of the converter is cached, unless it's
+     * bigger than the max result size.
+     *
+     * <p>The converter loads at most one entity more than the max result
+     * size. When the result is bigger, it's not cached and the complete
+     * result is loaded again, so the first load is wasted.</p>
+     *
+     * @param query RSQL query expression
+     * @param entityClass entity class which given query is related to
+     * @param converter converter to use when the query is not answered from
+     *        the cache
+     * @param session Hibernate session to execute the query in
+     * @return matching entities, in unspecified order
+     * @throws RSQLException If some problem occured when parsing or
+     *         converting the query.
+     */
+    public <T> List<T> list(String query, Class<T> entityClass, RSQL2CriteriaConverter converter, Session session)
+            throws RSQLException {
+        List<T> result = get(query, entityClass, session);
+
+        if (result == null) {
+            List<SortKey> noOrder = new ArrayList<SortKey>(0);
+            long startInvalidations;
+            synchronized (this) {
+                startInvalidations = invalidations;
+            }
+            int limit = maxResultSize;
+            result = converter.listByIds(query, noOrder, 0, limit + 1, entityClass, session);
+
+            if (result.size() <= limit) {
+                put(parse(query), query, entityClass, result, startInvalidations);
+            } else {
+                LOG.debug("Result of {} is bigger than {}, loading it again without limit", query, limit);
+                result = converter.listByIds(query, noOrder, 0, Integer.MAX_VALUE, entityClass, session);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return entities matching given RSQL query expression, if it's cached,
+     * or if it compares only basic properties of the root entity and it's
+     * contained in some query with cached result.
+     *
+     * @param query RSQL query expression
+     * @param entityClass entity class which given query is related to
+     * @param session Hibernate session to materialize the cached entities in
+     * @return matching entities in order of the cached result, or
+     *         <tt>null</tt> if not found
+     * @throws RSQLException If some problem occured when parsing or
+     *         compiling the query.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> get(String query, Class<T> entityClass, Session session) throws RSQLException {
+        Expression queryTree = parse(query);
+        boolean refinable = isRefinable(queryTree, entityClass);
+        CachedResult exact, found = null;
+
+        synchronized (this) {
+            exact = entries.get(keyOf(queryTree, entityClass));
+            if (exact != null && exact.isExpired(timeToLive)) {
+                exact = null;
+            }
+            for (Iterator<CachedResult> it = entries.values().iterator(); it.hasNext(); ) {
+                CachedResult entry = it.next();
+
+                if (entry.isExpired(timeToLive)) {
+                    it.remove();
+                } else if (exact == null && refinable && entry.entityClass == entityClass
+                        && (found == null || entry.ids.size() < found.ids.size())
+                        && containment.contains(entry.queryTree, queryTree, entityClass)) {
+                    found = entry;
+                }
+            }
+        }
+        if (exact != null) {
+            hits.incrementAndGet();
+            return (List<T>) materialize(exact.ids, entityClass, session);
+        }
+        if (found == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        refinements.incrementAndGet();
+        LOG.debug("Query {} is answered from cached result of {}", query, found.query);
+
+        return PredicateCompiler.filter((List<T>) materialize(found.ids, entityClass, session),
+                compiler.compile(queryTree, entityClass));
+    }
+
+    /**
+     * Put a complete result of the query into the cache, unless it's bigger
+     * than the max result size.
+     *
+     * @param query RSQL query expression
+     * @param entityClass entity class which given query is related to
+     * @param entities all entities matching the query
+     * @return <tt>true</tt> if cached
+     * @throws RSQLException If the query cannot be parsed.
+     */
+    public boolean put(String query, Class<?> entityClass, List<?> entities) throws RSQLException {
+        if (entities.size() > maxResultSize) {
+            return false;
+        }
+        long startInvalidations;
+        synchronized (this) {
+            startInvalidations = invalidations;
+        }
+        return put(parse(query), query, entityClass, entities, startInvalidations);
+    }
+
+    /**
+     * Remove cached results that touched the given entity class, its
+     * superclass or subclass.
+     *
+     * @param entityClass entity class
+     */
+    @Override
+    public synchronized void invalidate(Class<?> entityClass) {
+        invalidations++;
+
+        for (Iterator<CachedResult> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().touches(entityClass)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove all cached results.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Return identifiers of the cached result of the given query.
+     *
+     * @param query RSQL query expression
+     * @param entityClass entity class which given query is related to
+     * @return identifiers, or <tt>null</tt> if not cached
+     * @throws RSQLException If the query cannot be parsed.
+     */
+    public synchronized List<Serializable> getCachedIds(String query, Class<?> entityClass) throws RSQLException {
+        CachedResult entry = entries.get(keyOf(parse(query), entityClass));
+        return (entry != null) ? new ArrayList<Serializable>(entry.ids) : null;
+    }
+
+
+    /**
+     * @return Number of queries answered by their own cached result.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of queries answered in memory from cached result of
+     *         a broader query.
+     */
+    public long getRefinements() {
+        return refinements.get();
+    }
+
+    /**
+     * @return Number of queries not answered from the cache.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of cached results.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxResultSize() {
+        return maxResultSize;
+    }
+
+    /**
+     * Set maximum number of entities of a cached result. Default is 1000.
+     *
+     * @param maxResultSize Must be greater than 0.
+     */
+    public void setMaxResultSize(int maxResultSize) {
+        assert maxResultSize > 0 : "must be greater than 0";
+        this.maxResultSize = maxResultSize;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Set time in milliseconds after which a cached result expires.
+     * Default is 0, i.e. until invalidated.
+     *
+     * @param timeToLive Must be greater or equal 0.
+     */
+    public void setTimeToLive(long timeToLive) {
+        assert timeToLive >= 0 : "must be greater or equal 0";
+        this.timeToLive = timeToLive;
+    }
+
+
+    /**
+     * Cache the result, unless some entity class was invalidated since the
+     * given number of invalidations, i.e. while the result was loading.
+     */
+    private boolean put(Expression queryTree, String query, Class<?> entityClass, List<?> entities,
+            long startInvalidations) throws RSQLException {
+        Set<Class<?>> touchedClasses = new HashSet<Class<?>>();
+        touchedClasses.add(entityClass);
+        for (PropertyPath path : resolvePaths(queryTree, entityClass, new ArrayList<PropertyPath>())) {
+            for (int i = 0; i < path.length(); i++) {
+                touchedClasses.add(path.getOwner(i));
+            }
+            if (path.isAssociation()) {
+                touchedClasses.add(path.getType());
+            }
+        }
+        CachedResult entry = new CachedResult(query, queryTree, entityClass, getIds(entities, entityClass),
+                touchedClasses);
+
+        synchronized (this) {
+            if (invalidations != startInvalidations) {
+                LOG.debug("Result of {} may have changed while loading, not caching it", query);
+                return false;
+            }
+            entries.put(keyOf(queryTree, entityClass), entry);
+        }
+        return true;
+    }
+
+    /**
+     * Whether the query compares only basic properties of the root entity,
+     * so it can be evaluated on cached entities without initializing their
+     * associations, and none of them is handled by a custom Criterion
+     * Builder (when the compiler knows the builder stack).
+     */
+    private boolean isRefinable(Expression queryTree, Class<?> entityClass) throws RSQLException {
+        List<AbstractCriterionBuilder> builders = compiler.getCriterionBuilders();
+
+        for (PropertyPath path : resolvePaths(queryTree, entityClass, new ArrayList<PropertyPath>())) {
+            if (path.length() > 1 || path.isAssociation() || path.isCollectionValued()) {
+                return false;
+            }
+            if (builders != null && !PredicateCompiler.isHandledByBuiltInBuilder(builders, path,
+                    compiler.getMapper(), (SessionFactoryImplementor) sessionFactory)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<PropertyPath> resolvePaths(Expression expression, Class<?> entityClass, List<PropertyPath> paths)
+            throws RSQLException {
+        if (expression.isComparison()) {
+            try {
+                paths.add(PropertyPath.resolve(((ComparisonExpression) expression).getSelector(), entityClass,
+                        compiler.getMapper(), (SessionFactoryImplementor) sessionFactory));
+            } catch (UnknownSelectorException ex) {
+                throw new RSQLException(ex);
+            }
+        } else {
+            resolvePaths(((LogicalExpression) expression).getLeft(), entityClass, paths);
+            resolvePaths(((LogicalExpression) expression).getRight(), entityClass, paths);
+        }
+        return paths;
+    }
+
+    private String keyOf(Expression queryTree, Class<?> entityClass) {
+        QueryCanonicalizer canonicalizer = new QueryCanonicalizer(sessionFactory, compiler.getMapper());
+        return entityClass.getName() + '|' + canonicalizer.normalForm(queryTree, entityClass);
+    }
+
+    /**
+     * Obtain entities with given identifiers in the session, in the same
+     * order. Entities in the persistence context or the second-level cache
+     * are obtained by <tt>Session.get()</tt>, the rest are loaded by batches.
+     * Entities that doesn't exist anymore are skipped.
+     */
+    private List<Object> materialize(List<Serializable> ids, Class<?> entityClass, Session session) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(entityClass);
+        EntityPersister persister = ((SessionFactoryImplementor) sessionFactory)
+                .getEntityPersister(entityClass.getName());
+        SessionImplementor sessionImpl = (SessionImplementor) session;
+        Map<Serializable, Object> entities = new HashMap<Serializable, Object>(ids.size());
+        List<Serializable> missing = new ArrayList<Serializable>();
+
+        for (Serializable id : ids) {
+            EntityKey key = new EntityKey(id, persister, EntityMode.POJO);
+            if (sessionImpl.getPersistenceContext().containsEntity(key)
+                    || sessionFactory.getCache().containsEntity(entityClass, id)) {
+                entities.put(id, session.get(entityClass, id));
+            } else {
+                missing.add(id);
+            }
+        }
+        for (int i = 0; i < missing.size(); i += LOAD_BATCH_SIZE) {
+            List<Serializable> batch = missing.subList(i, Math.min(i + LOAD_BATCH_SIZE, missing.size()));
+            List<?> loaded = session.createCriteria(entityClass)
+                    .add(Restrictions.in(metadata.getIdentifierPropertyName(), batch))
+                    .list();
+
+            for (Object entity : loaded) {
+                entities.put(metadata.getIdentifier(entity, EntityMode.POJO), entity);
+            }
+        }
+        LOG.trace("Materialized {} entities, {} loaded by query", ids.size(), missing.size());
+
+        List<Object> result = new ArrayList<Object>(ids.size());
+        for (Serializable id : ids) {
+            Object entity = entities.get(id);
+            if (entity != null) result.add(entity);
+        }
+        return result;
+    }
+
+    private List<Serializable> getIds(List<?> entities, Class<?> entityClass) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(entityClass);
+        List<Serializable> ids = new ArrayList<Serializable>(entities.size());
+
+        for (Object entity : entities) {
+            ids.add(metadata.getIdentifier(entity, EntityMode.POJO));
+        }
+        return ids;
+    }
+
+    private Expression parse(String query) throws RSQLException {
+        try {
+            return RSQLParser.parse(query);
+        } catch (ParseException ex) {
+            throw new RSQLException(ex);
+        } catch (TokenMgrError er) {
+            throw new RSQLException(er);
+        }
+    }
+
+
+    private static class CachedResult {
+
+        final String query;
+        final Expression queryTree;
+        final Class<?> entityClass;
+        final List<Serializable> ids;
+        final Set<Class<?>> touchedClasses;
+        final long created = System.currentTimeMillis();
+
+        CachedResult(String query, Expression queryTree, Class<?> entityClass, List<Serializable> ids,
+                Set<Class<?>> touchedClasses) {
+            this.query = query;
+            this.queryTree = queryTree;
+            this.entityClass = entityClass;
+            this.ids = ids;
+            this.touchedClasses = touchedClasses;
+        }
+
+        boolean touches(Class<?> entityClass) {
+            for (Class<?> touched : touchedClasses) {
+                if (touched.isAssignableFrom(entityClass) || entityClass.isAssignableFrom(touched)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isExpired(long timeToLive) {
+            return timeToLive > 0 && System.currentTimeMillis() - created > timeToLive;
+        }
+    }
+
+}
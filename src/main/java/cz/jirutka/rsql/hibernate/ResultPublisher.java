@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publisher of entities matching an RSQL query expression, with
+ * backpressure. Entities are pulled from the database only when the
+ * subscriber requests them, in batches of at most the requested number of
+ * entities. Hence a slow subscriber doesn't make the session buffer the whole
+ * result set.
+ *
+ * <p>Batches are fetched using {@linkplain
+ * RSQL2CriteriaConverter#fetchPage(String, List, int, String, Class, Session)
+ * keyset pagination} on the given executor. Each batch is fetched in a new
+ * read-only session that is closed right away, so no connection is held
+ * between batches, nor after the subscriber cancels. Published entities are
+ * therefore detached.</p>
+ *
+ * <p>This follows the Reactive Streams (<tt>java.util.concurrent.Flow</tt>)
+ * contract, but it's defined by own interfaces {@link ResultSubscriber} and
+ * {@link ResultSubscription} to not require Java 9.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class ResultPublisher<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResultPublisher.class);
+
+    private final RSQL2CriteriaConverter converter;
+    private final SessionFactory sessionFactory;
+    private final Executor executor;
+    private final String query;
+    private final List<SortKey> orderBy;
+    private final Class<T> entityClass;
+    private final int maxBatchSize;
+
+
+    /**
+     * Construct a new <tt>ResultPublisher</tt>.
+     *
+     * @param converter converter to execute the query with
+     * @param sessionFactory factory to open a session for each batch
+     * @param executor executor to fetch batches and call the subscriber on
+     * @param query RSQL query expression
+     * @param orderBy sort keys, properties must not be nullable
+     * @param entityClass entity class which given query is related to
+     * @param maxBatchSize maximum number of entities fetched by one query,
+     *        must be greater than 0
+     */
+    public ResultPublisher(RSQL2CriteriaConverter converter, SessionFactory sessionFactory, Executor executor,
+            String query, List<SortKey> orderBy, Class<T> entityClass, int maxBatchSize) {
+        assert maxBatchSize > 0 : "maxBatchSize must be greater than 0";
+
+        this.converter = converter;
+        this.sessionFactory = sessionFactory;
+        this.executor = executor;
+        this.query = query;
+        this.orderBy = new ArrayList<SortKey>(orderBy);
+        this.entityClass = entityClass;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+
+    /**
+     * Subscribe given subscriber. Each subscription executes the query
+     * independently.
+     *
+     * @param subscriber the subscriber
+     */
+    public void subscribe(ResultSubscriber<? super T> subscriber) {
+        subscriber.onSubscribe(new Subscription(subscriber));
+    }
+
+
+    private class Subscription implements ResultSubscription, Runnable {
+
+        private final ResultSubscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();  // missed drain signals
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest;
+        private boolean done = false;  // accessed only by the drain loop
+        private String continuationToken;
+
+
+        Subscription(ResultSubscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested number must be greater than 0");
+            } else {
+                addDemand(n);
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            LOG.debug("Subscription cancelled");
+            cancelled = true;
+        }
+
+        /**
+         * Drain loop, it runs on the executor and never concurrently.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                try {
+                    drain();
+                } catch (RuntimeException ex) {
+                    LOG.warn("Query failed: {}", query, ex);
+                    done = true;
+                    subscriber.onError(ex);
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+
+        private void drain() {
+            while (!done && !cancelled) {
+                if (invalidRequest != null) {
+                    done = true;
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+                long requested = demand.get();
+                if (requested == 0) return;
+
+                KeysetPage<T> page = fetchBatch((int) Math.min(requested, maxBatchSize));
+                for (T entity : page.getContent()) {
+                    if (cancelled) return;
+                    demand.decrementAndGet();
+                    subscriber.onNext(entity);
+                }
+                continuationToken = page.getNextToken();
+
+                if (!page.hasNext()) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+            }
+        }
+
+        private KeysetPage<T> fetchBatch(int size) {
+            LOG.debug("Fetching batch of {} entities", size);
+
+            Session session = sessionFactory.openSession();
+            try {
+                session.setDefaultReadOnly(true);
+                return converter.fetchPage(query, orderBy, size, continuationToken, entityClass, session);
+            } finally {
+                session.close();
+            }
+        }
+
+        private void addDemand(long n) {
+            long current, updated;
+            do {
+                current = demand.get();
+                updated = current + n;
+                if (updated < 0) updated = Long.MAX_VALUE;  // overflow means unbounded
+            } while (!demand.compareAndSet(current, updated));
+        }
+
+        private void signal() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+/**
+ * Receiver of entities from a {@link ResultPublisher}. It follows the
+ * Reactive Streams <tt>Subscriber</tt> contract: nothing is received until
+ * demand is signaled via {@link ResultSubscription#request(long)}, and the
+ * methods are called serially, never concurrently.
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public interface ResultSubscriber<T> {
+
+    /**
+     * Called once, before any other method, when subscribed to a publisher.
+     *
+     * @param subscription subscription to request entities or cancel
+     */
+    void onSubscribe(ResultSubscription subscription);
+
+    /**
+     * Called for each entity, at most as many times as requested.
+     *
+     * @param entity detached entity
+     */
+    void onNext(T entity);
+
+    /**
+     * Called when the query failed. No other method is called afterwards.
+     *
+     * @param error the failure
+     */
+    void onError(Throwable error);
+
+    /**
+     * Called when all entities were published. No other method is called
+     * afterwards.
+     */
+    void onComplete();
+
+}
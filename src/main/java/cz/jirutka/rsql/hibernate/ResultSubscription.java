@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+/**
+ * Link between a {@link ResultPublisher} and a {@link ResultSubscriber},
+ * used to signal demand or cancel the subscription.
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public interface ResultSubscription {
+
+    /**
+     * Request given number of entities. Demand is cumulative.
+     *
+     * @param n number of entities, must be greater than 0; otherwise the
+     *        subscriber receives {@link IllegalArgumentException} via
+     *        <tt>onError</tt>
+     */
+    void request(long n);
+
+    /**
+     * Stop publishing entities. It may take effect after the current batch.
+     */
+    void cancel();
+
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * Iterator over forward-only {@linkplain ScrollableResults}, so results of
+ * a query can be processed one by one with constant memory use.
+ *
+ * <p>When created for a regular {@linkplain Session}, the session is cleared
+ * after each chunk of rows, so the persistence context doesn't grow with the
+ * number of rows. Entities of the previous chunks become detached then.</p>
+ *
+ * <p>The underlying results (i.e. JDBC cursor) are closed when the iterator
+ * is exhausted, but it must be {@linkplain #close() closed} explicitly when
+ * the iteration ends prematurely.</p>
+ *
+ * @see RSQL2CriteriaConverter#stream(String, java.util.List, int, Class, Session)
+ * @see RSQL2CriteriaConverter#stream(String, java.util.List, int, Class, org.hibernate.StatelessSession)
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class ScrollableResultsIterator<T> implements Iterator<T>, Closeable {
+
+    private final ScrollableResults results;
+    private final Session session;
+    private final int chunkSize;
+
+    private int count = 0;
+    private boolean advanced = false;
+    private boolean hasNext;
+    private boolean closed = false;
+
+
+    /**
+     * Construct a new iterator over the given results.
+     *
+     * @param results forward-only results, first column of each row is
+     *        returned
+     * @param session session to clear after each chunk of rows, or
+     *        <tt>null</tt> (e.g. for a <tt>StatelessSession</tt>)
+     * @param chunkSize number of rows between clearing the session, must be
+     *        greater than 0
+     */
+    public ScrollableResultsIterator(ScrollableResults results, Session session, int chunkSize) {
+        assert chunkSize > 0 : "chunkSize must be greater than 0";
+
+        this.results = results;
+        this.session = session;
+        this.chunkSize = chunkSize;
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        if (closed) return false;
+
+        if (!advanced) {
+            // clear before hydrating the next row, so it's not detached immediately
+            if (session != null && count > 0 && count % chunkSize == 0) {
+                session.clear();
+            }
+            hasNext = results.next();
+            advanced = true;
+
+            if (!hasNext) close();
+        }
+        return hasNext;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        advanced = false;
+        count++;
+
+        return (T) results.get(0);
+    }
+
+    /**
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Read-only iterator");
+    }
+
+    /**
+     * Close the underlying results. It's safe to call this method repeatedly.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            results.close();
+        }
+    }
+
+    /**
+     * @return Number of rows returned so far.
+     */
+    public int getCount() {
+        return count;
+    }
+
+}
@@ -0,0 +1,344 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.impl.CriteriaImpl;
+import org.hibernate.loader.criteria.CriteriaQueryTranslator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Log of slow queries that links the RSQL query expression with the SQL
+ * generated by Hibernate.
+ *
+ * <p>Executions that take longer than the {@linkplain #setThreshold(long)
+ * threshold} are logged with the original RSQL query, its canonical shape,
+ * rendered SQL, bind values, number of rows and execution time. To not
+ * flood the log when the database is slow, slow executions are
+ * {@linkplain #setSampleRate(double) sampled} and {@linkplain
+ * #setMaxPerSecond(int) rate-limited}.</p>
+ *
+ * <p>Only rendering of SQL and bind values is done on the thread that
+ * executed the query, because it needs the session. Logging is done on
+ * the given executor. Slow queries are passed to it through a bounded ring
+ * buffer; when it's full, the oldest query is discarded.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class SlowQueryLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    private final Executor executor;
+    private final BlockingQueue<SlowQuery> buffer;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Random random = new Random();
+
+    private volatile long threshold = TimeUnit.SECONDS.toNanos(1);
+    private volatile double sampleRate = 1.0;
+    private volatile int maxPerSecond = 10;
+
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicLong loggedInSecond = new AtomicLong();
+    private final AtomicLong slowQueries = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+
+    /**
+     * Construct a new <tt>SlowQueryLog</tt>.
+     *
+     * @param executor executor to log slow queries on
+     * @param capacity capacity of the buffer of slow queries waiting to be
+     *        logged, must be greater than 0
+     */
+    public SlowQueryLog(Executor executor, int capacity) {
+        assert capacity > 0 : "capacity must be greater than 0";
+
+        this.executor = executor;
+        this.buffer = new ArrayBlockingQueue<SlowQuery>(capacity);
+    }
+
+
+    /**
+     * Record execution of a query. If it's slow and it's sampled and not
+     * rate-limited, then render its SQL and bind values and pass it to the
+     * logger.
+     *
+     * @param query RSQL query expression
+     * @param shape canonical shape of the query
+     * @param criteria executed criteria (bound to a session)
+     * @param rows number of returned rows
+     * @param time execution time in nanoseconds
+     * @return <tt>true</tt> if the query will be logged
+     */
+    public boolean record(String query, String shape, Criteria criteria, int rows, long time) {
+        if (!isSlow(time)) {
+            return false;
+        }
+        slowQueries.incrementAndGet();
+
+        if ((sampleRate < 1.0 && random.nextDouble() >= sampleRate) || !acquirePermit()) {
+            return false;
+        }
+        String sql = null;
+        Object[] binds = null;
+        if (criteria instanceof CriteriaImpl) {
+            try {
+                sql = QueryStatisticsRegistry.renderSql((CriteriaImpl) criteria);
+                binds = bindValuesOf((CriteriaImpl) criteria);
+            } catch (HibernateException ex) {
+                LOG.debug("Cannot render SQL of slow query: " + query, ex);
+            }
+        }
+        return enqueue(new SlowQuery(query, shape, sql, binds, rows, time));
+    }
+
+    /**
+     * @param time execution time in nanoseconds
+     * @return <tt>true</tt> if the execution time reaches the threshold
+     */
+    public boolean isSlow(long time) {
+        return time >= threshold;
+    }
+
+    /**
+     * @return Number of slow executions, including those not logged.
+     */
+    public long getSlowQueries() {
+        return slowQueries.get();
+    }
+
+    /**
+     * @return Number of slow queries discarded because the buffer was full
+     *         or the executor rejected them.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * @see #setThreshold(long)
+     * @return Threshold of execution time in milliseconds.
+     */
+    public long getThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(threshold);
+    }
+
+    /**
+     * Set threshold of execution time above which a query is slow.
+     * Default is 1000 ms.
+     *
+     * @param threshold threshold in milliseconds, must be greater or equal 0
+     */
+    public void setThreshold(long threshold) {
+        assert threshold >= 0 : "must be greater or equal 0";
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+    }
+
+    /**
+     * Set ratio of slow queries to log. Default is 1.0, i.e. all.
+     *
+     * @param sampleRate ratio between 0.0 and 1.0
+     */
+    public void setSampleRate(double sampleRate) {
+        assert sampleRate >= 0.0 && sampleRate <= 1.0 : "must be between 0.0 and 1.0";
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Set maximum number of slow queries logged per second. Default is 10.
+     *
+     * @param maxPerSecond must be greater than 0
+     */
+    public void setMaxPerSecond(int maxPerSecond) {
+        assert maxPerSecond > 0 : "must be greater than 0";
+        this.maxPerSecond = maxPerSecond;
+    }
+
+
+    /**
+     * Log the slow query. This is called on the executor.
+     *
+     * @param slowQuery slow query to log
+     */
+    protected void log(SlowQuery slowQuery) {
+        LOG.warn("Slow query ({} ms, {} rows): {}\n  shape: {}\n  SQL: {}\n  binds: {}", new Object[]{
+                TimeUnit.NANOSECONDS.toMillis(slowQuery.getTime()), slowQuery.getRows(), slowQuery.getQuery(),
+                slowQuery.getShape(), slowQuery.getSql(), Arrays.toString(slowQuery.getBindValues())});
+    }
+
+    /**
+     * Return current value of the clock used by the rate limiter.
+     *
+     * @return time in nanoseconds, {@link System#nanoTime()} by default
+     */
+    protected long currentTime() {
+        return System.nanoTime();
+    }
+
+
+    /**
+     * Acquire a permit of the rate limiter, i.e. count the query in the
+     * current second, unless the limit has been reached.
+     */
+    private boolean acquirePermit() {
+        long second = TimeUnit.NANOSECONDS.toSeconds(currentTime());
+        long current = currentSecond.get();
+
+        if (second != current && currentSecond.compareAndSet(current, second)) {
+            loggedInSecond.set(0);
+        }
+        return loggedInSecond.incrementAndGet() <= maxPerSecond;
+    }
+
+    private boolean enqueue(SlowQuery slowQuery) {
+        while (!buffer.offer(slowQuery)) {
+            if (buffer.poll() != null) {
+                discarded.incrementAndGet();
+            }
+        }
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                LOG.debug("Executor rejected logging of slow queries", ex);
+                draining.set(false);
+
+                if (buffer.remove(slowQuery)) {
+                    discarded.incrementAndGet();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void drain() {
+        do {
+            try {
+                for (SlowQuery slowQuery; (slowQuery = buffer.poll()) != null; ) {
+                    log(slowQuery);
+                }
+            } finally {
+                draining.set(false);
+            }
+            // a query may be added after the last poll, but before reset of the flag
+        } while (!buffer.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Return values bound to the SQL of the criteria, in order of their
+     * positional parameters.
+     */
+    private static Object[] bindValuesOf(CriteriaImpl criteria) {
+        SessionImplementor session = criteria.getSession();
+        String[] implementors = session.getFactory().getImplementors(criteria.getEntityOrClassName());
+
+        return new CriteriaQueryTranslator(session.getFactory(), criteria, implementors[0],
+                CriteriaQueryTranslator.ROOT_SQL_ALIAS).getQueryParameters().getPositionalParameterValues();
+    }
+
+
+    /**
+     * Slow execution of a query.
+     */
+    public static class SlowQuery {
+
+        private final String query;
+        private final String shape;
+        private final String sql;
+        private final Object[] bindValues;
+        private final int rows;
+        private final long time;
+
+        SlowQuery(String query, String shape, String sql, Object[] bindValues, int rows, long time) {
+            this.query = query;
+            this.shape = shape;
+            this.sql = sql;
+            this.bindValues = bindValues;
+            this.rows = rows;
+            this.time = time;
+        }
+
+        /**
+         * @return The original RSQL query expression.
+         */
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * @return Canonical shape of the query.
+         */
+        public String getShape() {
+            return shape;
+        }
+
+        /**
+         * @return Rendered SQL, or <tt>null</tt> if it couldn't be rendered.
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * @return Values bound to the SQL, or <tt>null</tt> if the SQL
+         *         couldn't be rendered.
+         */
+        public Object[] getBindValues() {
+            return bindValues;
+        }
+
+        /**
+         * @return Number of returned rows.
+         */
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * @return Execution time in nanoseconds.
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+/**
+ * One key of a sort specification, i.e. a selector and direction to order by.
+ * Selectors are translated to property names via {@linkplain Mapper}, same
+ * as selectors in RSQL query.
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class SortKey {
+
+    private final String selector;
+    private final boolean ascending;
+
+
+    /**
+     * Construct a new <tt>SortKey</tt>.
+     *
+     * @param selector Selector or property name to order by.
+     * @param ascending <tt>true</tt> ascending order,
+     *                  <tt>false</tt> descending order
+     */
+    public SortKey(String selector, boolean ascending) {
+        assert selector != null : "selector must not be null";
+        this.selector = selector;
+        this.ascending = ascending;
+    }
+
+    /**
+     * @param selector Selector or property name to order by.
+     * @return Ascending sort key for given selector.
+     */
+    public static SortKey asc(String selector) {
+        return new SortKey(selector, true);
+    }
+
+    /**
+     * @param selector Selector or property name to order by.
+     * @return Descending sort key for given selector.
+     */
+    public static SortKey desc(String selector) {
+        return new SortKey(selector, false);
+    }
+
+
+    public String getSelector() {
+        return selector;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    @Override
+    public String toString() {
+        return selector + (ascending ? " asc" : " desc");
+    }
+
+}
@@ -0,0 +1,397 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.parser.ParseException;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.TokenMgrError;
+import cz.jirutka.rsql.parser.model.ComparisonExpression;
+import cz.jirutka.rsql.parser.model.Expression;
+import cz.jirutka.rsql.parser.model.LogicalExpression;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import org.hibernate.EntityMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.impl.SessionFactoryImpl;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of standing RSQL queries (aka continuous queries) that are
+ * evaluated against changed entities, instead of polling the database.
+ *
+ * <p>Each query is compiled once by {@link PredicateCompiler}, i.e. with the
+ * same resolution of selectors and arguments as when converting to
+ * Criteria. Hibernate event listeners, that must be {@linkplain #install()
+ * installed} into the session factory, evaluate every inserted, updated and
+ * deleted entity in memory and notify the subscription's listener when the
+ * entity starts matching (<i>match</i>) or stops matching (<i>unmatch</i>)
+ * the query. Updated entity is evaluated in its old state (from the event)
+ * and its new state. Listeners are notified after the transaction is
+ * committed, nothing is emitted for rolled back changes.</p>
+ *
+ * <p>Only the changed entity itself is observed, not the entities
+ * associated with it. Therefore queries may compare only basic properties of
+ * the root entity; a path through associations, an association or
+ * a collection is refused. So is a selector handled by a custom {@linkplain
+ * AbstractCriterionBuilder Criterion Builder}, when the compiler knows the
+ * builder stack.</p>
+ *
+ * <p>Only the subscriptions found as candidates by {@link PredicateIndex}
+ * are evaluated for a changed entity, so the cost doesn't grow with the
+ * number of subscriptions that obviously don't match.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class SubscriptionRegistry implements PostInsertEventListener, PostUpdateEventListener,
+        PostDeleteEventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionRegistry.class);
+
+    private final SessionFactory sessionFactory;
+    private final PredicateCompiler compiler;
+    private final PredicateIndex<Subscription<?>> index;
+
+
+    /**
+     * Construct a new <tt>SubscriptionRegistry</tt>.
+     *
+     * @param sessionFactory factory to install listeners into
+     * @param compiler compiler of the subscribed queries
+     */
+    public SubscriptionRegistry(SessionFactory sessionFactory, PredicateCompiler compiler) {
+        this.sessionFactory = sessionFactory;
+        this.compiler = compiler;
+        this.index = new PredicateIndex<Subscription<?>>(sessionFactory, compiler);
+    }
+
+
+    /**
+     * Register this registry as event listener into the session factory.
+     */
+    public void install() {
+        EventListeners listeners = ((SessionFactoryImpl) sessionFactory).getEventListeners();
+
+        listeners.setPostInsertEventListeners(AbstractInvalidationListener.append(
+                listeners.getPostInsertEventListeners(), this, PostInsertEventListener.class));
+        listeners.setPostUpdateEventListeners(AbstractInvalidationListener.append(
+                listeners.getPostUpdateEventListeners(), this, PostUpdateEventListener.class));
+        listeners.setPostDeleteEventListeners(AbstractInvalidationListener.append(
+                listeners.getPostDeleteEventListeners(), this, PostDeleteEventListener.class));
+    }
+
+    /**
+     * Unregister this registry from the session factory.
+     */
+    public void uninstall() {
+        EventListeners listeners = ((SessionFactoryImpl) sessionFactory).getEventListeners();
+
+        listeners.setPostInsertEventListeners(AbstractInvalidationListener.remove(
+                listeners.getPostInsertEventListeners(), this, PostInsertEventListener.class));
+        listeners.setPostUpdateEventListeners(AbstractInvalidationListener.remove(
+                listeners.getPostUpdateEventListeners(), this, PostUpdateEventListener.class));
+        listeners.setPostDeleteEventListeners(AbstractInvalidationListener.remove(
+                listeners.getPostDeleteEventListeners(), this, PostDeleteEventListener.class));
+    }
+
+    /**
+     * Subscribe to changes of entities matching given RSQL query expression.
+     *
+     * @param query RSQL query expression
+     * @param entityClass entity class which given query is related to,
+     *        changes of its subclasses are evaluated too
+     * @param listener listener to notify
+     * @return subscription that may be {@linkplain #unsubscribe(Subscription)
+     *         cancelled}
+     * @throws RSQLException If some problem occured when parsing or compiling
+     *         the query, or the query compares something else than a basic
+     *         property of the root entity. This is a wrapper exception for
+     *         {@link ParseException}, {@link ArgumentFormatException},
+     *         {@link UnknownSelectorException} and
+     *         {@link UnsupportedSelectorException}.
+     */
+    public <T> Subscription<T> subscribe(String query, Class<T> entityClass, Listener<? super T> listener)
+            throws RSQLException {
+        Expression queryTree;
+        try {
+            queryTree = RSQLParser.parse(query);
+        } catch (ParseException ex) {
+            throw new RSQLException(ex);
+        } catch (TokenMgrError er) {
+            throw new RSQLException(er);
+        }
+        checkSelectors(queryTree, entityClass);
+
+        Subscription<T> subscription = new Subscription<T>(query, queryTree, entityClass,
+                compiler.compile(queryTree, entityClass), listener);
+        index.add(subscription, queryTree, entityClass);
+
+        return subscription;
+    }
+
+    /**
+     * Cancel the subscription, its listener will not be notified anymore.
+     *
+     * @param subscription subscription
+     * @return <tt>false</tt> if the subscription is not registered
+     */
+    public boolean unsubscribe(Subscription<?> subscription) {
+        return index.remove(subscription);
+    }
+
+    /**
+     * @return Number of registered subscriptions.
+     */
+    public int size() {
+        return index.size();
+    }
+
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        List<Notification> notifications = new ArrayList<Notification>();
+
+        for (Subscription<?> subscription : index.candidates(event.getEntity())) {
+            if (subscription.matches(event.getEntity())) {
+                notifications.add(new Notification(subscription, event.getEntity(), true));
+            }
+        }
+        deliver(notifications, event.getSession());
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        Object oldEntity = createOldEntity(event);
+        Set<Subscription<?>> candidates = index.candidates(event.getEntity());
+        if (oldEntity != null) {
+            candidates.addAll(index.candidates(oldEntity));
+        }
+        List<Notification> notifications = new ArrayList<Notification>();
+
+        for (Subscription<?> subscription : candidates) {
+            boolean matched = oldEntity != null && subscription.matches(oldEntity);
+            boolean matches = subscription.matches(event.getEntity());
+
+            if (matched != matches) {
+                notifications.add(new Notification(subscription, event.getEntity(), matches));
+            }
+        }
+        deliver(notifications, event.getSession());
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        List<Notification> notifications = new ArrayList<Notification>();
+
+        for (Subscription<?> subscription : index.candidates(event.getEntity())) {
+            if (subscription.matches(event.getEntity())) {
+                notifications.add(new Notification(subscription, event.getEntity(), false));
+            }
+        }
+        deliver(notifications, event.getSession());
+    }
+
+
+    /**
+     * Check that the query compares only basic properties of the root entity,
+     * because changes of associated entities are not observed.
+     */
+    private void checkSelectors(Expression expression, Class<?> entityClass) throws RSQLException {
+        if (!expression.isComparison()) {
+            checkSelectors(((LogicalExpression) expression).getLeft(), entityClass);
+            checkSelectors(((LogicalExpression) expression).getRight(), entityClass);
+            return;
+        }
+        String selector = ((ComparisonExpression) expression).getSelector();
+        PropertyPath path;
+        try {
+            path = PropertyPath.resolve(selector, entityClass, compiler.getMapper(),
+                    (SessionFactoryImplementor) sessionFactory);
+        } catch (UnknownSelectorException ex) {
+            throw new RSQLException(ex);
+        }
+        if (path.length() > 1 || path.isAssociation() || path.isCollectionValued()) {
+            throw new RSQLException(new UnsupportedSelectorException(selector,
+                    "only basic properties of the root entity can be subscribed"));
+        }
+    }
+
+    /**
+     * Create a copy of the updated entity in its old state, or return
+     * <tt>null</tt> if the old state is unknown (e.g. update of a detached
+     * entity).
+     */
+    private Object createOldEntity(PostUpdateEvent event) {
+        if (event.getOldState() == null) return null;
+
+        EntityPersister persister = event.getPersister();
+        Object oldEntity = persister.instantiate(event.getId(), EntityMode.POJO);
+        persister.setPropertyValues(oldEntity, event.getOldState(), EntityMode.POJO);
+
+        return oldEntity;
+    }
+
+    /**
+     * Notify listeners after the transaction is committed, or now if there's
+     * no transaction.
+     */
+    private void deliver(final List<Notification> notifications, EventSource session) {
+        if (notifications.isEmpty()) return;
+
+        Transaction tx = session.getTransaction();
+        if (tx != null && tx.isActive()) {
+            tx.registerSynchronization(new Synchronization() {
+                public void beforeCompletion() { }
+
+                public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) deliver(notifications);
+                }
+            });
+        } else {
+            deliver(notifications);
+        }
+    }
+
+    private void deliver(List<Notification> notifications) {
+        for (Notification notification : notifications) {
+            try {
+                notification.deliver();
+            } catch (RuntimeException ex) {
+                LOG.error("Listener of subscription " + notification.subscription + " failed", ex);
+            }
+        }
+    }
+
+
+
+    ///////////////  INNER CLASSES  ///////////////
+
+    /**
+     * Listener of a subscription.
+     */
+    public interface Listener<T> {
+
+        /**
+         * Called when an entity has been inserted, or updated, and now matches
+         * the query.
+         *
+         * @param entity the inserted or updated entity
+         */
+        void onMatch(T entity);
+
+        /**
+         * Called when an entity that matched the query has been updated and
+         * doesn't match it anymore, or has been deleted.
+         *
+         * @param entity the updated or deleted entity
+         */
+        void onUnmatch(T entity);
+    }
+
+    /**
+     * Subscription of a compiled RSQL query.
+     */
+    public static class Subscription<T> {
+
+        private final String query;
+        private final Expression queryTree;
+        private final Class<T> entityClass;
+        private final EntityPredicate<T> predicate;
+        private final Listener<? super T> listener;
+
+        Subscription(String query, Expression queryTree, Class<T> entityClass, EntityPredicate<T> predicate,
+                Listener<? super T> listener) {
+            this.query = query;
+            this.queryTree = queryTree;
+            this.entityClass = entityClass;
+            this.predicate = predicate;
+            this.listener = listener;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public Expression getQueryTree() {
+            return queryTree;
+        }
+
+        public Class<T> getEntityClass() {
+            return entityClass;
+        }
+
+        public Listener<? super T> getListener() {
+            return listener;
+        }
+
+        boolean matches(Object entity) {
+            return predicate.evaluate(entityClass.cast(entity));
+        }
+
+        void deliver(Object entity, boolean match) {
+            if (match) {
+                listener.onMatch(entityClass.cast(entity));
+            } else {
+                listener.onUnmatch(entityClass.cast(entity));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return entityClass.getSimpleName() + ": " + query;
+        }
+    }
+
+    private static class Notification {
+
+        final Subscription<?> subscription;
+        final Object entity;
+        final boolean match;
+
+        Notification(Subscription<?> subscription, Object entity, boolean match) {
+            this.subscription = subscription;
+            this.entity = entity;
+            this.match = match;
+        }
+
+        void deliver() {
+            subscription.deliver(entity, match);
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+/**
+ * Indicate that a selector refers to an existing property, but it cannot be
+ * used in the given context, e.g. sorting by a collection.
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class UnsupportedSelectorException extends Exception {
+
+    private final String selector;
+
+
+    /**
+     * Construct an <tt>UnsupportedSelectorException</tt> with specified
+     * selector and reason.
+     *
+     * @param selector
+     * @param reason Why is the selector not supported.
+     */
+    public UnsupportedSelectorException(String selector, String reason) {
+        super("Selector " + selector + " is not supported here: " + reason);
+        this.selector = selector;
+    }
+
+
+    public String getSelector() {
+        return selector;
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import cz.jirutka.rsql.hibernate.entity.Department;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.model.Comparison;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Restrictions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class ColumnarSnapshotTest {
+
+    private SessionFactory sessionFactory;
+    private Session session;
+    private ColumnarSnapshot instance;
+
+
+    @Before
+    public void setUp() throws Exception {
+        sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+
+        instance = new ColumnarSnapshot(sessionFactory, factory.createConverter(), Course.class);
+        session = sessionFactory.openSession();
+        session.beginTransaction();
+    }
+
+    @After
+    public void tearDown() {
+        instance.uninstall();
+        session.getTransaction().rollback();
+        session.close();
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testColumns() {
+        assertEquals(new HashSet<String>(Arrays.asList("id", "name", "active", "code", "credits")),
+                new HashSet<String>(instance.getColumnNames()));
+    }
+
+    @Test
+    public void testListIds() {
+        persistCourses();
+        instance.load(session);
+        assertEquals(4, instance.size());
+
+        assertIds(instance.listIds("credits==5", session), 1L, 3L);
+        assertIds(instance.listIds("credits=gt=2;active==true", session), 1L, 3L);
+        assertIds(instance.listIds("credits=le=2,code==MI-3", session), 2L, 3L);
+        assertIds(instance.listIds("credits!=5", session), 2L);
+        assertIds(instance.listIds("credits==NULL", session), 4L);
+        assertIds(instance.listIds("name==*math*", session), 1L, 2L);
+        assertIds(instance.listIds("name!=*math*", session), 3L, 4L);
+        assertIds(instance.listIds("code==XX-1", session));
+        assertEquals(8, instance.getEvaluations());
+        assertEquals(0, instance.getFallbacks());
+
+        // not covered
+        assertIds(instance.listIds("department.code==18102;credits==5", session), 1L);
+        assertIds(instance.listIds("code=gt=MI-2", session), 3L, 4L);
+        assertEquals(2, instance.getFallbacks());
+    }
+
+    @Test
+    public void testCustomBuilderFallback() {
+        persistCourses();
+        RSQL2CriteriaConverter converter = RSQL2HibernateFactory.getInstance().createConverter();
+        converter.pushCriterionBuilder(new AbstractCriterionBuilder() {
+            public boolean accept(String property, Class<?> entityClass, CriteriaBuilder parent) {
+                return property.equals("code");
+            }
+            public Criterion createCriterion(String property, Comparison operator, String argument,
+                    Class<?> entityClass, String alias, CriteriaBuilder parent) {
+                return Restrictions.sqlRestriction("1=0");
+            }
+        });
+        instance = new ColumnarSnapshot(sessionFactory, converter, Course.class);
+        instance.load(session);
+
+        assertIds(instance.listIds("code==MI-1", session));
+        assertIds(instance.listIds("credits==5", session), 1L, 3L);
+        assertEquals(1, instance.getFallbacks());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        persistCourses();
+        instance.load(session);
+
+        assertNull(instance.filter(RSQLParser.parse("department==18102")));
+        assertEquals(3, instance.filter(RSQLParser.parse("credits=ge=2;credits=lt=6")).cardinality());
+        assertNotNull(instance.getId(instance.filter(RSQLParser.parse("code==MI-1")).nextSetBit(0)));
+    }
+
+    @Test(expected = RSQLException.class)
+    public void testInvalidArgument() {
+        instance.listIds("credits==foo", session);
+    }
+
+    @Test
+    public void testIncrementalRefresh() {
+        instance.install();
+        instance.load(session);
+        assertEquals(0, instance.size());
+
+        // rolled back changes are not applied
+        Course course = CourseFixtures.createCourse(100L, "XX-100", "Rollback", 3, true);
+        session.save(course);
+        session.flush();
+        assertEquals(0, instance.size());
+
+        Session other = sessionFactory.openSession();
+        try {
+            other.beginTransaction();
+            other.save(CourseFixtures.createCourse(101L, "XX-101", "Commit", 3, true));
+            other.getTransaction().commit();
+            assertIds(instance.listIds("credits==3", session), 101L);
+
+            other.beginTransaction();
+            ((Course) other.get(Course.class, 101L)).setCredits(4);
+            other.getTransaction().commit();
+            assertIds(instance.listIds("credits==3", session));
+            assertIds(instance.listIds("credits==4", session), 101L);
+
+            other.beginTransaction();
+            other.delete(other.get(Course.class, 101L));
+            other.getTransaction().commit();
+            assertEquals(0, instance.size());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testCompaction() {
+        instance.install();
+        instance.load(session);
+
+        Session other = sessionFactory.openSession();
+        try {
+            other.beginTransaction();
+            other.save(CourseFixtures.createCourse(201L, "XX-201", "First", 1, true));
+            other.save(CourseFixtures.createCourse(202L, "XX-202", "Second", 2, false));
+            other.save(CourseFixtures.createCourse(203L, "XX-203", "Third", 3, true));
+            other.save(CourseFixtures.createCourse(204L, "XX-204", "Fourth", null, false));
+            other.save(CourseFixtures.createCourse(205L, "XX-205", "Fifth", 5, true));
+            other.getTransaction().commit();
+            assertEquals(5, instance.capacity());
+
+            other.beginTransaction();
+            for (long id = 201; id <= 203; id++) {
+                other.delete(other.get(Course.class, id));
+            }
+            other.getTransaction().commit();
+            assertEquals(2, instance.capacity());
+
+            assertIds(instance.listIds("credits==NULL", session), 204L);
+            assertIds(instance.listIds("credits=gt=1;active==true", session), 205L);
+            assertIds(instance.listIds("active==false", session), 204L);
+            assertIds(instance.listIds("name==F*", session), 204L, 205L);
+            assertIds(instance.listIds("code==XX-205,code==XX-201", session), 205L);
+
+            other.beginTransaction();
+            other.save(CourseFixtures.createCourse(206L, "XX-206", "First", 1, true));
+            other.getTransaction().commit();
+            assertEquals(3, instance.capacity());
+            assertIds(instance.listIds("name==First", session), 206L);
+            assertEquals(0, instance.getFallbacks());
+
+            other.beginTransaction();
+            for (long id = 204; id <= 206; id++) {
+                other.delete(other.get(Course.class, id));
+            }
+            other.getTransaction().commit();
+            assertEquals(0, instance.size());
+        } finally {
+            other.close();
+        }
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    private void persistCourses() {
+        Department department = new Department();
+        department.setId(1L);
+        department.setCode(18102);
+        session.save(department);
+
+        session.save(CourseFixtures.createCourse(1L, "MI-1", "Mathematics", 5, true));
+        session.save(CourseFixtures.createCourse(2L, "MI-2", "Discrete Math", 2, true));
+        session.save(CourseFixtures.createCourse(3L, "MI-3", "Physics", 5, true));
+        session.save(CourseFixtures.createCourse(4L, "MI-4", "History", null, false));
+        ((Course) session.get(Course.class, 1L)).setDepartment(department);
+        session.flush();
+    }
+
+    private void assertIds(List<Serializable> actual, Long... expected) {
+        assertEquals(new HashSet<Object>(Arrays.asList(expected)), new HashSet<Object>(actual));
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared fixture of courses used by tests.
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class CourseFixtures {
+
+    private static final int[] CREDITS = {2, 4, 5, 4, 6, 5};
+
+
+    /**
+     * Create a new course.
+     *
+     * @param id identifier
+     * @param code code
+     * @param name name
+     * @param credits credits, or <tt>null</tt>
+     * @param active whether the course is active
+     * @return the course
+     */
+    public static Course createCourse(Long id, String code, String name, Integer credits, boolean active) {
+        Course course = new Course();
+        course.setId(id);
+        course.setCode(code);
+        course.setName(name);
+        course.setCredits(credits);
+        course.setActive(active);
+        return course;
+    }
+
+    /**
+     * Create six new inactive courses with ids 1 to 6, codes
+     * <tt>MI-&lt;id&gt;</tt>, names <tt>Course &lt;id&gt;</tt> and credits
+     * 2, 4, 5, 4, 6 and 5. Other properties are left default.
+     *
+     * @return courses in order of their ids
+     */
+    public static List<Course> createCourses() {
+        List<Course> courses = new ArrayList<Course>(CREDITS.length);
+
+        for (int i = 0; i < CREDITS.length; i++) {
+            long id = i + 1;
+            courses.add(createCourse(id, "MI-" + id, "Course " + id, CREDITS[i], false));
+        }
+        return courses;
+    }
+}
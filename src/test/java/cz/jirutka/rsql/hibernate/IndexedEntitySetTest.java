@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import cz.jirutka.rsql.hibernate.entity.Department;
+import cz.jirutka.rsql.parser.model.Comparison;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Restrictions;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class IndexedEntitySetTest {
+
+    private List<Course> courses;
+    private IndexedEntitySet<Course> instance;
+
+
+    @Before
+    public void setUp() throws Exception {
+        SessionFactory sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+
+        Department ksi = new Department();
+        ksi.setId(1L);
+        ksi.setCode(18102);
+
+        courses = CourseFixtures.createCourses();
+        for (Course course : courses) {
+            course.setActive(course.getId() % 2 == 1);
+            course.setDepartment(course.getId() <= 3 ? ksi : null);
+        }
+        instance = new IndexedEntitySet<Course>(sessionFactory, factory.createPredicateCompiler(),
+                Course.class, courses);
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testDefaultIndexes() {
+        assertEquals(Arrays.asList("id", "code"), instance.getIndexedPaths());
+        assertEquals(Arrays.asList(courses.get(2)), instance.filter("code==MI-3"));
+        assertEquals(Arrays.asList(courses.get(0), courses.get(5)), instance.filter("id==1,id==6"));
+    }
+
+    @Test
+    public void testCustomBuilderSelector() {
+        PredicateCompiler compiler = RSQL2HibernateFactory.getInstance().createPredicateCompiler();
+        compiler.getCriterionBuilders().add(0, new AbstractCriterionBuilder() {
+            public boolean accept(String property, Class<?> entityClass, CriteriaBuilder parent) {
+                return property.equals("code");
+            }
+            public Criterion createCriterion(String property, Comparison operator, String argument,
+                    Class<?> entityClass, String alias, CriteriaBuilder parent) {
+                return Restrictions.sqlRestriction("1=0");
+            }
+        });
+        instance = new IndexedEntitySet<Course>(SessionFactoryInitializer.getSessionFactory(), compiler,
+                Course.class, courses);
+        try {
+            // indexed, but the custom builder may give it a different meaning
+            instance.filter("code==MI-3");
+            fail("Should raise RSQLException");
+        } catch (RSQLException ex) {
+            assertTrue(ex.getCause() instanceof UnsupportedSelectorException);
+        }
+    }
+
+    @Test
+    public void testFilter() {
+        instance.addHashIndex("credits");
+        instance.addBitmapIndex("active");
+        instance.addHashIndex("department.code");
+
+        assertCourses(instance.filter("credits==4"), 2, 4);
+        assertCourses(instance.filter("credits==4;active==false"), 2, 4);
+        assertCourses(instance.filter("credits==5,active!=true"), 2, 3, 4, 6);
+        assertCourses(instance.filter("active==true;credits=gt=2"), 3, 5);
+        assertCourses(instance.filter("department.code==18102;name==*3"), 3);
+        assertCourses(instance.filter("credits==5,name==*1"), 1, 3, 6);
+        assertCourses(instance.filter("credits==NULL"));
+        assertCourses(instance.filter("credits==9"));
+    }
+
+    @Test
+    public void testModifications() {
+        instance.addHashIndex("credits");
+
+        assertTrue(instance.remove(courses.get(1)));
+        assertFalse(instance.remove(courses.get(1)));
+        assertCourses(instance.filter("credits==4"), 4);
+
+        courses.get(3).setCredits(6);
+        assertTrue(instance.update(courses.get(3)));
+        assertCourses(instance.filter("credits==4"));
+        assertCourses(instance.filter("credits==6"), 4, 5);
+
+        assertTrue(instance.add(courses.get(1)));
+        assertFalse(instance.add(courses.get(1)));
+        assertCourses(instance.filter("credits==4"), 2);
+        assertEquals(6, instance.size());
+    }
+
+    @Test
+    public void testCompaction() {
+        instance.addBitmapIndex("active");
+        assertEquals(6, instance.capacity());
+
+        instance.remove(courses.get(0));
+        instance.remove(courses.get(1));
+        instance.remove(courses.get(2));
+        assertEquals(6, instance.capacity());
+
+        instance.remove(courses.get(4));
+        assertEquals(2, instance.capacity());
+        assertCourses(instance.filter("active==false"), 4, 6);
+        assertCourses(instance.filter("id==4,code==MI-6"), 4, 6);
+
+        assertTrue(instance.add(courses.get(0)));
+        assertEquals(3, instance.capacity());
+        assertCourses(instance.filter("active==true"), 1);
+    }
+
+    @Test(expected = RSQLException.class)
+    public void testIndexAssociation() {
+        instance.addHashIndex("department");
+    }
+
+    @Test(expected = RSQLException.class)
+    public void testIndexCollection() {
+        instance.addHashIndex("lecturers.surname");
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    private void assertCourses(List<Course> actual, long... ids) {
+        List<Long> actualIds = new ArrayList<Long>();
+        for (Course course : actual) {
+            actualIds.add(course.getId());
+        }
+        List<Long> expectedIds = new ArrayList<Long>();
+        for (long id : ids) {
+            expectedIds.add(id);
+        }
+        assertEquals(expectedIds, actualIds);
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import cz.jirutka.rsql.hibernate.entity.Department;
+import cz.jirutka.rsql.hibernate.entity.Person;
+import cz.jirutka.rsql.parser.model.Comparison;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Restrictions;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class PredicateCompilerTest {
+
+    private PredicateCompiler instance;
+    private Course math, physics, history;
+
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new PredicateCompiler(SessionFactoryInitializer.getSessionFactory());
+        instance.setArgumentParser(new DefaultArgumentParser());
+        instance.setMapper(new SimpleMapper());
+
+        Person novak = new Person();
+        novak.setId(1L);
+        novak.setName("Jan");
+        novak.setSurname("Novak");
+
+        Department kti = new Department();
+        kti.setId(10L);
+        kti.setCode(18102);
+        kti.setHead(novak);
+
+        math = CourseFixtures.createCourse(100L, "MI-MAT", "Mathematics", 5, true);
+        math.setDepartment(kti);
+        math.getLecturers().add(novak);
+        physics = CourseFixtures.createCourse(101L, "MI-PHY", "Physics", 4, true);
+        physics.setDepartment(kti);
+        history = CourseFixtures.createCourse(102L, "MI-HIS", "History", null, true);
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testCompileComparisons() {
+        assertEquals(Arrays.asList(math), filter("code==MI-MAT"));
+        assertEquals(Arrays.asList(physics, history), filter("code!=MI-MAT"));
+        assertEquals(Arrays.asList(math), filter("credits=gt=4"));
+        assertEquals(Arrays.asList(math, physics), filter("credits=ge=4"));
+        assertEquals(Arrays.asList(physics), filter("credits=lt=5;active==true"));
+        assertEquals(Arrays.asList(history), filter("credits==NULL"));
+        assertEquals(Arrays.asList(math, history), filter("credits==5,department==NULL"));
+        // case-sensitive, unlike a case-insensitive collation of the database
+        assertEquals(Collections.emptyList(), filter("code==mi-mat"));
+    }
+
+    @Test
+    public void testCompileLike() {
+        assertEquals(Arrays.asList(math, physics), filter("name==*s"));
+        assertEquals(Arrays.asList(history), filter("name!=*s"));
+        assertEquals(Arrays.asList(math), filter("name==math*"));
+        assertEquals(Arrays.asList(physics), filter("name==ph_s*"));
+    }
+
+    @Test
+    public void testCompileAssociations() {
+        // natural id of the associated entity
+        assertEquals(Arrays.asList(math, physics), filter("department==18102"));
+        // identifier of the associated entity without natural id
+        assertEquals(Arrays.asList(math), filter("lecturers==1"));
+        assertEquals(Arrays.asList(math), filter("lecturers.surname==Nov*"));
+        assertEquals(Arrays.asList(math, physics), filter("department.head.surname==Novak"));
+    }
+
+    @Test
+    public void testCompileSameAssociationElement() {
+        Person torvalds = new Person();
+        torvalds.setId(2L);
+        torvalds.setName("Linus");
+        torvalds.setSurname("Torvalds");
+        math.getLecturers().add(torvalds);
+
+        // comparisons on the same path must match the same element, like JOIN
+        assertEquals(Collections.emptyList(), filter("lecturers.surname==Novak;lecturers.surname==Torvalds"));
+        assertEquals(Arrays.asList(math), filter("lecturers.surname==Novak,lecturers.surname==Torvalds"));
+        assertEquals(Arrays.asList(math), filter("lecturers.surname==Torvalds;lecturers.name==Linus"));
+        assertEquals(Collections.emptyList(), filter("lecturers.surname==Torvalds;lecturers.name==Jan"));
+        assertEquals(Collections.emptyList(), filter("lecturers==1;lecturers==2"));
+    }
+
+    @Test(expected = RSQLException.class)
+    public void testCompileUnknownSelector() {
+        instance.compile("foo==bar", Course.class);
+    }
+
+    @Test(expected = RSQLException.class)
+    public void testCompileInvalidArgument() {
+        instance.compile("credits==foo", Course.class);
+    }
+
+    @Test
+    public void testCompileCustomBuilderSelector() {
+        List<AbstractCriterionBuilder> builders = new ArrayList<AbstractCriterionBuilder>(Arrays.asList(
+                new AssociationsCriterionBuilder(), new NaturalIdCriterionBuilder(),
+                new IdentifierCriterionBuilder(), new DefaultCriterionBuilder()));
+        instance.setCriterionBuilders(builders);
+        assertEquals(Arrays.asList(math), filter("code==MI-MAT;lecturers.surname==Novak"));
+
+        builders.add(0, new AbstractCriterionBuilder() {
+            public boolean accept(String property, Class<?> entityClass, CriteriaBuilder parent) {
+                return property.equals("surname");
+            }
+            public Criterion createCriterion(String property, Comparison operator, String argument,
+                    Class<?> entityClass, String alias, CriteriaBuilder parent) {
+                return Restrictions.sqlRestriction("1=0");
+            }
+        });
+        assertEquals(Arrays.asList(math), filter("code==MI-MAT"));
+        try {
+            // the last property of the path is delegated to the custom builder
+            instance.compile("lecturers.surname==Novak", Course.class);
+            fail("Should raise RSQLException");
+        } catch (RSQLException ex) {
+            assertTrue(ex.getCause() instanceof UnsupportedSelectorException);
+        }
+    }
+
+    @Test
+    public void testFilterParallel() {
+        List<Course> courses = new ArrayList<Course>();
+        for (int i = 0; i < 100; i++) {
+            courses.addAll(Arrays.asList(math, physics, history));
+        }
+        EntityPredicate<Course> predicate = instance.compile("credits=ge=4", Course.class);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertEquals(PredicateCompiler.filter(courses, predicate),
+                    PredicateCompiler.filter(courses, predicate, executor, 7));
+            assertEquals(200, PredicateCompiler.filter(courses, predicate, executor, 7).size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    private List<Course> filter(String query) {
+        return PredicateCompiler.filter(Arrays.asList(math, physics, history),
+                instance.compile(query, Course.class));
+    }
+
+}
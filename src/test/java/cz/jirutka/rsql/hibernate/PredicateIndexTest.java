@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import cz.jirutka.rsql.hibernate.entity.Department;
+import cz.jirutka.rsql.hibernate.entity.Person;
+import cz.jirutka.rsql.parser.RSQLParser;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class PredicateIndexTest {
+
+    private PredicateIndex<String> instance;
+    private Course course;
+
+
+    @Before
+    public void setUp() throws Exception {
+        SessionFactory sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+        instance = new PredicateIndex<String>(sessionFactory, factory.createPredicateCompiler());
+
+        Department department = new Department();
+        department.setCode(18102);
+
+        course = new Course();
+        course.setCode("MI-1");
+        course.setName("Mathematics");
+        course.setCredits(5);
+        course.setActive(true);
+        course.setDepartment(department);
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testEquality() throws Exception {
+        add("eq", "code==MI-1");
+        add("eq-other", "code==MI-2");
+        add("eq-both", "code==MI-1;active==true");
+        add("eq-one-fails", "code==MI-1;active==false");
+        add("path", "department.code==18102");
+
+        assertCandidates("eq", "eq-both", "path");
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        add("gt", "credits=gt=4");
+        add("gt-edge", "credits=gt=5");
+        add("ge-edge", "credits=ge=5");
+        add("lt", "credits=lt=6");
+        add("le-edge", "credits=le=5");
+        add("lt-edge", "credits=lt=5");
+        add("between", "credits=ge=3;credits=lt=10");
+        add("outside", "credits=ge=6;credits=lt=10");
+
+        assertCandidates("gt", "ge-edge", "lt", "le-edge", "between");
+    }
+
+    @Test
+    public void testUnindexed() throws Exception {
+        add("or", "code==MI-2,credits==1");
+        add("like", "name==*math*");
+        add("not-equal", "code!=MI-1");
+        add("mixed", "code==MI-1;name==*foo*");
+        add("mixed-fails", "code==MI-2;name==*foo*");
+        add("other-class", "surname==Novak", Person.class);
+
+        // candidates are only filtered by the indexed conjuncts
+        assertCandidates("or", "like", "not-equal", "mixed");
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        add("eq", "code==MI-1");
+        add("unindexed", "code!=MI-2");
+        assertEquals(2, instance.size());
+
+        assertTrue(instance.remove("eq"));
+        assertTrue(instance.remove("unindexed"));
+        assertFalse(instance.remove("eq"));
+        assertCandidates();
+        assertEquals(0, instance.size());
+
+        // emptied buckets are removed, the same conjuncts can be added again
+        add("eq", "code==MI-1;credits=ge=5");
+        add("ge", "credits=ge=5");
+        assertTrue(instance.remove("ge"));
+        assertCandidates("eq");
+        assertTrue(instance.remove("eq"));
+        add("ge", "credits=ge=5");
+        assertCandidates("ge");
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    private void add(String name, String query) throws Exception {
+        add(name, query, Course.class);
+    }
+
+    private void add(String name, String query, Class<?> entityClass) throws Exception {
+        instance.add(name, RSQLParser.parse(query), entityClass);
+    }
+
+    private void assertCandidates(String... expected) {
+        Set<String> actual = instance.candidates(course);
+        assertEquals(new HashSet<String>(Arrays.asList(expected)), actual);
+    }
+
+}
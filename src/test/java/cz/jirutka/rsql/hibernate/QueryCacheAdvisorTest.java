@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import cz.jirutka.rsql.parser.RSQLParser;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.impl.CriteriaImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryCacheAdvisorTest {
+
+    private Session session;
+    private QueryCacheAdvisor instance;
+
+
+    @Before
+    public void setUp() throws Exception {
+        SessionFactory sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        session = sessionFactory.openSession();
+        instance = new QueryCacheAdvisor();
+        instance.setThreshold(2);
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testShapeOf() throws Exception {
+        assertEquals(QueryCacheAdvisor.shapeOf(RSQLParser.parse("name==foo;credits=gt=5")),
+                QueryCacheAdvisor.shapeOf(RSQLParser.parse("name==bar;credits=gt=3")));
+        assertFalse(QueryCacheAdvisor.shapeOf(RSQLParser.parse("name==foo;credits=gt=5")).equals(
+                QueryCacheAdvisor.shapeOf(RSQLParser.parse("name==foo;credits=lt=5"))));
+        assertFalse(QueryCacheAdvisor.shapeOf(RSQLParser.parse("name==foo;credits=gt=5")).equals(
+                QueryCacheAdvisor.shapeOf(RSQLParser.parse("name==foo,credits=gt=5"))));
+    }
+
+    @Test
+    public void testAdvise() throws Exception {
+        CriteriaImpl first = (CriteriaImpl) session.createCriteria(Course.class);
+        assertFalse(instance.advise(first, RSQLParser.parse("credits==5"), Course.class));
+        assertFalse(first.getCacheable());
+
+        // other shape doesn't count
+        assertFalse(instance.advise(session.createCriteria(Course.class), RSQLParser.parse("code==MI-1"), Course.class));
+
+        CriteriaImpl second = (CriteriaImpl) session.createCriteria(Course.class);
+        assertTrue(instance.advise(second, RSQLParser.parse("credits==4"), Course.class));
+        assertTrue(second.getCacheable());
+        assertEquals("rsql." + Course.class.getName(), second.getCacheRegion());
+
+        assertEquals(3, instance.getExecutions());
+        assertEquals(1, instance.getCacheableExecutions());
+        assertEquals(1, instance.getEnrolledShapes().size());
+        assertEquals(2, instance.getShapeCounts().size());
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.model.Expression;
+import java.util.HashMap;
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryCanonicalizerTest {
+
+    private QueryCanonicalizer instance;
+
+
+    @Before
+    public void setUp() throws Exception {
+        SessionFactory sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        SimpleMapper mapper = new SimpleMapper();
+        mapper.addMapping(Course.class, new HashMap<String, String>());
+        mapper.addMapping(Course.class, "kredity", "credits");
+
+        instance = new QueryCanonicalizer(sessionFactory, mapper);
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testNormalForm() throws Exception {
+        assertEquals("(code==A;credits==3)", normalForm("credits==3;code==A"));
+        assertEquals("(code==A;credits==3)", normalForm("(code==A;(credits==3))"));
+        assertEquals("(code==A;credits==3)", normalForm("kredity==3;code==A"));
+        assertEquals("(code==A;credits==3;name==B)", normalForm("name==B;(credits==3;code==A)"));
+        assertEquals("(code==A;credits==3)", normalForm("credits==3;code==A;credits==3"));
+        assertEquals("code==A", normalForm("code==A;code==A"));
+        assertEquals("((code==A,code==B);credits==3)", normalForm("credits==3;(code==B,code==A)"));
+    }
+
+    @Test
+    public void testNormalFormKeepsSemantics() throws Exception {
+        assertFalse(normalForm("code==A;credits==3").equals(normalForm("code==A,credits==3")));
+        assertFalse(normalForm("(code==A,code==B);credits==3").equals(normalForm("code==A,(code==B;credits==3)")));
+        assertFalse(normalForm("credits=gt=3").equals(normalForm("credits=lt=3")));
+    }
+
+    @Test
+    public void testShapeOf() throws Exception {
+        assertEquals("(code==?String;credits=gt=?Integer)", shapeOf("credits=gt=3;code==A"));
+        assertEquals(shapeOf("code==A;credits==3"), shapeOf("kredity==5;code==B"));
+        assertEquals("(credits==NULL;name==?like)", shapeOf("name==*math*;credits==NULL"));
+        assertEquals("department==?Department", shapeOf("department==18102"));
+        assertEquals("foo==?", shapeOf("foo==bar"));
+        assertEquals("(credits==?Integer;credits==?Integer)", shapeOf("credits==3;credits==4"));
+    }
+
+    @Test
+    public void testCanonicalize() throws Exception {
+        Expression expected = RSQLParser.parse("(code==A;credits==3);name==B");
+        Expression actual = instance.canonicalize(RSQLParser.parse("name==B;(kredity==3;code==A)"), Course.class);
+
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testWithoutMetadata() throws Exception {
+        QueryCanonicalizer plain = new QueryCanonicalizer();
+
+        assertEquals("(credits==3;kredity==3)", plain.normalForm("kredity==3;credits==3", Course.class));
+        assertEquals("(code==?;credits==?)", plain.shapeOf("credits==3;code==A", null));
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    private String normalForm(String query) {
+        return instance.normalForm(query, Course.class);
+    }
+
+    private String shapeOf(String query) {
+        return instance.shapeOf(query, Course.class);
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryCoalescerTest {
+
+    private SessionFactory sessionFactory;
+    private QueryCoalescer instance;
+
+
+    @Before
+    public void setUp() throws Exception {
+        sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+        instance = new QueryCoalescer(sessionFactory, factory.createConverter());
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testExecuteConcurrently() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<List<?>> loader = new Callable<List<?>>() {
+            public List<?> call() throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                release.await();
+                return Arrays.asList("a", "b");
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<?>>> results = new ArrayList<Future<List<?>>>();
+            results.add(executor.submit(execute("key", loader)));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(execute("key", loader)));
+            }
+            while (instance.getCoalesced() < 3) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            for (Future<List<?>> result : results) {
+                assertEquals(Arrays.asList("a", "b"), result.get(5, TimeUnit.SECONDS));
+            }
+            assertNotSame(results.get(0).get(), results.get(1).get());
+            assertEquals(1, loads.get());
+            assertEquals(1, instance.getExecutions());
+            assertEquals(3, instance.getCoalesced());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWindow() {
+        Callable<List<?>> loader = new Callable<List<?>>() {
+            public List<?> call() {
+                return Collections.emptyList();
+            }
+        };
+        instance.execute("key", loader);
+        instance.execute("key", loader);
+        assertEquals(2, instance.getExecutions());
+
+        instance.setWindow(60000);
+        instance.execute("key", loader);
+        instance.execute("key", loader);
+        assertEquals(3, instance.getExecutions());
+        assertEquals(1, instance.getCoalesced());
+    }
+
+    @Test
+    public void testExpireWithinWindow() throws Exception {
+        Callable<List<?>> loader = new Callable<List<?>>() {
+            public List<?> call() {
+                return Collections.emptyList();
+            }
+        };
+        instance.setWindow(10);
+        instance.execute("first", loader);
+        assertEquals(1, instance.size());
+
+        Thread.sleep(30);
+        instance.execute("second", loader);
+        assertEquals("expired call of another key should be removed", 1, instance.size());
+    }
+
+    @Test(expected = RSQLException.class)
+    public void testExecuteFailure() {
+        instance.execute("key", new Callable<List<?>>() {
+            public List<?> call() {
+                throw new RSQLException(new IllegalStateException());
+            }
+        });
+    }
+
+    @Test
+    public void testFailureNotShared() {
+        Callable<List<?>> failing = new Callable<List<?>>() {
+            public List<?> call() {
+                throw new IllegalStateException();
+            }
+        };
+        instance.setWindow(60000);
+        try {
+            instance.execute("key", failing);
+            fail("Should raise IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertEquals(0, instance.execute("key", new Callable<List<?>>() {
+            public List<?> call() {
+                return Collections.emptyList();
+            }
+        }).size());
+        assertEquals(2, instance.getExecutions());
+        assertEquals(0, instance.getCoalesced());
+    }
+
+    @Test
+    public void testKeyOf() {
+        List<SortKey> orderBy = Arrays.asList(SortKey.asc("code"));
+
+        assertEquals(instance.keyOf(Course.class, "(code==A;credits==3)", orderBy, 0, 10, "t1"),
+                instance.keyOf(Course.class, "((code==A);credits==3)", orderBy, 0, 10, "t1"));
+        assertEquals(instance.keyOf(Course.class, "code==A;credits==3", orderBy, 0, 10, "t1"),
+                instance.keyOf(Course.class, "credits==3;code==A", orderBy, 0, 10, "t1"));
+        assertFalse(instance.keyOf(Course.class, "code==A", orderBy, 0, 10, "t1").equals(
+                instance.keyOf(Course.class, "code==A", orderBy, 0, 10, "t2")));
+        assertFalse(instance.keyOf(Course.class, "code==A", orderBy, 0, 10, "t1").equals(
+                instance.keyOf(Course.class, "code==A", orderBy, 10, 10, "t1")));
+    }
+
+    @Test
+    public void testListByIds() {
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            for (long id = 1; id <= 3; id++) {
+                Course course = new Course();
+                course.setId(id);
+                course.setCode("MI-" + id);
+                course.setCredits((int) id);
+                session.save(course);
+            }
+            session.flush();
+
+            List<Course> courses = instance.listByIds("credits=ge=2", Arrays.asList(SortKey.asc("id")), 0, 10,
+                    Course.class, null);
+            assertEquals(2, courses.size());
+            assertEquals("MI-2", courses.get(0).getCode());
+            assertFalse(Hibernate.isInitialized(courses.get(0).getLecturers()));
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    private Callable<List<?>> execute(final String key, final Callable<List<?>> loader) {
+        return new Callable<List<?>>() {
+            public List<?> call() {
+                return instance.execute(key, loader);
+            }
+        };
+    }
+
+}
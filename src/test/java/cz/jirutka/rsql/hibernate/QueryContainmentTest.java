@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import cz.jirutka.rsql.parser.RSQLParser;
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryContainmentTest {
+
+    private QueryContainment instance;
+
+
+    @Before
+    public void setUp() throws Exception {
+        SessionFactory sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+        instance = new QueryContainment(sessionFactory, factory.createPredicateCompiler());
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testRefinement() throws Exception {
+        assertContains("department==18102", "department==18102;credits=gt=4");
+        assertContains("department==18102", "credits=gt=4;department==18102");
+        assertContains("department==18102;active==true", "active==true;credits==5;department==18102");
+        assertNotContains("department==18102;credits=gt=4", "department==18102");
+        assertNotContains("department==18102", "department==18101;credits=gt=4");
+    }
+
+    @Test
+    public void testComparisons() throws Exception {
+        assertContains("credits=ge=4", "credits=gt=5");
+        assertContains("credits=gt=4", "credits==5");
+        assertContains("credits!=3", "credits=lt=3");
+        assertContains("credits=le=5", "credits=lt=5");
+        assertContains("credits!=NULL", "credits=gt=3");
+        assertContains("credits==NULL", "credits==NULL");
+        assertNotContains("credits=gt=5", "credits=ge=5");
+        assertNotContains("credits=lt=5", "credits=le=5");
+        assertNotContains("credits==NULL", "credits!=4");
+        assertNotContains("credits=gt=4", "code==MI-5");
+    }
+
+    @Test
+    public void testLike() throws Exception {
+        assertContains("name==*math*", "name==DiscreteMathematics");
+        assertContains("name==*math*", "name==*math*");
+        assertNotContains("name==*math*", "name==*mat*");
+        assertNotContains("name==*math*", "name==Physics");
+    }
+
+    @Test
+    public void testLogical() throws Exception {
+        assertContains("credits==4,credits==5", "credits==5");
+        assertContains("credits=ge=4", "credits==4,credits==5");
+        assertContains("code==MI-1,credits=gt=4", "credits==5;active==true");
+        assertNotContains("credits==5", "credits==4,credits==5");
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    private void assertContains(String broader, String narrower) throws Exception {
+        assertTrue(broader + " should contain " + narrower, instance.contains(
+                RSQLParser.parse(broader), RSQLParser.parse(narrower), Course.class));
+    }
+
+    private void assertNotContains(String broader, String narrower) throws Exception {
+        assertFalse(broader + " should not contain " + narrower, instance.contains(
+                RSQLParser.parse(broader), RSQLParser.parse(narrower), Course.class));
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.QueryStatisticsRegistry.ShapeStatistics;
+import cz.jirutka.rsql.hibernate.entity.Course;
+import cz.jirutka.rsql.hibernate.entity.Department;
+import java.util.ArrayList;
+import java.util.List;
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class QueryStatisticsRegistryTest {
+
+    private SessionFactory sessionFactory;
+    private Session session;
+    private RSQL2CriteriaConverterImpl converter;
+    private QueryStatisticsRegistry instance;
+
+
+    @Before
+    public void setUp() throws Exception {
+        sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+        converter = (RSQL2CriteriaConverterImpl) factory.createConverter();
+        instance = new QueryStatisticsRegistry();
+        converter.setStatisticsRegistry(instance);
+
+        session = sessionFactory.openSession();
+        session.beginTransaction();
+        Department ksi = new Department();
+        ksi.setId(1L);
+        ksi.setCode(18102);
+        ksi.setName("KSI");
+        session.save(ksi);
+
+        for (Course course : CourseFixtures.createCourses()) {
+            course.setDepartment(ksi);
+            session.save(course);
+        }
+        session.flush();
+    }
+
+    @After
+    public void tearDown() {
+        session.getTransaction().rollback();
+        session.close();
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testRecordConversion() {
+        converter.createCriteria("credits==3;name==A", Course.class);
+        converter.createCriteria("name==B;credits==4", Course.class);
+        converter.createCriteria("department.code==18102", Course.class);
+
+        assertEquals(2, instance.size());
+
+        ShapeStatistics stats = find("(credits==?Integer;name==?String)");
+        assertEquals(Course.class, stats.getEntityClass());
+        assertEquals(2, stats.getCount());
+        assertEquals(0, stats.getJoins());
+        assertTrue(stats.getParseTime() > 0);
+        assertTrue(stats.getConvertTime() > 0);
+        assertNull(stats.getLastSql());
+
+        assertEquals(1, find("department.code==?Integer").getJoins());
+    }
+
+    @Test
+    public void testRecordCountConversionOnce() {
+        // converted twice when joining a collection, only the subquery is recorded
+        converter.createCountCriteria("lecturers.surname==Torvalds", Course.class);
+
+        assertEquals(1, find("lecturers.surname==?String").getCount());
+    }
+
+    @Test
+    public void testRecordExecution() {
+        List<SortKey> noOrder = new ArrayList<SortKey>();
+        List<String> noFetch = new ArrayList<String>();
+
+        assertEquals(5, converter.list("credits=gt=3", noOrder, noFetch, Course.class, session).size());
+        assertEquals(3, converter.list("credits=gt=4", noOrder, noFetch, Course.class, session).size());
+        assertEquals(6, converter.list("department.code==18102", noOrder, noFetch, Course.class, session).size());
+
+        ShapeStatistics stats = find("credits=gt=?Integer");
+        assertTrue(stats.getLastSql().startsWith("select"));
+        assertTrue(stats.getLastSql().contains("credits>?"));
+        assertEquals(2, stats.getExecutionCount());
+        assertEquals(8, stats.getExecutionRowCount());
+        assertTrue(stats.getExecutionTime() >= stats.getExecutionMaxTime());
+        assertTrue(stats.getTotalTime() > stats.getExecutionTime());
+
+        ShapeStatistics joined = find("department.code==?Integer");
+        assertTrue(joined.getLastSql().contains("join Department"));
+        assertEquals(1, joined.getExecutionCount());
+        assertEquals(6, joined.getExecutionRowCount());
+    }
+
+    @Test
+    public void testRecordCountStreamAndPageExecution() {
+        List<SortKey> noOrder = new ArrayList<SortKey>();
+
+        assertEquals(5, converter.countAtMost("credits=gt=3", Course.class, 10, session).getCount());
+        assertEquals(5, converter.fetchPage("credits=gt=3", noOrder, 10, null, Course.class, session)
+                .getContent().size());
+
+        ScrollableResultsIterator<Course> stream = converter.stream("credits=gt=3", noOrder, 2, Course.class,
+                session);
+        stream.next();
+        assertEquals(2, find("credits=gt=?Integer").getExecutionCount());
+        stream.close();
+
+        ShapeStatistics stats = find("credits=gt=?Integer");
+        assertEquals(3, stats.getExecutionCount());
+        assertEquals(11, stats.getExecutionRowCount());
+    }
+
+    @Test
+    public void testSqlSampling() {
+        instance.setSqlSampleInterval(2);
+        Criteria criteria = session.createCriteria(Course.class);
+
+        instance.recordExecution(Course.class, "a==?", criteria, 0, 10);
+        assertNotNull(find("a==?").getLastSql());
+
+        instance.clear();
+        instance.recordConversion(Course.class, "a==?", 10, 10, 0);
+        instance.recordExecution(Course.class, "a==?", criteria, 1, 10);
+        instance.recordExecution(Course.class, "a==?", criteria, 1, 30);
+        assertEquals(2, find("a==?").getExecutionCount());
+        assertEquals(30, find("a==?").getExecutionMaxTime());
+        assertEquals(60, find("a==?").getTotalTime());
+    }
+
+    @Test
+    public void testTopShapes() {
+        instance.recordConversion(Course.class, "a==?", 10, 10, 0);
+        instance.recordConversion(Course.class, "b==?", 50, 50, 1);
+        instance.recordConversion(Course.class, "c==?", 20, 20, 0);
+        instance.recordConversion(Course.class, "a==?", 10, 10, 0);
+
+        List<ShapeStatistics> top = instance.getTopShapes(2);
+        assertEquals(2, top.size());
+        assertEquals("b==?", top.get(0).getShape());
+        assertEquals("a==?", top.get(1).getShape());
+        assertEquals(40, top.get(1).getTotalTime());
+
+        assertEquals(3, instance.getTopShapes(10).size());
+
+        instance.setMaxShapes(3);
+        instance.recordConversion(Course.class, "d==?", 10, 10, 0);
+        assertEquals(3, instance.size());
+
+        instance.clear();
+        assertEquals(0, instance.size());
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    private ShapeStatistics find(String shape) {
+        for (ShapeStatistics stats : instance.getShapes()) {
+            if (stats.getShape().equals(shape)) return stats;
+        }
+        fail("Shape not found: " + shape);
+        return null;
+    }
+
+}
@@ -32,12 +32,24 @@ import cz.jirutka.rsql.parser.model.ComparisonExpression;
 import cz.jirutka.rsql.parser.model.Expression;
 import cz.jirutka.rsql.parser.model.Logical;
 import cz.jirutka.rsql.parser.model.LogicalExpression;
+import cz.jirutka.rsql.hibernate.entity.Department;
+import cz.jirutka.rsql.hibernate.entity.Person;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.impl.CriteriaImpl;
+import org.hibernate.stat.Statistics;
+import org.hibernate.transform.Transformers;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -353,6 +365,556 @@ public class RSQL2CriteriaConverterImplTest {
     }
 
 
+    @Test
+    public void testFetchPage() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            List<SortKey> orderBy = Arrays.asList(SortKey.desc("credits"));
+            List<Long> ids = new ArrayList<Long>();
+
+            KeysetPage<Course> page = converter.fetchPage("department.code==18102", orderBy, 2, null, Course.class, session);
+            for (Course course : page.getContent()) ids.add(course.getId());
+            assertTrue(page.hasNext());
+
+            page = converter.fetchPage("department.code==18102", orderBy, 2, page.getNextToken(), Course.class, session);
+            for (Course course : page.getContent()) ids.add(course.getId());
+            assertTrue(page.hasNext());
+
+            page = converter.fetchPage("department.code==18102", orderBy, 2, page.getNextToken(), Course.class, session);
+            for (Course course : page.getContent()) ids.add(course.getId());
+            assertFalse(page.hasNext());
+
+            // credits desc, then id desc as a tie-breaker
+            assertEquals(Arrays.asList(5L, 3L, 4L, 2L, 1L), ids);
+
+            try {
+                converter.fetchPage("credits>0", orderBy, 2, "invalid", Course.class, session);
+                fail("Should raise RSQLException");
+            } catch (RSQLException ex) { /*OK*/ }
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+    }
+
+    @Test
+    public void testCreateCriteriaWithSortKeys() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            List<SortKey> orderBy = Arrays.asList(SortKey.desc("department.name"), SortKey.asc("credits"));
+
+            Criteria criteria = converter.createCriteria("department.code=ge=18101;credits=ge=5", orderBy, Course.class)
+                    .getExecutableCriteria(session);
+
+            // sorting reuses the alias created for the query
+            Iterator<Subcriteria> it = ((CriteriaImpl) criteria).iterateSubcriteria();
+            assertEquals("this.department", it.next().getPath());
+            assertFalse(it.hasNext());
+
+            List<Long> ids = new ArrayList<Long>();
+            for (Object course : criteria.list()) ids.add(((Course) course).getId());
+            assertEquals(Arrays.asList(6L, 3L, 5L), ids);
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+
+        try {
+            converter.createCriteria("credits==5", Arrays.asList(SortKey.asc("lecturers.name")), Course.class);
+            fail("Should raise RSQLException");
+        } catch (RSQLException ex) {
+            assertTrue(ex.getCause() instanceof UnsupportedSelectorException);
+        }
+
+        try {
+            converter.createCriteria("credits==5", Arrays.asList(SortKey.asc("department.foo")), Course.class);
+            fail("Should raise RSQLException");
+        } catch (RSQLException ex) {
+            assertTrue(ex.getCause() instanceof UnknownSelectorException);
+        }
+    }
+
+
+    @Test
+    public void testCreateCountCriteria() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            DetachedCriteria criteria;
+
+            criteria = converter.createCountCriteria("department.code==18102;credits=ge=4", Course.class);
+            assertEquals(4L, ((Number) criteria.getExecutableCriteria(session).uniqueResult()).longValue());
+
+            // course 1 is joined twice with lecturers
+            criteria = converter.createCountCriteria("lecturers.surname==T*,lecturers.surname==G*", Course.class);
+            assertEquals(2L, ((Number) criteria.getExecutableCriteria(session).uniqueResult()).longValue());
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+    }
+
+
+    @Test
+    public void testCountAtMost() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            BoundedCount result;
+
+            result = converter.countAtMost("department.code==18102", Course.class, 3, session);
+            assertEquals(3, result.getCount());
+            assertTrue(result.isLimitReached());
+            assertEquals("3+", result.toString());
+
+            result = converter.countAtMost("lecturers.surname==T*,lecturers.surname==G*", Course.class, 3, session);
+            assertEquals(2, result.getCount());
+            assertFalse(result.isLimitReached());
+
+            // exactly the limit
+            result = converter.countAtMost("lecturers.surname==T*,lecturers.surname==G*", Course.class, 2, session);
+            assertEquals(2, result.getCount());
+            assertFalse(result.isLimitReached());
+            assertEquals("2", result.toString());
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+    }
+
+
+    @Test
+    public void testExists() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+
+            assertTrue(converter.exists("department.code==18102", Course.class, session));
+            assertTrue(converter.exists("lecturers.surname==Torvalds", Course.class, session));
+            assertFalse(converter.exists("credits>6", Course.class, session));
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+    }
+
+
+    @Test
+    public void testListByIds() {
+        RSQL2CriteriaConverterImpl converter = (RSQL2CriteriaConverterImpl) createConverter();
+        converter.setLoadBatchSize(1);
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            session.clear();
+
+            List<Course> result = converter.listByIds("lecturers.surname==T*,lecturers.surname==G*",
+                    Arrays.asList(SortKey.desc("credits")), 0, 5, Course.class, session);
+
+            // course 1 is joined twice with lecturers, but loaded only once
+            assertEquals(2, result.size());
+            assertEquals(Long.valueOf(2L), result.get(0).getId());
+            assertEquals(Long.valueOf(1L), result.get(1).getId());
+
+            result = converter.listByIds("department.code==18102", Arrays.asList(SortKey.asc("credits")),
+                    1, 2, Course.class, session);
+            assertEquals(2, result.size());
+            assertEquals(Integer.valueOf(4), result.get(0).getCredits());
+            assertEquals(Integer.valueOf(4), result.get(1).getCredits());
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+    }
+
+
+    @Test
+    public void testCreateProjectionCriteria() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            List<String> fields = Arrays.asList("code", "credits", "department.name");
+
+            List<?> tuples = converter.createProjectionCriteria("credits=ge=5", fields,
+                    Arrays.asList(SortKey.desc("credits"), SortKey.asc("code")), null, Course.class)
+                    .getExecutableCriteria(session)
+                    .list();
+            assertEquals(3, tuples.size());
+            assertArrayEquals(new Object[]{"MI-5", 6, "KSI"}, (Object[]) tuples.get(0));
+            assertArrayEquals(new Object[]{"MI-3", 5, "KSI"}, (Object[]) tuples.get(1));
+            assertArrayEquals(new Object[]{"MI-6", 5, "KTI"}, (Object[]) tuples.get(2));
+
+            List<?> maps = converter.createProjectionCriteria("code==MI-6", fields,
+                    new ArrayList<SortKey>(), Transformers.ALIAS_TO_ENTITY_MAP, Course.class)
+                    .getExecutableCriteria(session)
+                    .list();
+            assertEquals("KTI", ((Map<?, ?>) maps.get(0)).get("department.name"));
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+
+        try {
+            converter.createProjectionCriteria("credits==5", Arrays.asList("lecturers.surname"),
+                    new ArrayList<SortKey>(), null, Course.class);
+            fail("Should raise RSQLException");
+        } catch (RSQLException ex) {
+            assertTrue(ex.getCause() instanceof UnsupportedSelectorException);
+        }
+    }
+
+
+    @Test
+    public void testListWithFetchPlan() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Statistics statistics = sessionFactory.getStatistics();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            session.clear();
+            statistics.setStatisticsEnabled(true);
+            statistics.clear();
+
+            // department is joined by the filter, lecturers are fetched in a batch
+            List<Course> courses = converter.list("department.code==18102", Arrays.asList(SortKey.asc("id")),
+                    Arrays.asList("department", "lecturers"), Course.class, session);
+            assertEquals(5, courses.size());
+            assertEquals(2, statistics.getPrepareStatementCount());
+            for (Course course : courses) {
+                assertTrue(Hibernate.isInitialized(course.getDepartment()));
+                assertTrue(Hibernate.isInitialized(course.getLecturers()));
+            }
+            assertEquals(2, courses.get(0).getLecturers().size());
+            assertEquals("KSI", courses.get(0).getDepartment().getName());
+
+            session.clear();
+            statistics.clear();
+
+            // department is not joined, so it's fetched in a batch
+            courses = converter.list("credits==5", new ArrayList<SortKey>(), Arrays.asList("department"),
+                    Course.class, session);
+            assertEquals(2, courses.size());
+            assertEquals(2, statistics.getPrepareStatementCount());
+            for (Course course : courses) {
+                assertTrue(Hibernate.isInitialized(course.getDepartment()));
+            }
+
+        } finally {
+            statistics.setStatisticsEnabled(false);
+            session.getTransaction().rollback();
+            session.close();
+        }
+
+        try {
+            converter.list("credits==5", new ArrayList<SortKey>(), Arrays.asList("code"), Course.class, null);
+            fail("Should raise RSQLException");
+        } catch (RSQLException ex) {
+            assertTrue(ex.getCause() instanceof UnsupportedSelectorException);
+        }
+    }
+
+
+    @Test
+    public void testStream() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            Course first = (Course) session.get(Course.class, 1L);
+
+            ScrollableResultsIterator<Course> it = converter.stream("credits=ge=4",
+                    Arrays.asList(SortKey.asc("id")), 2, Course.class, session);
+            List<String> codes = new ArrayList<String>();
+            while (it.hasNext()) {
+                codes.add(it.next().getCode());
+            }
+            assertEquals(Arrays.asList("MI-2", "MI-3", "MI-4", "MI-5", "MI-6"), codes);
+            assertEquals(5, it.getCount());
+            // session was cleared after the chunks
+            assertFalse(session.contains(first));
+
+            StatelessSession stateless = sessionFactory.openStatelessSession(session.connection());
+            try {
+                it = converter.stream("department.code==18101", new ArrayList<SortKey>(), 10,
+                        Course.class, stateless);
+                assertEquals("MI-6", it.next().getCode());
+                assertFalse(it.hasNext());
+            } finally {
+                stateless.close();
+            }
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+    }
+
+    @Test
+    public void testExecutionProfile() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            session.clear();
+            Course course = (Course) session.get(Course.class, 1L);
+            course.setCredits(10);
+
+            // no auto-flush before the query
+            converter.setExecutionProfile(new ExecutionProfile());
+            assertFalse(converter.exists("credits==10", Course.class, session));
+
+            List<Course> courses = converter.list("credits==5", new ArrayList<SortKey>(),
+                    new ArrayList<String>(), Course.class, session);
+            assertEquals(2, courses.size());
+            assertTrue(session.isReadOnly(courses.get(0)));
+
+            converter.setExecutionProfile(null);
+            assertTrue(converter.exists("credits==10", Course.class, session));
+
+            // session's default read-only setting is kept
+            session.clear();
+            session.setDefaultReadOnly(true);
+            converter.setExecutionProfile(new ExecutionProfile().setReadOnly(false));
+            courses = converter.list("credits==5", new ArrayList<SortKey>(),
+                    new ArrayList<String>(), Course.class, session);
+            assertTrue(session.isReadOnly(courses.get(0)));
+            session.setDefaultReadOnly(false);
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+        }
+    }
+
+    @Test
+    public void testListByIdsWithResultCache() {
+        RSQL2CriteriaConverterImpl converter = (RSQL2CriteriaConverterImpl) createConverter();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        QueryResultCache cache = new QueryResultCache(sessionFactory, executor, 10);
+        cache.install();
+        converter.setResultCache(cache);
+
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            List<SortKey> orderBy = Arrays.asList(SortKey.asc("id"));
+
+            assertEquals(2, converter.listByIds("credits==5", orderBy, 0, 10, Course.class, session).size());
+            assertEquals(2, converter.listByIds("credits==5", orderBy, 0, 10, Course.class, session).size());
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+
+            // change of an entity that the query doesn't touch
+            ((Person) session.get(Person.class, 1L)).setSurname("Linus");
+            session.flush();
+            converter.listByIds("credits==5", orderBy, 0, 10, Course.class, session);
+            assertEquals(2, cache.getHits());
+
+            ((Course) session.get(Course.class, 1L)).setCredits(5);
+            session.flush();
+            assertEquals(3, converter.listByIds("credits==5", orderBy, 0, 10, Course.class, session).size());
+            assertEquals(2, cache.getMisses());
+
+            // stale result is served once while being revalidated
+            cache.setStaleWhileRevalidate(60000);
+            ((Course) session.get(Course.class, 2L)).setCredits(5);
+            session.flush();
+            assertEquals(3, converter.listByIds("credits==5", orderBy, 0, 10, Course.class, session).size());
+            assertEquals(1, cache.getStaleHits());
+            assertEquals(4, converter.listByIds("credits==5", orderBy, 0, 10, Course.class, session).size());
+
+            // result of another execution profile is cached separately
+            long misses = cache.getMisses();
+            converter.setExecutionProfile(new ExecutionProfile());
+            assertEquals(4, converter.listByIds("credits==5", orderBy, 0, 10, Course.class, session).size());
+            assertEquals(misses + 1, cache.getMisses());
+
+        } finally {
+            session.getTransaction().rollback();
+            session.close();
+            cache.uninstall();
+        }
+    }
+
+    @Test
+    public void testKeyLookup() {
+        RSQL2CriteriaConverter converter = createConverter();
+        Statistics statistics = sessionFactory.getStatistics();
+        List<SortKey> noOrder = new ArrayList<SortKey>();
+        List<String> noFetch = new ArrayList<String>();
+        Session session = sessionFactory.openSession();
+        session.beginTransaction();
+        try {
+            persistCourses(session);
+            statistics.setStatisticsEnabled(true);
+            statistics.clear();
+
+            // entity is already in the session
+            List<Course> courses = converter.list("id==3", noOrder, noFetch, Course.class, session);
+            assertEquals("MI-3", courses.get(0).getCode());
+            assertTrue(converter.list("id==99", noOrder, noFetch, Course.class, session).isEmpty());
+            assertEquals(1, statistics.getPrepareStatementCount());
+
+            // exists() doesn't hydrate the entity, it selects only the identifier
+            statistics.clear();
+            assertTrue(converter.exists("code==MI-3", Course.class, session));
+            assertFalse(converter.exists("code==MI-99", Course.class, session));
+            assertEquals(2, statistics.getPrepareStatementCount());
+            assertEquals(0, statistics.getEntityLoadCount());
+
+            courses = converter.list("code==MI-2", noOrder, Arrays.asList("lecturers"), Course.class, session);
+            assertEquals(1, courses.size());
+            assertEquals(Long.valueOf(2), courses.get(0).getId());
+            assertTrue(converter.listByIds("code==MI-2", noOrder, 1, 10, Course.class, session).isEmpty());
+
+            // wildcard is not a key lookup
+            assertEquals(6, converter.list("code==MI-*", noOrder, noFetch, Course.class, session).size());
+
+            // Session.get() would ignore the execution profile, so it is queried
+            converter.setExecutionProfile(new ExecutionProfile().setTimeout(10));
+            statistics.clear();
+            assertEquals(1, converter.list("id==3", noOrder, noFetch, Course.class, session).size());
+            assertEquals(1, statistics.getPrepareStatementCount());
+            converter.setExecutionProfile(null);
+
+            // property handled by a custom builder
+            converter.pushCriterionBuilder(new AbstractCriterionBuilder() {
+                public boolean accept(String property, Class<?> entityClass, CriteriaBuilder parent) {
+                    return property.equals("code");
+                }
+                public Criterion createCriterion(String property, Comparison operator, String argument,
+                        Class<?> entityClass, String alias, CriteriaBuilder parent) {
+                    return Restrictions.sqlRestriction("1=0");
+                }
+            });
+            assertTrue(converter.list("code==MI-2", noOrder, noFetch, Course.class, session).isEmpty());
+
+        } finally {
+            statistics.setStatisticsEnabled(false);
+            session.getTransaction().rollback();
+            session.close();
+        }
+
+        try {
+            converter.list("id==abc", new ArrayList<SortKey>(), new ArrayList<String>(), Course.class, null);
+            fail("Should raise RSQLException");
+        } catch (RSQLException ex) {
+            assertTrue(ex.getCause() instanceof ArgumentFormatException);
+        }
+    }
+
+    @Test
+    public void testDeterministicSql() {
+        RSQL2CriteriaConverterImpl converter = (RSQL2CriteriaConverterImpl) createConverter();
+        assertFalse(renderSql(converter, "credits=gt=3;name==A").equals(renderSql(converter, "name==A;credits=gt=3")));
+
+        // canonical order only when something consumes the rendered SQL
+        converter.setStatisticsRegistry(new QueryStatisticsRegistry());
+
+        String expected = renderSql(converter, "department.code==18102;lecturers.surname==Torvalds;credits=gt=3");
+
+        assertEquals(expected, renderSql(converter, "credits=gt=3;lecturers.surname==Torvalds;department.code==18102"));
+        assertEquals(expected, renderSql(converter, "(lecturers.surname==Torvalds;credits=gt=3);department.code==18102"));
+        assertEquals(renderSql(converter, "department.code==18102,(name==A;credits==3)"),
+                renderSql(converter, "(credits==3;name==A),department.code==18102"));
+        assertFalse(expected.equals(renderSql(converter, "department.code==18102;credits=gt=3")));
+
+        // same shape, swapped arguments
+        assertEquals(renderSql(converter, "(credits==1;lecturers.surname==x),(credits==2;department.code==5)"),
+                renderSql(converter, "(credits==2;lecturers.surname==x),(credits==1;department.code==5)"));
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    /**
+     * Render SQL of the converted query as Hibernate does when executing it.
+     */
+    private String renderSql(RSQL2CriteriaConverter converter, String query) {
+        Session session = sessionFactory.openSession();
+        try {
+            return QueryStatisticsRegistry.renderSql((CriteriaImpl) converter.createCriteria(query, Course.class)
+                    .getExecutableCriteria(session));
+        } finally {
+            session.close();
+        }
+    }
+
+    private RSQL2CriteriaConverter createConverter() {
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+
+        return factory.createConverter();
+    }
+
+    /**
+     * Persist six courses, five of them in the department 18102, and two
+     * lecturers of the course 1, one of them is also lecturer of the course 2.
+     */
+    private void persistCourses(Session session) {
+        Person torvalds = new Person();
+        torvalds.setId(1L);
+        torvalds.setSurname("Torvalds");
+        session.save(torvalds);
+
+        Person gosling = new Person();
+        gosling.setId(2L);
+        gosling.setSurname("Gosling");
+        session.save(gosling);
+
+        Department ksi = new Department();
+        ksi.setId(1L);
+        ksi.setCode(18102);
+        ksi.setName("KSI");
+        session.save(ksi);
+
+        Department kti = new Department();
+        kti.setId(2L);
+        kti.setCode(18101);
+        kti.setName("KTI");
+        session.save(kti);
+
+        for (Course course : CourseFixtures.createCourses()) {
+            long id = course.getId();
+            course.setDepartment(id == 6 ? kti : ksi);
+            if (id == 1) course.getLecturers().add(gosling);
+            if (id <= 2) course.getLecturers().add(torvalds);
+            session.save(course);
+        }
+        session.flush();
+    }
+
 
 
     ////////////////////////// Mocks //////////////////////////
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import cz.jirutka.rsql.parser.model.Comparison;
+import java.util.ArrayList;
+import java.util.List;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class RefinementCacheTest {
+
+    private SessionFactory sessionFactory;
+    private Session session;
+    private RSQL2CriteriaConverter converter;
+    private RefinementCache instance;
+
+
+    @Before
+    public void setUp() throws Exception {
+        sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+        converter = factory.createConverter();
+        instance = new RefinementCache(sessionFactory, factory.createPredicateCompiler(), 10);
+
+        session = sessionFactory.openSession();
+        session.beginTransaction();
+        for (Course course : CourseFixtures.createCourses()) {
+            course.setActive(course.getId() <= 3);
+            session.save(course);
+        }
+        session.flush();
+    }
+
+    @After
+    public void tearDown() {
+        instance.uninstall();
+        session.getTransaction().rollback();
+        session.close();
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testList() {
+        Statistics statistics = sessionFactory.getStatistics();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+        try {
+            assertEquals(5, instance.list("credits=ge=4", Course.class, converter, session).size());
+            long queries = statistics.getPrepareStatementCount();
+
+            List<Course> refined = instance.list("credits=gt=4;active==true", Course.class, converter, session);
+            assertEquals(1, refined.size());
+            assertEquals("MI-3", refined.get(0).getCode());
+            assertEquals(5, instance.list("credits=ge=4", Course.class, converter, session).size());
+            assertEquals(queries, statistics.getPrepareStatementCount());
+
+            assertEquals(1, instance.getMisses());
+            assertEquals(1, instance.getRefinements());
+            assertEquals(1, instance.getHits());
+            assertEquals(5, instance.getCachedIds("credits=ge=4", Course.class).size());
+
+            // not contained
+            assertEquals(1, instance.list("credits=lt=4", Course.class, converter, session).size());
+            assertEquals(2, instance.getMisses());
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    @Test
+    public void testMaxResultSize() {
+        instance.setMaxResultSize(4);
+        Statistics statistics = sessionFactory.getStatistics();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+        try {
+            converter.listByIds("credits=ge=4", new ArrayList<SortKey>(0), 0, Integer.MAX_VALUE, Course.class, session);
+            long queries = statistics.getPrepareStatementCount();
+            statistics.clear();
+
+            // bounded load is oversized, so the complete result is loaded again
+            assertEquals(5, instance.list("credits=ge=4", Course.class, converter, session).size());
+            assertEquals(2 * queries, statistics.getPrepareStatementCount());
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+        assertEquals(0, instance.size());
+        assertEquals(2, instance.list("credits==4", Course.class, converter, session).size());
+        assertEquals(1, instance.size());
+
+        instance.invalidate(Course.class);
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void testMaterializeInSession() {
+        List<Course> loaded = instance.list("credits=ge=4", Course.class, converter, session);
+        session.clear();
+
+        List<Course> cached = instance.get("credits=ge=4", Course.class, session);
+        assertEquals(5, cached.size());
+        assertNotSame(loaded.get(0), cached.get(0));
+        assertTrue(session.contains(cached.get(0)));
+
+        List<Course> refined = instance.get("credits=ge=4;active==true", Course.class, session);
+        assertEquals(2, refined.size());
+        assertSame(cached.get(0), refined.get(0));
+        assertEquals(1, instance.getHits());
+        assertEquals(1, instance.getRefinements());
+    }
+
+    @Test
+    public void testRefineOnlyRootBasicProperties() {
+        assertEquals(5, instance.list("credits=ge=4", Course.class, converter, session).size());
+
+        // contained, but compares an association
+        assertEquals(0, instance.list("credits=ge=4;department.code=gt=0", Course.class, converter, session).size());
+        assertEquals(0, instance.getRefinements());
+        assertEquals(2, instance.getMisses());
+    }
+
+    @Test
+    public void testRefineNoCustomBuilderSelectors() {
+        PredicateCompiler compiler = RSQL2HibernateFactory.getInstance().createPredicateCompiler();
+        compiler.getCriterionBuilders().add(0, new AbstractCriterionBuilder() {
+            public boolean accept(String property, Class<?> entityClass, CriteriaBuilder parent) {
+                return property.equals("active");
+            }
+            public Criterion createCriterion(String property, Comparison operator, String argument,
+                    Class<?> entityClass, String alias, CriteriaBuilder parent) {
+                return Restrictions.sqlRestriction("1=1");
+            }
+        });
+        instance = new RefinementCache(sessionFactory, compiler, 10);
+        converter.pushCriterionBuilder(compiler.getCriterionBuilders().get(0));
+
+        assertEquals(5, instance.list("credits=ge=4", Course.class, converter, session).size());
+        // executed by the custom builder, not refined in memory
+        assertEquals(5, instance.list("credits=ge=4;active==true", Course.class, converter, session).size());
+        assertEquals(0, instance.getRefinements());
+    }
+
+    @Test
+    public void testInvalidateOnChange() {
+        instance.install();
+
+        assertEquals(5, instance.list("credits=ge=4", Course.class, converter, session).size());
+        assertEquals(1, instance.size());
+
+        Course course = (Course) session.get(Course.class, 1L);
+        course.setCredits(4);
+        session.flush();
+
+        assertEquals(0, instance.size());
+        assertEquals(6, instance.list("credits=ge=4", Course.class, converter, session).size());
+        assertEquals(3, instance.list("credits=ge=4;active==true", Course.class, converter, session).size());
+        assertEquals(1, instance.getRefinements());
+    }
+
+}
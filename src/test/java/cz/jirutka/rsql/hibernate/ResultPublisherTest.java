@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Department;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class ResultPublisherTest {
+
+    private SessionFactory sessionFactory;
+    private Session session;
+    private RSQL2CriteriaConverter converter;
+    private Executor executor;
+
+
+    @Before
+    public void setUp() throws Exception {
+        sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+        converter = factory.createConverter();
+
+        // run synchronously on the calling thread
+        executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        // publisher uses own sessions, it sees uncommitted data in HSQLDB
+        session = sessionFactory.openSession();
+        session.beginTransaction();
+        for (long id = 1; id <= 5; id++) {
+            Department department = new Department();
+            department.setId(id);
+            department.setCode(18100 + (int) id);
+            department.setName("Department " + id);
+            session.save(department);
+        }
+        session.flush();
+    }
+
+    @After
+    public void tearDown() {
+        session.getTransaction().rollback();
+        session.close();
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testSubscribeWithBackpressure() {
+        ResultPublisher<Department> publisher = new ResultPublisher<Department>(converter, sessionFactory,
+                executor, "code=gt=18101", Arrays.asList(SortKey.desc("code")), Department.class, 2);
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(1, -1);
+        publisher.subscribe(subscriber);
+
+        // requested 1, then 1 more after each received entity
+        assertEquals(Arrays.asList(18105, 18104, 18103, 18102), subscriber.codes);
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testCancel() {
+        ResultPublisher<Department> publisher = new ResultPublisher<Department>(converter, sessionFactory,
+                executor, "code=gt=0", Arrays.asList(SortKey.asc("code")), Department.class, 10);
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE, 2);
+        publisher.subscribe(subscriber);
+
+        assertEquals(Arrays.asList(18101, 18102), subscriber.codes);
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void testInvalidRequest() {
+        ResultPublisher<Department> publisher = new ResultPublisher<Department>(converter, sessionFactory,
+                executor, "code=gt=0", new ArrayList<SortKey>(), Department.class, 10);
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(0, -1);
+        publisher.subscribe(subscriber);
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertTrue(subscriber.codes.isEmpty());
+    }
+
+
+
+    ////////////////////////// Mocks //////////////////////////
+
+    private static class RecordingSubscriber implements ResultSubscriber<Department> {
+
+        private final long initialRequest;
+        private final int cancelAfter;
+        private final List<Integer> codes = new ArrayList<Integer>();
+        private ResultSubscription subscription;
+        private boolean completed = false;
+        private Throwable error;
+
+        /**
+         * @param initialRequest number requested on subscribe; when it's 1,
+         *        then 1 more is requested after each entity
+         * @param cancelAfter cancel after this number of entities, or -1
+         */
+        RecordingSubscriber(long initialRequest, int cancelAfter) {
+            this.initialRequest = initialRequest;
+            this.cancelAfter = cancelAfter;
+        }
+
+        @Override
+        public void onSubscribe(ResultSubscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(Department entity) {
+            codes.add(entity.getCode());
+            if (codes.size() == cancelAfter) {
+                subscription.cancel();
+            } else if (initialRequest == 1) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+}
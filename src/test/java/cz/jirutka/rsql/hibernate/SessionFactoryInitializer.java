@@ -49,6 +49,7 @@ public class SessionFactoryInitializer {
         configuration.setProperty(Environment.USER, "sa");
         configuration.setProperty(Environment.DIALECT, HSQLDialect.class.getName());
         configuration.setProperty(Environment.SHOW_SQL, "true");
+        configuration.setProperty(Environment.HBM2DDL_AUTO, "create-drop");
         configuration.addAnnotatedClass(Course.class);
         configuration.addAnnotatedClass(Department.class);
         configuration.addAnnotatedClass(Person.class);
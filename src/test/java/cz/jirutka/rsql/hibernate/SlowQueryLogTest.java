@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.SlowQueryLog.SlowQuery;
+import cz.jirutka.rsql.hibernate.entity.Course;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class SlowQueryLogTest {
+
+    private Session session;
+    private RSQL2CriteriaConverterImpl converter;
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final List<SlowQuery> logged = new ArrayList<SlowQuery>();
+    private long now = TimeUnit.SECONDS.toNanos(100);
+    private boolean rejecting = false;
+
+
+    @Before
+    public void setUp() throws Exception {
+        SessionFactory sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+        converter = (RSQL2CriteriaConverterImpl) factory.createConverter();
+
+        session = sessionFactory.openSession();
+        session.beginTransaction();
+        for (Course course : CourseFixtures.createCourses()) {
+            session.save(course);
+        }
+        session.flush();
+    }
+
+    @After
+    public void tearDown() {
+        session.getTransaction().rollback();
+        session.close();
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testLogSlowQuery() {
+        SlowQueryLog instance = createLog(10);
+        instance.setThreshold(0);
+        converter.setSlowQueryLog(instance);
+
+        List<Course> result = converter.list("name==Course*;credits=gt=3", new ArrayList<SortKey>(),
+                new ArrayList<String>(), Course.class, session);
+        assertEquals(5, result.size());
+        runTasks();
+
+        assertEquals(1, logged.size());
+        SlowQuery slow = logged.get(0);
+        assertEquals("name==Course*;credits=gt=3", slow.getQuery());
+        assertEquals("(credits=gt=?Integer;name==?like)", slow.getShape());
+        assertTrue(slow.getSql().contains("this_.credits>?"));
+        assertEquals(Arrays.asList((Object) 3, "course%"), Arrays.asList(slow.getBindValues()));
+        assertEquals(5, slow.getRows());
+    }
+
+    @Test
+    public void testLogSlowCountStreamAndPage() {
+        SlowQueryLog instance = createLog(10);
+        instance.setThreshold(0);
+        converter.setSlowQueryLog(instance);
+        List<SortKey> noOrder = new ArrayList<SortKey>();
+
+        converter.countAtMost("credits=gt=3", Course.class, 2, session);
+        converter.fetchPage("credits=gt=4", noOrder, 2, null, Course.class, session);
+        ScrollableResultsIterator<Course> stream = converter.stream("credits==2", noOrder, 10, Course.class,
+                session);
+        while (stream.hasNext()) stream.next();
+        runTasks();
+
+        assertEquals(3, logged.size());
+        assertEquals("credits=gt=3", logged.get(0).getQuery());
+        assertEquals(3, logged.get(0).getRows());
+        assertEquals("credits=gt=4", logged.get(1).getQuery());
+        assertEquals(3, logged.get(1).getRows());
+        assertEquals("credits==2", logged.get(2).getQuery());
+        assertEquals(1, logged.get(2).getRows());
+    }
+
+    @Test
+    public void testThreshold() {
+        SlowQueryLog instance = createLog(10);
+        instance.setThreshold(60000);
+        converter.setSlowQueryLog(instance);
+
+        assertTrue(converter.exists("credits=gt=3", Course.class, session));
+        runTasks();
+
+        assertTrue(logged.isEmpty());
+        assertEquals(0, instance.getSlowQueries());
+    }
+
+    @Test
+    public void testSamplingAndRateLimit() {
+        SlowQueryLog instance = createLog(10);
+        instance.setThreshold(0);
+        instance.setSampleRate(0.0);
+
+        assertFalse(instance.record("a==1", "a==?", null, 0, 10));
+        assertEquals(1, instance.getSlowQueries());
+
+        instance.setSampleRate(1.0);
+        instance.setMaxPerSecond(2);
+        for (int i = 0; i < 5; i++) {
+            instance.record("a==" + i, "a==?", null, 0, 10);
+        }
+        runTasks();
+
+        assertEquals(2, logged.size());
+        assertEquals(6, instance.getSlowQueries());
+
+        // next second
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertTrue(instance.record("a==5", "a==?", null, 0, 10));
+        runTasks();
+        assertEquals(3, logged.size());
+    }
+
+    @Test
+    public void testRingBuffer() {
+        SlowQueryLog instance = createLog(2);
+        instance.setThreshold(0);
+
+        instance.record("a==1", "a==?", null, 0, 10);
+        instance.record("a==2", "a==?", null, 0, 10);
+        instance.record("a==3", "a==?", null, 0, 10);
+        assertEquals(1, tasks.size());
+        assertEquals(1, instance.getDiscarded());
+
+        runTasks();
+        assertEquals(2, logged.size());
+        assertEquals("a==2", logged.get(0).getQuery());
+        assertEquals("a==3", logged.get(1).getQuery());
+
+        instance.record("a==4", "a==?", null, 0, 10);
+        runTasks();
+        assertEquals(3, logged.size());
+    }
+
+
+    @Test
+    public void testRejectedExecution() {
+        SlowQueryLog instance = createLog(10);
+        instance.setThreshold(0);
+
+        rejecting = true;
+        assertFalse(instance.record("a==1", "a==?", null, 0, 10));
+        assertEquals(1, instance.getDiscarded());
+
+        rejecting = false;
+        assertTrue(instance.record("a==2", "a==?", null, 0, 10));
+        runTasks();
+        assertEquals(1, logged.size());
+        assertEquals("a==2", logged.get(0).getQuery());
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    /**
+     * Create log that collects logged queries, defers logging until
+     * {@link #runTasks()} and uses the fixed clock {@link #now}.
+     */
+    private SlowQueryLog createLog(int capacity) {
+        Executor executor = new Executor() {
+            public void execute(Runnable command) {
+                if (rejecting) throw new RejectedExecutionException();
+                tasks.add(command);
+            }
+        };
+        return new SlowQueryLog(executor, capacity) {
+            @Override
+            protected void log(SlowQuery slowQuery) {
+                logged.add(slowQuery);
+            }
+            @Override
+            protected long currentTime() {
+                return now;
+            }
+        };
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+}
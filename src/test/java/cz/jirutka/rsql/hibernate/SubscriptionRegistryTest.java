@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.hibernate;
+
+import cz.jirutka.rsql.hibernate.entity.Course;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class SubscriptionRegistryTest {
+
+    private SessionFactory sessionFactory;
+    private SubscriptionRegistry instance;
+    private final List<String> events = new ArrayList<String>();
+
+
+    @Before
+    public void setUp() throws Exception {
+        sessionFactory = SessionFactoryInitializer.getSessionFactory();
+        RSQL2HibernateFactory factory = RSQL2HibernateFactory.getInstance();
+        factory.setSessionFactory(sessionFactory);
+
+        instance = new SubscriptionRegistry(sessionFactory, factory.createPredicateCompiler());
+        instance.install();
+    }
+
+    @After
+    public void tearDown() {
+        instance.uninstall();
+        Session session = sessionFactory.openSession();
+        try {
+            session.beginTransaction();
+            session.createQuery("delete from Course where id >= 200").executeUpdate();
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+
+
+    ////////////////////////// Tests //////////////////////////
+
+    @Test
+    public void testMatchAndUnmatch() {
+        SubscriptionRegistry.Subscription<Course> subscription =
+                instance.subscribe("credits=ge=5;name==*rsql*", Course.class, new RecordingListener("a"));
+        instance.subscribe("active==true", Course.class, new RecordingListener("b"));
+
+        Session session = sessionFactory.openSession();
+        try {
+            session.beginTransaction();
+            session.save(CourseFixtures.createCourse(200L, "XX-200", "Intro to RSQL", 5, true));
+            session.save(CourseFixtures.createCourse(201L, "XX-201", "Hibernate", 6, true));
+            session.getTransaction().commit();
+            assertEvents("a+200", "b+200", "b+201");
+            events.clear();
+
+            // still matches
+            session.beginTransaction();
+            ((Course) session.get(Course.class, 200L)).setName("Advanced RSQL");
+            session.getTransaction().commit();
+            assertTrue(events.isEmpty());
+
+            session.beginTransaction();
+            ((Course) session.get(Course.class, 200L)).setCredits(3);
+            ((Course) session.get(Course.class, 201L)).setName("RSQL in Hibernate");
+            session.getTransaction().commit();
+            assertEvents("a-200", "a+201");
+            events.clear();
+
+            // rolled back
+            session.beginTransaction();
+            session.save(CourseFixtures.createCourse(202L, "XX-202", "RSQL again", 7, true));
+            session.flush();
+            session.getTransaction().rollback();
+            assertTrue(events.isEmpty());
+
+            assertTrue(instance.unsubscribe(subscription));
+            assertEquals(1, instance.size());
+
+            session.beginTransaction();
+            session.delete(session.get(Course.class, 201L));
+            session.getTransaction().commit();
+            assertEvents("b-201");
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testUninstall() {
+        instance.subscribe("active==true", Course.class, new RecordingListener("a"));
+        instance.uninstall();
+
+        Session session = sessionFactory.openSession();
+        try {
+            session.beginTransaction();
+            session.save(CourseFixtures.createCourse(200L, "XX-200", "Intro to RSQL", 5, true));
+            session.getTransaction().commit();
+            assertTrue(events.isEmpty());
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test(expected = RSQLException.class)
+    public void testSubscribeUnknownSelector() {
+        instance.subscribe("foo==bar", Course.class, new RecordingListener("x"));
+    }
+
+    @Test
+    public void testSubscribeAssociation() {
+        for (String query : Arrays.asList("department.code==18102", "department==18102", "lecturers==1",
+                "active==true;lecturers.surname==Torvalds")) {
+            try {
+                instance.subscribe(query, Course.class, new RecordingListener("x"));
+                fail("Should raise RSQLException for " + query);
+            } catch (RSQLException ex) {
+                assertTrue(ex.getCause() instanceof UnsupportedSelectorException);
+            }
+        }
+        assertEquals(0, instance.size());
+    }
+
+
+    ////////////////////////// Helpers //////////////////////////
+
+    private void assertEvents(String... expected) {
+        assertEquals(new HashSet<String>(Arrays.asList(expected)), new HashSet<String>(events));
+        assertEquals(expected.length, events.size());
+    }
+
+    private class RecordingListener implements SubscriptionRegistry.Listener<Course> {
+
+        private final String name;
+
+        RecordingListener(String name) {
+            this.name = name;
+        }
+
+        public void onMatch(Course entity) {
+            events.add(name + "+" + entity.getId());
+        }
+
+        public void onUnmatch(Course entity) {
+            events.add(name + "-" + entity.getId());
+        }
+    }
+
+}
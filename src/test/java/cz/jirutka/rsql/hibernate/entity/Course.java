@@ -23,8 +23,12 @@
  */
 package cz.jirutka.rsql.hibernate.entity;
 
+import java.util.HashSet;
+import java.util.Set;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
 import org.hibernate.annotations.NaturalId;
 
@@ -45,9 +49,11 @@ public class Course extends AbstractTestEntity {
     @Column
     private Integer credits;
 
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     private Department department;
 
+    @ManyToMany
+    private Set<Person> lecturers = new HashSet<Person>();
 
 
     public boolean isActive() {
@@ -82,4 +88,12 @@ public class Course extends AbstractTestEntity {
         this.department = department;
     }
 
+    public Set<Person> getLecturers() {
+        return lecturers;
+    }
+
+    public void setLecturers(Set<Person> lecturers) {
+        this.lecturers = lecturers;
+    }
+
 }